@@ -0,0 +1,229 @@
+package movement;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Activation schedule of a group of movement models that are active between
+ * known times (e.g. the nodes of an external trace). The activation and
+ * deactivation times are kept in a priority queue, and the set of active models
+ * changes only when the simulation time passes one of them. Asking if a model is
+ * active is then just an array look-up, and the active models can be listed (or
+ * followed with a {@link Listener}) without checking every model of the group.
+ * The simulation time must not go backwards (if it does, the schedule starts over).
+ */
+public class ActivationSchedule {
+
+	/**
+	 * Listener for changes of the active set
+	 */
+	public interface Listener {
+		/**
+		 * Called when a model becomes active or inactive. Every activation is
+		 * followed by a deactivation (at the same time if the whole active time
+		 * was passed at once, or when the schedule starts over).
+		 * @param model: the model
+		 * @param active: true if the model became active, false if inactive
+		 * @param time: the simulation time of the change
+		 */
+		public void activeChanged(MovementModel model, boolean active, double time);
+	}
+
+	private List<MovementModel> models = new ArrayList<MovementModel>();
+	private double[] starts = new double[16];
+	private double[] ends = new double[16];
+	/** position of each model in activeIds (-1 if not active) */
+	private int[] activePos = new int[16];
+	/** the ids of the active models, in no particular order */
+	private int[] activeIds = new int[16];
+	private int nrofActive;
+
+	private PriorityQueue<Change> queue = new PriorityQueue<Change>();
+	/** the time up to which the changes are done */
+	private double time = Double.NEGATIVE_INFINITY;
+	private List<Listener> listeners = new ArrayList<Listener>();
+
+	/**
+	 * Adds a model to the schedule
+	 * @param model: the model
+	 * @param start: the first time when the model is active
+	 * @param end: the last time when the model is active
+	 * @return the id of the model in the schedule
+	 */
+	public int add(MovementModel model, double start, double end) {
+		int id = models.size();
+		if (id == starts.length) {
+			starts = Arrays.copyOf(starts, id * 2);
+			ends = Arrays.copyOf(ends, id * 2);
+			activePos = Arrays.copyOf(activePos, id * 2);
+			activeIds = Arrays.copyOf(activeIds, id * 2);
+		}
+		models.add(model);
+		starts[id] = start;
+		ends[id] = end;
+		activePos[id] = -1;
+		queue.add(new Change(start, id, true));
+		return id;
+	}
+
+	/**
+	 * Adds a listener of changes of the active set
+	 * @param l: the listener
+	 */
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	/**
+	 * Does the changes that are due by a time
+	 * @param t: the simulation time
+	 */
+	public void advance(double t) {
+		if (t < time) {
+			reset(t);
+		}
+		time = t;
+
+		Change c = queue.peek();
+		while (c != null && c.isDue(t)) {
+			queue.poll();
+			if (c.activate) {
+				activePos[c.id] = nrofActive;
+				activeIds[nrofActive++] = c.id;
+				notify(c.id, true, t);
+				if (!(t > ends[c.id])) {
+					queue.add(new Change(ends[c.id], c.id, false));
+				}
+				else {
+					/** the whole active time was skipped: active and inactive again at once */
+					deactivate(c.id);
+					notify(c.id, false, t);
+				}
+			}
+			else {
+				deactivate(c.id);
+				notify(c.id, false, t);
+			}
+			c = queue.peek();
+		}
+	}
+
+	private void deactivate(int id) {
+		int pos = activePos[id];
+		int last = activeIds[--nrofActive];
+		activeIds[pos] = last;
+		activePos[last] = pos;
+		activePos[id] = -1;
+	}
+
+	private void notify(int id, boolean active, double t) {
+		for (Listener l : listeners) {
+			l.activeChanged(models.get(id), active, t);
+		}
+	}
+
+	/**
+	 * Starts over from the beginning: nothing active, all activations pending.
+	 * The active models are deactivated (and the listeners told) at a time.
+	 */
+	private void reset(double t) {
+		queue.clear();
+		while (nrofActive > 0) {
+			int id = activeIds[nrofActive - 1];
+			deactivate(id);
+			notify(id, false, t);
+		}
+		for (int id=0; id<models.size(); id++) {
+			queue.add(new Change(starts[id], id, true));
+		}
+		time = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Returns true if a model is active at a time
+	 * @param id: the id of the model (see {@link #add})
+	 * @param t: the simulation time
+	 * @return true if the model is active
+	 */
+	public boolean isActive(int id, double t) {
+		advance(t);
+		return activePos[id] >= 0;
+	}
+
+	/**
+	 * Returns the models that are active at the time of the last change
+	 * @return the active models (a read-only view that changes with the schedule)
+	 */
+	public List<MovementModel> getActive() {
+		return new AbstractList<MovementModel>() {
+			public MovementModel get(int i) {
+				if (i >= nrofActive) {
+					throw new IndexOutOfBoundsException("" + i);
+				}
+				return models.get(activeIds[i]);
+			}
+			public int size() {
+				return nrofActive;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of active models
+	 * @return the number of active models
+	 */
+	public int getNrofActive() {
+		return nrofActive;
+	}
+
+	/**
+	 * Returns the number of models in the schedule
+	 * @return the number of models
+	 */
+	public int getNrofModels() {
+		return models.size();
+	}
+
+	/**
+	 * Returns the time of the next change of the active set. An activation happens
+	 * at its time, a deactivation as soon as the time is past its time.
+	 * @return the time of the next change (infinity if there are no more)
+	 */
+	public double getNextChange() {
+		Change c = queue.peek();
+		return (c == null ? Double.POSITIVE_INFINITY : c.time);
+	}
+
+	/** An activation or deactivation of a model */
+	private static class Change implements Comparable<Change> {
+		private double time;
+		private int id;
+		private boolean activate;
+
+		public Change(double time, int id, boolean activate) {
+			this.time = time;
+			this.id = id;
+			this.activate = activate;
+		}
+
+		/** activations are due at their time, deactivations after it */
+		public boolean isDue(double t) {
+			return (activate ? t >= time : t > time);
+		}
+
+		/** by time, activations before deactivations, then by id */
+		public int compareTo(Change o) {
+			int r = Double.compare(time, o.time);
+			if (r != 0) {
+				return r;
+			}
+			if (activate != o.activate) {
+				return (activate ? -1 : 1);
+			}
+			return id - o.id;
+		}
+	}
+}
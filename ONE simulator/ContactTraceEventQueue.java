@@ -0,0 +1,70 @@
+package input;
+
+import java.io.File;
+
+import core.Settings;
+
+/**
+ * Event queue of the connection events of a raw contact trace
+ * (see {@link ContactTraceReader}), read while the simulation runs.
+ * Settings (in the namespace of the events, e.g. Events1):
+ * <ul>
+ * <li>filePath: the trace file</li>
+ * <li>format: {@value ContactTraceReader#FORMAT_PMTR} or {@value ContactTraceReader#FORMAT_ST_ANDREWS}</li>
+ * <li>baseTime: the time of the trace that is time 0 of the simulation (default 0)</li>
+ * <li>window: number of lines read ahead (default {@value ContactTraceReader#DEFAULT_WINDOW})</li>
+ * </ul>
+ */
+public class ContactTraceEventQueue implements EventQueue {
+	/** Contact trace file path -setting id ({@value}) */
+	public static final String PATH_SETTING = "filePath";
+	/** Format of the trace -setting id ({@value}) */
+	public static final String FORMAT_SETTING = "format";
+	/** Time of the trace that is time 0 of the simulation -setting id ({@value}) */
+	public static final String BASE_TIME_SETTING = "baseTime";
+	/** Number of lines read ahead -setting id ({@value}) */
+	public static final String WINDOW_SETTING = "window";
+
+	private ContactTraceReader reader;
+	/** the next event (null if there are no more) */
+	private ExternalEvent next;
+
+	/**
+	 * Creates a new queue of the events of a contact trace
+	 * @param s: the settings of the queue
+	 */
+	public ContactTraceEventQueue(Settings s) {
+		double baseTime = 0;
+		if (s.contains(BASE_TIME_SETTING)) {
+			baseTime = s.getDouble(BASE_TIME_SETTING);
+		}
+		int window = ContactTraceReader.DEFAULT_WINDOW;
+		if (s.contains(WINDOW_SETTING)) {
+			window = s.getInt(WINDOW_SETTING);
+		}
+		reader = new ContactTraceReader(new File(s.getSetting(PATH_SETTING)),
+			s.getSetting(FORMAT_SETTING), baseTime, window);
+		next = reader.next();
+	}
+
+	public ExternalEvent nextEvent() {
+		if (next == null) {
+			return new ExternalEvent(Double.MAX_VALUE);
+		}
+		ExternalEvent e = next;
+		next = reader.next();
+		return e;
+	}
+
+	public double nextEventsTime() {
+		return (next == null ? Double.MAX_VALUE : next.getTime());
+	}
+
+	/**
+	 * Returns the reader of the trace
+	 * @return the reader
+	 */
+	public ContactTraceReader getReader() {
+		return reader;
+	}
+}
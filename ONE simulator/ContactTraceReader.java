@@ -0,0 +1,232 @@
+package input;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import core.SettingsError;
+
+/**
+ * Reads a raw contact trace (one line per contact of two devices, with its start
+ * and end time) as connection events, while the simulation runs, without
+ * converting it to a ONE connection trace file first. Supported formats:
+ * <ul>
+ * <li>{@value #FORMAT_PMTR}: "id1 id2 start end" (CRAWDAD unimi/pmtr). Lines starting with # are skipped.</li>
+ * <li>{@value #FORMAT_ST_ANDREWS}: "id1, id2, start, end, ..." (CRAWDAD st_andrews/sassy).
+ * The header line (starting with "device") is skipped.</li>
+ * </ul>
+ * The device IDs are mapped to host addresses 0, 1, 2... in the order they
+ * first appear in the file, and the base time is subtracted from all times.
+ * A contact gives a connection up event at its start and a down event at its end
+ * (contacts that don't last are skipped). The events are given in time order
+ * by merging the starts (kept in a window of lines read ahead) with the ends of
+ * the contacts that are up, so the memory used depends on the window and on the
+ * contacts that are up at the same time, not on the length of the trace.
+ * The file must be sorted by start time, or out of order by less than the window.
+ * Events of the same time are given in the order of their lines (up before down).
+ * Files ending with .gz are decompressed while they are read.
+ */
+public class ContactTraceReader implements ExternalEventsReader {
+	/** Format of the CRAWDAD unimi/pmtr trace ({@value}) */
+	public static final String FORMAT_PMTR = "pmtr";
+	/** Format of the CRAWDAD st_andrews/sassy trace ({@value}) */
+	public static final String FORMAT_ST_ANDREWS = "standrews";
+	/** Default number of lines read ahead */
+	public static final int DEFAULT_WINDOW = 1024;
+
+	private File file;
+	private boolean stAndrews;
+	private double baseTime;
+	private int window;
+	private BufferedReader reader;
+	private int lineNo;
+
+	/** device ID -> host address */
+	private Map<String, Integer> addresses = new HashMap<String, Integer>();
+	/** contacts read, whose up events haven't been given */
+	private PriorityQueue<Contact> starts = new PriorityQueue<Contact>();
+	/** contacts up, whose down events haven't been given */
+	private PriorityQueue<Contact> ends = new PriorityQueue<Contact>();
+	/** number of contacts read */
+	private long nrofContacts;
+	/** time of the last event given */
+	private double lastTime = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Opens a contact trace
+	 * @param file: the trace file
+	 * @param format: {@value #FORMAT_PMTR} or {@value #FORMAT_ST_ANDREWS}
+	 * @param baseTime: the time of the trace that is time 0 of the simulation
+	 * @param window: number of lines read ahead (how much the file can be out of order)
+	 */
+	public ContactTraceReader(File file, String format, double baseTime, int window) {
+		if (format.equalsIgnoreCase(FORMAT_ST_ANDREWS)) {
+			stAndrews = true;
+		}
+		else if (!format.equalsIgnoreCase(FORMAT_PMTR)) {
+			throw new SettingsError("Unknown contact trace format " + format + ". It must be either \"" +
+				FORMAT_PMTR + "\" or \"" + FORMAT_ST_ANDREWS + "\"");
+		}
+		if (window < 1) {
+			throw new SettingsError("The window of a contact trace must be at least 1");
+		}
+		this.file = file;
+		this.baseTime = baseTime;
+		this.window = window;
+		try {
+			reader = ExternalMapFiles.openReader(file, 1);
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't read contact trace file " + file +
+				" (cause: " + ioe.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Returns the next connection event
+	 * @return the event, or null if there are no more
+	 */
+	public ConnectionEvent next() {
+		while (reader != null && starts.size() < window) {
+			readContact();
+		}
+		Contact up = starts.peek();
+		Contact down = ends.peek();
+		if (up == null && down == null) {
+			return null;
+		}
+		ConnectionEvent e;
+		if (down == null || (up != null && up.compareTo(down) < 0)) {
+			starts.poll();
+			up.up = false;
+			ends.add(up);
+			e = new ConnectionEvent(up.from, up.to, true, up.start);
+		}
+		else {
+			ends.poll();
+			e = new ConnectionEvent(down.from, down.to, false, down.end);
+		}
+		lastTime = e.getTime();
+		return e;
+	}
+
+	public List<ExternalEvent> readEvents(int nrof) {
+		List<ExternalEvent> events = new ArrayList<ExternalEvent>(Math.min(nrof, window));
+		for (int i=0; i<nrof; i++) {
+			ConnectionEvent e = next();
+			if (e == null) {
+				break;
+			}
+			events.add(e);
+		}
+		return events;
+	}
+
+	/** reads the next contact of the file (or closes the file at its end) */
+	private void readContact() {
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				lineNo++;
+				if (line.trim().length() > 0 && !line.startsWith(stAndrews ? "device" : "#")) {
+					addContact(line);
+					return;
+				}
+				line = reader.readLine();
+			}
+			close();
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't read contact trace file " + file +
+				" (cause: " + ioe.getMessage() + ")");
+		}
+	}
+
+	/** parses a line and adds its contact, if it lasts */
+	private void addContact(String line) {
+		String[] fields = (stAndrews ? line.split(",") : line.trim().split("\\s+"));
+		if (fields.length < 4) {
+			throw new SettingsError("Invalid line " + lineNo + " of contact trace " + file + ":\n" + line);
+		}
+		double start, end;
+		try {
+			start = Double.parseDouble(fields[2].trim()) - baseTime;
+			end = Double.parseDouble(fields[3].trim()) - baseTime;
+		} catch (NumberFormatException nfe) {
+			throw new SettingsError("Invalid time in line " + lineNo + " of contact trace " + file + ":\n" + line);
+		}
+		int from = getAddress(fields[0].trim());
+		int to = getAddress(fields[1].trim());
+		long order = nrofContacts++;
+
+		if (end - start > 0) {
+			if (start < lastTime) {
+				throw new SettingsError("Contact trace " + file + " is out of order by more than " + window +
+					" lines at line " + lineNo + ". Sort it by start time or use a bigger window.");
+			}
+			starts.add(new Contact(from, to, start, end, order));
+		}
+	}
+
+	/** the host address of a device (a new one for a new device) */
+	private int getAddress(String device) {
+		Integer address = addresses.get(device);
+		if (address == null) {
+			address = addresses.size();
+			addresses.put(device, address);
+		}
+		return address;
+	}
+
+	/**
+	 * Returns the host addresses of the devices read so far
+	 * @return device ID -> host address
+	 */
+	public Map<String, Integer> getAddresses() {
+		return addresses;
+	}
+
+	public void close() {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException ioe) {
+				/** nothing more to read anyway */
+			}
+			reader = null;
+		}
+	}
+
+	/** A contact, ordered by the time of its next event and then by its line */
+	private static class Contact implements Comparable<Contact> {
+		private int from, to;
+		private double start, end;
+		private long order;
+		/** true while the up event hasn't been given */
+		private boolean up = true;
+
+		public Contact(int from, int to, double start, double end, long order) {
+			this.from = from;
+			this.to = to;
+			this.start = start;
+			this.end = end;
+			this.order = order;
+		}
+
+		private double time() {
+			return (up ? start : end);
+		}
+
+		/** events of the same time in the order of their lines, up before down */
+		public int compareTo(Contact o) {
+			int r = Double.compare(time(), o.time());
+			if (r != 0) {
+				return r;
+			}
+			return Long.compare(2 * order + (up ? 0 : 1), 2 * o.order + (o.up ? 0 : 1));
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package movement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import core.Coord;
+import core.DTNHost;
+import core.SettingsError;
+import core.SimClock;
+import core.SimError;
+import core.SimScenario;
+import core.UpdateListener;
+
+/**
+ * Checkpoints of the replicas of an {@link ExternalMapMovement} group. Every
+ * checkpoint interval (of simulated time) the state of all the replicas is
+ * written to a binary file: their positions on the routes, their timers, speeds
+ * and wait times, their last and next stops and what is left of their current
+ * paths. A run can then start from the file instead of from time 0: each new
+ * replica gets the state of the replica of the same number, and the simulation
+ * clock is set to the time of the checkpoint. Only the movement is restored
+ * (see {@link ExternalMapMovement#EMM_RESTORE_S}).
+ * The checkpoints are written after the updates of the world (as an
+ * {@link UpdateListener}), when all the nodes have moved.
+ * One instance is shared by the prototype and all its replicas.
+ */
+public class ExternalMapCheckpoint implements UpdateListener {
+	/** Magic number at the beginning of a checkpoint file ("EMMS") */
+	private static final int MAGIC = 0x454D4D53;
+	/** Version of the checkpoint file format */
+	private static final int VERSION = 1;
+
+	private File file;
+	/** simulated time between checkpoints (0 for no checkpoints) */
+	private double interval;
+	private double nextSave;
+	/** true when the checkpoints follow the updates of the world */
+	private boolean started;
+	/** the replicas of the group, in the order they were created */
+	private List<ExternalMapMovement> models = new ArrayList<ExternalMapMovement>();
+
+	/** the states read from the file, for the replicas (null if not restoring) */
+	private List<State> restored;
+	private double restoredTime;
+
+	/**
+	 * Creates the checkpoints of a group
+	 * @param file: the checkpoint file
+	 * @param interval: simulated time between checkpoints (0 for none)
+	 */
+	public ExternalMapCheckpoint(File file, double interval) {
+		if (interval < 0) {
+			throw new SettingsError("Checkpoint interval can't be negative");
+		}
+		this.file = file;
+		this.interval = interval;
+		this.nextSave = interval;
+	}
+
+	/**
+	 * Adds a replica
+	 * @param model: the replica
+	 * @return the number of the replica in the checkpoints
+	 */
+	public int add(ExternalMapMovement model) {
+		models.add(model);
+		return models.size() - 1;
+	}
+
+	/**
+	 * Starts following the updates of the world, if checkpoints are written.
+	 * Called when the simulation runs, since the models are created while the
+	 * scenario is being created.
+	 */
+	public void start() {
+		if (!started && interval > 0) {
+			started = true;
+			SimScenario.getInstance().addUpdateListener(this);
+		}
+	}
+
+	/**
+	 * Writes a checkpoint if one is due after an update of the world
+	 * @param hosts: the hosts of the world
+	 */
+	public void updated(List<DTNHost> hosts) {
+		update(SimClock.getTime());
+	}
+
+	/**
+	 * Writes a checkpoint if one is due by a time
+	 * @param time: the simulation time
+	 */
+	public void update(double time) {
+		if (interval > 0 && time >= nextSave) {
+			while (nextSave <= time) {
+				nextSave += interval;
+			}
+			save(time);
+		}
+	}
+
+	/**
+	 * Writes the state of all the replicas at a time (replacing the last checkpoint)
+	 * @param time: the simulation time
+	 */
+	public void save(double time) {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeDouble(time);
+				out.writeInt(models.size());
+				for (ExternalMapMovement m : models) {
+					m.getState(time).write(out);
+				}
+			} finally {
+				out.close();
+			}
+			/** replaces the last checkpoint at once: a crash leaves either of them */
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			tmp.delete();
+			throw new SimError("Couldn't write checkpoint " + file + " (cause: " + ioe.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Reads the states of the replicas from the checkpoint file. The replicas
+	 * created after this get them, in order.
+	 * @return the time of the checkpoint
+	 */
+	public double load() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new SettingsError("File " + file + " is not a checkpoint of this version");
+				}
+				restoredTime = in.readDouble();
+				int n = in.readInt();
+				restored = new ArrayList<State>(Math.min(n, 1 << 16));
+				for (int i=0; i<n; i++) {
+					restored.add(State.read(in));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException eof) {
+			throw new SettingsError("Checkpoint " + file + " is broken");
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't read checkpoint " + file + " (cause: " + ioe.getMessage() + ")");
+		}
+		nextSave = restoredTime + interval;
+		return restoredTime;
+	}
+
+	/**
+	 * Returns the state read for a replica
+	 * @param id: the number of the replica (see {@link #add})
+	 * @return the state, or null if not restoring
+	 */
+	public State getRestored(int id) {
+		if (restored == null) {
+			return null;
+		}
+		if (id >= restored.size()) {
+			throw new SettingsError("Checkpoint " + file + " has " + restored.size() +
+				" nodes, but the group has more. Use the settings of the run that wrote it.");
+		}
+		return restored.get(id);
+	}
+
+	/**
+	 * Returns the time of the checkpoint read
+	 * @return the time
+	 */
+	public double getRestoredTime() {
+		return restoredTime;
+	}
+
+	/**
+	 * State of a replica at a checkpoint. A replica that is moving is saved at
+	 * the point of its path where it is at the time, with the rest of the path.
+	 */
+	static class State {
+		String nodeID;
+		int[] position;
+		double nextMoveTime, nextCheck;
+		double waitTime, speed, availTime, stopWait;
+		/** the last and the next stop (null if none yet) */
+		Coord lastStop, nextStop;
+		/** where the node is and the rest of its path (null before the first path) */
+		Coord location;
+		List<Coord> path;
+		double pathSpeed;
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(nodeID);
+			for (int p : position) {
+				out.writeInt(p);
+			}
+			out.writeDouble(nextMoveTime);
+			out.writeDouble(nextCheck);
+			out.writeDouble(waitTime);
+			out.writeDouble(speed);
+			out.writeDouble(availTime);
+			out.writeDouble(stopWait);
+			writeCoord(out, lastStop);
+			writeCoord(out, nextStop);
+			writeCoord(out, location);
+			if (path == null) {
+				out.writeInt(-1);
+				return;
+			}
+			out.writeInt(path.size());
+			out.writeDouble(pathSpeed);
+			for (Coord c : path) {
+				writeCoord(out, c);
+			}
+		}
+
+		static State read(DataInputStream in) throws IOException {
+			State s = new State();
+			s.nodeID = in.readUTF();
+			s.position = new int[] {in.readInt(), in.readInt(), in.readInt()};
+			s.nextMoveTime = in.readDouble();
+			s.nextCheck = in.readDouble();
+			s.waitTime = in.readDouble();
+			s.speed = in.readDouble();
+			s.availTime = in.readDouble();
+			s.stopWait = in.readDouble();
+			s.lastStop = readCoord(in);
+			s.nextStop = readCoord(in);
+			s.location = readCoord(in);
+			int n = in.readInt();
+			if (n >= 0) {
+				s.pathSpeed = in.readDouble();
+				s.path = new ArrayList<Coord>(Math.min(n, 1 << 16));
+				for (int i=0; i<n; i++) {
+					s.path.add(readCoord(in));
+				}
+			}
+			return s;
+		}
+
+		private static void writeCoord(DataOutputStream out, Coord c) throws IOException {
+			out.writeBoolean(c != null);
+			if (c != null) {
+				out.writeDouble(c.getX());
+				out.writeDouble(c.getY());
+			}
+		}
+
+		private static Coord readCoord(DataInputStream in) throws IOException {
+			if (!in.readBoolean()) {
+				return null;
+			}
+			return new Coord(in.readDouble(), in.readDouble());
+		}
+	}
+}
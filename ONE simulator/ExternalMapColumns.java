@@ -0,0 +1,542 @@
+package input;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column store for the samples of an external movement file.
+ * Every sample is kept as primitives: an interned node id, the time in seconds
+ * and the x, y coordinates. No per-sample objects are created.
+ */
+public class ExternalMapColumns {
+	/** Initial capacity of the columns */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** interned node id of each sample */
+	private int[] ids;
+	/** time of each sample (seconds) */
+	private double[] times;
+	/** x coordinate of each sample */
+	private double[] xs;
+	/** y coordinate of each sample */
+	private double[] ys;
+	/** number of samples */
+	private int size;
+
+	/** node id string -> interned id */
+	private Map<String, Integer> idIndex = new HashMap<String, Integer>();
+	/** interned id -> node id string */
+	private List<String> idNames = new ArrayList<String>();
+
+	/**
+	 * Creates a new, empty column store
+	 */
+	public ExternalMapColumns() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates a new, empty column store
+	 * @param capacity: initial number of samples that fit without growing
+	 */
+	public ExternalMapColumns(int capacity) {
+		capacity = Math.max(capacity, 16);
+		ids = new int[capacity];
+		times = new double[capacity];
+		xs = new double[capacity];
+		ys = new double[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Returns the interned id of a node id string. New ids get the next free number.
+	 * @param nodeID: the node id as read from the file
+	 * @return the interned id
+	 */
+	public int internId(String nodeID) {
+		Integer id = idIndex.get(nodeID);
+		if (id == null) {
+			id = idNames.size();
+			idIndex.put(nodeID, id);
+			idNames.add(nodeID);
+		}
+		return id;
+	}
+
+	/**
+	 * Adds a sample
+	 * @param id: interned node id (see {@link #internId(String)})
+	 * @param time: the time of the sample in seconds
+	 * @param x, y: the location of the sample
+	 */
+	public void add(int id, double time, double x, double y) {
+		if (size == ids.length) {
+			grow();
+		}
+		ids[size] = id;
+		times[size] = time;
+		xs[size] = x;
+		ys[size] = y;
+		size++;
+	}
+
+	/**
+	 * Removes all samples. The interned node ids are kept.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds all samples of another column store, after the samples of this one.
+	 * Node ids new to this store are interned in the order they appear in the other store.
+	 * @param other: the samples to add
+	 */
+	public void append(ExternalMapColumns other) {
+		int[] idMap = new int[other.getNrofIds()];
+		for (int i=0; i<idMap.length; i++) {
+			idMap[i] = internId(other.getIdName(i));
+		}
+		for (int i=0; i<other.size(); i++) {
+			add(idMap[other.ids[i]], other.times[i], other.xs[i], other.ys[i]);
+		}
+	}
+
+	/** Doubles the capacity of all columns */
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		times = Arrays.copyOf(times, capacity);
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+	}
+
+	/**
+	 * Returns the rank of every interned id when the ids are sorted as strings
+	 * @return array where position i holds the rank of the interned id i
+	 */
+	public int[] getIdRanks() {
+		return getIdRanks(ExternalMapIds.TEXT_ORDER);
+	}
+
+	/**
+	 * Returns the rank of every interned id when the ids are sorted in an order
+	 * @param order: the order of the ids (see {@link ExternalMapIds})
+	 * @return array where position i holds the rank of the interned id i
+	 */
+	public int[] getIdRanks(Comparator<String> order) {
+		ExternalMapIds dictionary = new ExternalMapIds(idNames, order);
+		int[] ranks = new int[idNames.size()];
+		for (int i=0; i<ranks.length; i++) {
+			ranks[i] = dictionary.getIndex(idNames.get(i));
+		}
+		return ranks;
+	}
+
+	/**
+	 * Sorts the samples by node and then by time, in one pass over primitive keys,
+	 * and drops duplicate samples (same node, time and location).
+	 * Samples of the same node at the same time but at different locations are kept.
+	 * @param idRanks: the order of the nodes (see {@link #getIdRanks()})
+	 */
+	public void sortByIdAndTime(int[] idRanks) {
+		int[] order = new int[size];
+		for (int i=0; i<size; i++) {
+			order[i] = i;
+		}
+		mergeSort(order, new int[size], 0, size, idRanks);
+
+		int[] nIds = new int[Math.max(size, 16)];
+		double[] nTimes = new double[nIds.length];
+		double[] nXs = new double[nIds.length];
+		double[] nYs = new double[nIds.length];
+		int n = 0;
+		for (int i=0; i<size; i++) {
+			int row = order[i];
+			if (n > 0 && nIds[n-1] == ids[row] && nTimes[n-1] == times[row]
+				&& nXs[n-1] == xs[row] && nYs[n-1] == ys[row]) {
+				continue; /* dumping duplicates */
+			}
+			nIds[n] = ids[row];
+			nTimes[n] = times[row];
+			nXs[n] = xs[row];
+			nYs[n] = ys[row];
+			n++;
+		}
+		ids = nIds;
+		times = nTimes;
+		xs = nXs;
+		ys = nYs;
+		size = n;
+	}
+
+	/**
+	 * Merges column stores that are each sorted by node and time (see {@link #sortByIdAndTime})
+	 * into one sorted store in a single k-way pass, dropping duplicates. The result is the
+	 * same as appending the stores in order and sorting them. Runs of samples that come
+	 * from the same store (as in shards of different times) cost one comparison per sample.
+	 * The merged order is found first, and then the merged columns are built one at a time,
+	 * freeing the same column of the stores. So the memory needed besides the stores is
+	 * one column and an int per sample, not a second copy of the samples. The stores are
+	 * left empty.
+	 * @param sorted: the sorted stores (e.g. one for each file), in order
+	 * @return the merged samples
+	 */
+	public static ExternalMapColumns merge(List<ExternalMapColumns> sorted) {
+		return merge(sorted, ExternalMapIds.TEXT_ORDER);
+	}
+
+	/**
+	 * Merges column stores that are each sorted by node (in an order) and time
+	 * @param sorted: the sorted stores (e.g. one for each file), in order
+	 * @param order: the order of the node ids the stores are sorted by
+	 * @return the merged samples
+	 * @see #merge(List)
+	 */
+	public static ExternalMapColumns merge(List<ExternalMapColumns> sorted, Comparator<String> order) {
+		int k = sorted.size();
+		/** the samples of store s are numbered from offsets[s] */
+		int[] offsets = new int[k + 1];
+		for (int s=0; s<k; s++) {
+			offsets[s+1] = offsets[s] + sorted.get(s).size;
+		}
+		ExternalMapColumns merged = new ExternalMapColumns(0);
+		int[][] idMaps = new int[k][];
+		for (int s=0; s<k; s++) {
+			ExternalMapColumns c = sorted.get(s);
+			idMaps[s] = new int[c.getNrofIds()];
+			for (int i=0; i<idMaps[s].length; i++) {
+				idMaps[s][i] = merged.internId(c.getIdName(i));
+			}
+		}
+		int[] ranks = merged.getIdRanks(order);
+		Heads heads = new Heads(sorted, idMaps, ranks);
+
+		/** the merged order of the samples, by their numbers */
+		int[] merge = new int[offsets[k]];
+		int n = 0;
+		ExternalMapColumns last = null;
+		int lastRow = 0;
+		int lastId = -1;
+		while (heads.size() > 0) {
+			int s = heads.first();
+			ExternalMapColumns c = sorted.get(s);
+			int next = heads.second();
+			do {
+				int row = heads.pos[s]++;
+				int id = idMaps[s][c.ids[row]];
+				if (n > 0 && lastId == id && last.times[lastRow] == c.times[row]
+					&& last.xs[lastRow] == c.xs[row] && last.ys[lastRow] == c.ys[row]) {
+					continue; /* dumping duplicates */
+				}
+				merge[n++] = offsets[s] + row;
+				last = c;
+				lastRow = row;
+				lastId = id;
+			} while (heads.pos[s] < c.size && (next < 0 || heads.compare(s, next) < 0));
+			heads.advanced();
+		}
+
+		int capacity = Math.max(n, 16);
+		merged.ids = new int[capacity];
+		for (int i=0; i<n; i++) {
+			int s = storeOf(offsets, merge[i]);
+			merged.ids[i] = idMaps[s][sorted.get(s).ids[merge[i] - offsets[s]]];
+		}
+		for (ExternalMapColumns c : sorted) {
+			c.ids = null;
+		}
+		merged.times = new double[capacity];
+		for (int i=0; i<n; i++) {
+			int s = storeOf(offsets, merge[i]);
+			merged.times[i] = sorted.get(s).times[merge[i] - offsets[s]];
+		}
+		for (ExternalMapColumns c : sorted) {
+			c.times = null;
+		}
+		merged.xs = new double[capacity];
+		for (int i=0; i<n; i++) {
+			int s = storeOf(offsets, merge[i]);
+			merged.xs[i] = sorted.get(s).xs[merge[i] - offsets[s]];
+		}
+		for (ExternalMapColumns c : sorted) {
+			c.xs = null;
+		}
+		merged.ys = new double[capacity];
+		for (int i=0; i<n; i++) {
+			int s = storeOf(offsets, merge[i]);
+			merged.ys[i] = sorted.get(s).ys[merge[i] - offsets[s]];
+		}
+		merged.size = n;
+
+		for (ExternalMapColumns c : sorted) {
+			c.ids = new int[16];
+			c.times = new double[16];
+			c.xs = new double[16];
+			c.ys = new double[16];
+			c.size = 0;
+		}
+		return merged;
+	}
+
+	/** the store of a sample number: the last store whose samples start at or before it */
+	private static int storeOf(int[] offsets, int sample) {
+		int lo = 0;
+		int hi = offsets.length - 2;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (offsets[mid] <= sample) {
+				lo = mid;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/** Heap of the stores being merged, by their next samples (and their order) */
+	private static class Heads {
+		private List<ExternalMapColumns> stores;
+		/** node ranks of the interned ids of each store */
+		private int[][] ranks;
+		/** next row of each store */
+		private int[] pos;
+		private int[] heap;
+		private int n;
+
+		public Heads(List<ExternalMapColumns> stores, int[][] idMaps, int[] mergedRanks) {
+			this.stores = stores;
+			this.ranks = new int[stores.size()][];
+			this.pos = new int[stores.size()];
+			this.heap = new int[stores.size()];
+			for (int s=0; s<stores.size(); s++) {
+				ranks[s] = new int[idMaps[s].length];
+				for (int i=0; i<idMaps[s].length; i++) {
+					ranks[s][i] = mergedRanks[idMaps[s][i]];
+				}
+				if (stores.get(s).size > 0) {
+					heap[n++] = s;
+					up(n - 1);
+				}
+			}
+		}
+
+		public int size() {
+			return n;
+		}
+
+		/** the store with the smallest next sample */
+		public int first() {
+			return heap[0];
+		}
+
+		/** the store with the second smallest next sample (-1 if none) */
+		public int second() {
+			if (n < 2) {
+				return -1;
+			}
+			return (n == 2 || compare(heap[1], heap[2]) < 0 ? heap[1] : heap[2]);
+		}
+
+		/** puts the first store back in place after taking samples from it */
+		public void advanced() {
+			if (pos[heap[0]] == stores.get(heap[0]).size) {
+				heap[0] = heap[--n];
+			}
+			down(0);
+		}
+
+		/** compares the next samples of two stores by node rank, time, x and y, then by store */
+		public int compare(int a, int b) {
+			ExternalMapColumns ca = stores.get(a);
+			ExternalMapColumns cb = stores.get(b);
+			int ra = pos[a];
+			int rb = pos[b];
+			int r = ranks[a][ca.ids[ra]] - ranks[b][cb.ids[rb]];
+			if (r != 0) {
+				return r;
+			}
+			r = Double.compare(ca.times[ra], cb.times[rb]);
+			if (r != 0) {
+				return r;
+			}
+			r = Double.compare(ca.xs[ra], cb.xs[rb]);
+			if (r != 0) {
+				return r;
+			}
+			r = Double.compare(ca.ys[ra], cb.ys[rb]);
+			return (r != 0 ? r : a - b);
+		}
+
+		private void up(int i) {
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (compare(heap[i], heap[parent]) >= 0) {
+					return;
+				}
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void down(int i) {
+			while (true) {
+				int min = i;
+				int l = 2 * i + 1;
+				if (l < n && compare(heap[l], heap[min]) < 0) {
+					min = l;
+				}
+				if (l + 1 < n && compare(heap[l+1], heap[min]) < 0) {
+					min = l + 1;
+				}
+				if (min == i) {
+					return;
+				}
+				swap(i, min);
+				i = min;
+			}
+		}
+
+		private void swap(int i, int j) {
+			int t = heap[i];
+			heap[i] = heap[j];
+			heap[j] = t;
+		}
+	}
+
+	/**
+	 * Keeps only some of the samples, in their order
+	 * @param keep: true for each sample to keep
+	 */
+	public void retain(boolean[] keep) {
+		int n = 0;
+		for (int i=0; i<size; i++) {
+			if (keep[i]) {
+				ids[n] = ids[i];
+				times[n] = times[i];
+				xs[n] = xs[i];
+				ys[n] = ys[i];
+				n++;
+			}
+		}
+		size = n;
+	}
+
+	/** Compares two samples by node rank, time, x and y */
+	private int compareRows(int a, int b, int[] idRanks) {
+		int r = idRanks[ids[a]] - idRanks[ids[b]];
+		if (r != 0) {
+			return r;
+		}
+		r = Double.compare(times[a], times[b]);
+		if (r != 0) {
+			return r;
+		}
+		r = Double.compare(xs[a], xs[b]);
+		if (r != 0) {
+			return r;
+		}
+		return Double.compare(ys[a], ys[b]);
+	}
+
+	/** Stable merge sort of the rows in order[from, to) */
+	private void mergeSort(int[] order, int[] tmp, int from, int to, int[] idRanks) {
+		if (to - from < 16) { /* insertion sort for short ranges */
+			for (int i=from+1; i<to; i++) {
+				int row = order[i];
+				int j = i - 1;
+				while (j >= from && compareRows(order[j], row, idRanks) > 0) {
+					order[j+1] = order[j];
+					j--;
+				}
+				order[j+1] = row;
+			}
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+		mergeSort(order, tmp, from, mid, idRanks);
+		mergeSort(order, tmp, mid, to, idRanks);
+		if (compareRows(order[mid-1], order[mid], idRanks) <= 0) {
+			return; /* already in order */
+		}
+
+		System.arraycopy(order, from, tmp, from, to - from);
+		int i = from;
+		int j = mid;
+		for (int k=from; k<to; k++) {
+			if (j >= to || (i < mid && compareRows(tmp[i], tmp[j], idRanks) <= 0)) {
+				order[k] = tmp[i++];
+			}
+			else {
+				order[k] = tmp[j++];
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of samples
+	 * @return the number of samples
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the interned node id of a sample
+	 * @param i: index of the sample
+	 * @return the interned node id
+	 */
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * Returns the time of a sample
+	 * @param i: index of the sample
+	 * @return the time in seconds
+	 */
+	public double getTime(int i) {
+		return times[i];
+	}
+
+	/**
+	 * Returns the x coordinate of a sample
+	 * @param i: index of the sample
+	 * @return the x coordinate
+	 */
+	public double getX(int i) {
+		return xs[i];
+	}
+
+	/**
+	 * Returns the y coordinate of a sample
+	 * @param i: index of the sample
+	 * @return the y coordinate
+	 */
+	public double getY(int i) {
+		return ys[i];
+	}
+
+	/**
+	 * Returns the number of different node ids
+	 * @return the number of different node ids
+	 */
+	public int getNrofIds() {
+		return idNames.size();
+	}
+
+	/**
+	 * Returns the node id string of an interned id
+	 * @param id: the interned id
+	 * @return the node id as read from the file
+	 */
+	public String getIdName(int id) {
+		return idNames.get(id);
+	}
+}
@@ -0,0 +1,78 @@
+package input;
+
+/**
+ * JFR events of the external map movement: the phases of loading a file
+ * (ExternalMapMovement.LoadPhase), the setPath calls (ExternalMapMovement.SetPath)
+ * and the periodic summaries (ExternalMapMovement.Summary).
+ * This class doesn't use jdk.jfr: the events are recorded by
+ * {@link ExternalMapJfrEvents}, which is loaded only when the JVM has JFR
+ * (Java 11, or 8u262). Without it, the events are simply not recorded.
+ */
+public class ExternalMapEvents {
+	/** the events of this JVM */
+	private static final ExternalMapEvents EVENTS = create();
+
+	/**
+	 * Returns the events of this JVM
+	 * @return the JFR events, or events that record nothing if there is no JFR
+	 */
+	public static ExternalMapEvents get() {
+		return EVENTS;
+	}
+
+	private static ExternalMapEvents create() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (ExternalMapEvents)Class.forName("input.ExternalMapJfrEvents")
+				.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			return new ExternalMapEvents();
+		} catch (LinkageError e) {
+			return new ExternalMapEvents();
+		}
+	}
+
+	/**
+	 * Starts the event of a loading phase
+	 * @return the event, to give to {@link #endLoadPhase} (null if not recorded)
+	 */
+	public Object beginLoadPhase() {
+		return null;
+	}
+
+	/**
+	 * Ends the event of a loading phase and records it
+	 * @param event: the event from {@link #beginLoadPhase}
+	 * @param file: the file being loaded
+	 * @param phase: name of the phase
+	 * @param rows: number of rows (or other items) the phase handled
+	 */
+	public void endLoadPhase(Object event, String file, String phase, long rows) {
+	}
+
+	/**
+	 * Records a setPath call
+	 * @param node: the node whose path was set
+	 * @param setPathNanos: how long the call took
+	 * @param pathNanos: how long finding the shortest path took
+	 * @param waypoints: number of waypoints of the path
+	 * @param distance: length of the path
+	 */
+	public void setPath(String node, long setPathNanos, long pathNanos, int waypoints, double distance) {
+	}
+
+	/**
+	 * Records a summary of the counters of a group
+	 * @param group: name of the group
+	 * @param simTime: the simulated time
+	 * @param activeNodes, inactiveNodes: the numbers of active and inactive nodes
+	 * @param setPathCalls: number of setPath calls
+	 * @param zeroDistanceMoves: number of moves to the same place
+	 * @param setPathMean, setPathP99: mean and 99th percentile of the setPath time (nanoseconds)
+	 * @param pathMean, pathP99: mean and 99th percentile of the shortest path time (nanoseconds)
+	 */
+	public void summary(String group, double simTime, int activeNodes, int inactiveNodes,
+		long setPathCalls, long zeroDistanceMoves, long setPathMean, long setPathP99,
+		long pathMean, long pathP99) {
+	}
+}
@@ -0,0 +1,136 @@
+package input;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import core.SettingsError;
+
+/**
+ * The files of an external movement file setting. The setting can be one file,
+ * or a comma separated list of files, directories (all the files in them) and
+ * glob patterns of file names (e.g. traces/day-*.csv or traces/day-{1,2}.csv:
+ * commas inside braces are part of the pattern), for traces that are
+ * written in shards (one file per day, per collector...). The files of a
+ * directory or a pattern are taken in the order of their names.
+ * Files whose names end with {@value ExternalMapGzip#EXTENSION} are decompressed
+ * while they are read (see {@link ExternalMapGzip}).
+ */
+public class ExternalMapFiles {
+	/** Separator of the files in the setting */
+	public static final String SEPARATOR = ",";
+
+	/**
+	 * Returns the files of a setting, in order
+	 * @param fileNames: the setting
+	 * @return the files
+	 */
+	public static List<File> list(String fileNames) {
+		List<File> files = new ArrayList<File>();
+		for (String name : split(fileNames)) {
+			name = name.trim();
+			if (name.length() == 0) {
+				continue;
+			}
+			File file = new File(name);
+			if (file.isDirectory()) {
+				files.addAll(listDir(file, null, name));
+			}
+			else if (isPattern(file.getName())) {
+				File dir = file.getParentFile();
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + file.getName());
+				files.addAll(listDir(dir == null ? new File(".") : dir, matcher, name));
+			}
+			else {
+				files.add(file);
+			}
+		}
+		if (files.isEmpty()) {
+			throw new SettingsError("No ExternalMapRoute-data files in " + fileNames);
+		}
+		return files;
+	}
+
+	/**
+	 * Returns true if a setting names more than one file (or may do so)
+	 * @param fileNames: the setting
+	 * @return true if the setting is a list, a directory or a pattern
+	 */
+	public static boolean isMultiple(String fileNames) {
+		File file = new File(fileNames.trim());
+		return fileNames.contains(SEPARATOR) || file.isDirectory() || isPattern(file.getName());
+	}
+
+	/**
+	 * Opens a file for reading its lines, decompressing it if it is compressed
+	 * @param file: the file
+	 * @param threads: the number of threads decompressing the file
+	 * @return reader of the lines of the file
+	 * @throws IOException if the file can't be opened
+	 */
+	public static BufferedReader openReader(File file, int threads) throws IOException {
+		if (ExternalMapGzip.isCompressed(file)) {
+			return new BufferedReader(new InputStreamReader(ExternalMapGzip.open(file, threads)));
+		}
+		return new BufferedReader(new FileReader(file));
+	}
+
+	/** the names of a setting, split at the separators that are not inside braces */
+	private static List<String> split(String fileNames) {
+		List<String> names = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for (int i=0; i<fileNames.length(); i++) {
+			char c = fileNames.charAt(i);
+			if (c == '{') {
+				depth++;
+			}
+			else if (c == '}' && depth > 0) {
+				depth--;
+			}
+			else if (depth == 0 && fileNames.startsWith(SEPARATOR, i)) {
+				names.add(fileNames.substring(start, i));
+				start = i + SEPARATOR.length();
+			}
+		}
+		names.add(fileNames.substring(start));
+		return names;
+	}
+
+	/** true if a file name has glob characters */
+	private static boolean isPattern(String name) {
+		for (char c : "*?[{".toCharArray()) {
+			if (name.indexOf(c) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** the visible files of a directory whose names match (all if matcher is null), by name */
+	private static List<File> listDir(File dir, PathMatcher matcher, String name) {
+		File[] all = dir.listFiles();
+		if (all == null) {
+			throw new SettingsError("Couldn't list the ExternalMapRoute-data files of " + name);
+		}
+		Arrays.sort(all);
+		List<File> files = new ArrayList<File>();
+		for (File f : all) {
+			if (f.isFile() && !f.getName().startsWith(".") &&
+				(matcher == null || matcher.matches(f.toPath().getFileName()))) {
+				files.add(f);
+			}
+		}
+		if (files.isEmpty()) {
+			throw new SettingsError("No ExternalMapRoute-data files match " + name);
+		}
+		return files;
+	}
+}
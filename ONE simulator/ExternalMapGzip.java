@@ -0,0 +1,348 @@
+package input;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reading of gzip compressed (.gz) external movement files, with the JDK only.
+ * A gzip file can have many members (e.g. files compressed in blocks, like with
+ * bgzip, or compressed parts that were concatenated). With more than one thread,
+ * the members are decompressed in parallel: the file is scanned for member
+ * headers, the members are inflated ahead by a fork-join pool and given in
+ * order. A member is used only if it starts where the previous one ended and its
+ * checksum and size are right, so a header-like byte sequence inside the
+ * compressed data costs some wasted work but never changes what is read.
+ * Members bigger than {@value #MAX_MEMBER} bytes (e.g. a file compressed as one
+ * member) are decompressed sequentially, from there on.
+ */
+public class ExternalMapGzip {
+	/** File name extension of compressed files */
+	public static final String EXTENSION = ".gz";
+	/** Largest member (decompressed bytes) inflated ahead in parallel */
+	public static final int MAX_MEMBER = 8 * 1024 * 1024;
+	/** Bytes scanned for member headers at a time */
+	private static final int SCAN_SIZE = 1024 * 1024;
+	/** Bytes of compressed data read at a time */
+	private static final int READ_SIZE = 64 * 1024;
+
+	/**
+	 * Returns true if a file is gzip compressed (by its name)
+	 * @param file: the file
+	 * @return true if the file name ends with {@value #EXTENSION}
+	 */
+	public static boolean isCompressed(File file) {
+		return file.getName().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Opens a compressed file for reading its decompressed bytes
+	 * @param file: the file
+	 * @param threads: the number of threads decompressing (1 for sequential)
+	 * @return the decompressed bytes of all the members of the file
+	 * @throws IOException if the file can't be opened
+	 */
+	public static InputStream open(File file, int threads) throws IOException {
+		if (threads <= 1) {
+			return new GZIPInputStream(new FileInputStream(file), READ_SIZE);
+		}
+		return new ParallelInputStream(file, threads);
+	}
+
+	/** A member inflated ahead (data is null if it couldn't be used) */
+	private static class Member {
+		private long offset;
+		private Future<Member> future;
+		private byte[] data;
+		private int size;
+		/** where the next member starts */
+		private long end;
+	}
+
+	/** Decompressed bytes of a file whose members are inflated in parallel */
+	private static class ParallelInputStream extends InputStream {
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private long length;
+		private ForkJoinPool pool;
+		private int ahead;
+
+		/** next position to scan for member headers */
+		private long scanPos;
+		/** member headers found, not inflated yet */
+		private ArrayDeque<Long> candidates = new ArrayDeque<Long>();
+		/** members being inflated, in file order */
+		private ArrayDeque<Member> inflating = new ArrayDeque<Member>();
+		/** where the next member starts */
+		private long nextPos;
+
+		/** the decompressed bytes being read */
+		private byte[] buf = new byte[0];
+		private int bufPos, bufLen;
+		/** sequential reader of the rest of the file (null while reading in parallel) */
+		private InputStream sequential;
+		private boolean eof;
+
+		public ParallelInputStream(File file, int threads) throws IOException {
+			raf = new RandomAccessFile(file, "r");
+			channel = raf.getChannel();
+			length = channel.size();
+			pool = new ForkJoinPool(threads);
+			ahead = 2 * threads;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return (n < 0 ? -1 : b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (bufPos == bufLen) {
+				if (sequential != null) {
+					return sequential.read(b, off, len);
+				}
+				if (eof || !nextMember()) {
+					eof = true;
+					return -1;
+				}
+			}
+			int n = Math.min(len, bufLen - bufPos);
+			System.arraycopy(buf, bufPos, b, off, n);
+			bufPos += n;
+			return n;
+		}
+
+		/**
+		 * Takes the next member in file order
+		 * @return false if there are no more members
+		 */
+		private boolean nextMember() throws IOException {
+			if (nextPos >= length) {
+				return false;
+			}
+			while (!inflating.isEmpty() && inflating.peek().offset < nextPos) {
+				inflating.poll().future.cancel(false);
+			}
+			startInflating();
+			Member m = inflating.peek();
+			if (m == null || m.offset != nextPos) {
+				return false; /* no header where the last member ended: trailing garbage, ignored as GZIPInputStream does */
+			}
+			inflating.poll();
+			Member done;
+			try {
+				done = m.future.get();
+			} catch (InterruptedException ie) {
+				throw new IOException("Interrupted while decompressing");
+			} catch (ExecutionException ee) {
+				throw new IOException(ee.getCause());
+			}
+
+			if (done.data == null) {
+				/** too big or not valid: the rest is read sequentially (which reports the errors) */
+				channel.position(nextPos);
+				sequential = new GZIPInputStream(new BufferedInputStream(Channels.newInputStream(channel), READ_SIZE), READ_SIZE);
+				closePool();
+				return true;
+			}
+			buf = done.data;
+			bufPos = 0;
+			bufLen = done.size;
+			nextPos = done.end;
+			return true;
+		}
+
+		/** starts inflating the next members, up to the number kept ahead */
+		private void startInflating() throws IOException {
+			while (inflating.size() < ahead) {
+				while (candidates.isEmpty()) {
+					if (!scan()) {
+						return;
+					}
+				}
+				long offset = candidates.poll();
+				if (offset < nextPos) {
+					continue;
+				}
+				final Member m = new Member();
+				m.offset = offset;
+				m.future = pool.submit(new Callable<Member>() {
+					public Member call() {
+						inflate(m);
+						return m;
+					}
+				});
+				inflating.add(m);
+			}
+		}
+
+		/**
+		 * Scans the next part of the file for member headers
+		 * @return false if the whole file has been scanned
+		 */
+		private boolean scan() throws IOException {
+			if (scanPos >= length) {
+				return false;
+			}
+			ByteBuffer bb = ByteBuffer.allocate(SCAN_SIZE + 3);
+			readFully(bb, scanPos);
+			int n = bb.position();
+			for (int i=0; i<Math.min(SCAN_SIZE, n - 3); i++) {
+				if (bb.get(i) == (byte)0x1f && bb.get(i+1) == (byte)0x8b && bb.get(i+2) == 8 &&
+					(bb.get(i+3) & 0xe0) == 0) {
+					candidates.add(scanPos + i);
+				}
+			}
+			scanPos += SCAN_SIZE;
+			return true;
+		}
+
+		/** reads from a position until the buffer is full or the file ends */
+		private void readFully(ByteBuffer bb, long pos) throws IOException {
+			while (bb.hasRemaining()) {
+				int n = channel.read(bb, pos);
+				if (n < 0) {
+					break;
+				}
+				pos += n;
+			}
+		}
+
+		/** inflates the member at m.offset, if it is one */
+		private void inflate(Member m) {
+			Inflater inflater = new Inflater(true);
+			try {
+				ByteBuffer in = ByteBuffer.allocate(READ_SIZE);
+				long pos = m.offset;
+				readFully(in, pos);
+				in.flip();
+				int header = headerLength(in);
+				if (header < 0) {
+					return;
+				}
+				inflater.setInput(in.array(), header, in.limit() - header);
+				pos += in.limit();
+
+				byte[] out = new byte[Math.max(READ_SIZE, in.limit() * 4)];
+				int size = 0;
+				while (!inflater.finished()) {
+					if (size == out.length) {
+						if (out.length >= MAX_MEMBER) {
+							return;
+						}
+						out = Arrays.copyOf(out, Math.min(MAX_MEMBER, out.length * 2));
+					}
+					int n = inflater.inflate(out, size, out.length - size);
+					size += n;
+					if (n == 0 && inflater.needsInput()) {
+						if (pos >= length) {
+							return;
+						}
+						in.clear();
+						readFully(in, pos);
+						in.flip();
+						pos += in.limit();
+						inflater.setInput(in.array(), 0, in.limit());
+					}
+					else if (n == 0 && inflater.needsDictionary()) {
+						return;
+					}
+				}
+
+				/** trailer: CRC-32 and size of the data */
+				long trailer = pos - inflater.getRemaining();
+				ByteBuffer t = ByteBuffer.allocate(8);
+				readFully(t, trailer);
+				if (t.position() < 8) {
+					return;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(out, 0, size);
+				if (littleEndian(t, 0) != crc.getValue() || littleEndian(t, 4) != (size & 0xffffffffL)) {
+					return;
+				}
+				m.data = out;
+				m.size = size;
+				m.end = trailer + 8;
+			} catch (DataFormatException dfe) {
+				/** not a member */
+			} catch (IOException ioe) {
+				/** read again sequentially, which reports the error */
+			} finally {
+				inflater.end();
+			}
+		}
+
+		/** the length of the gzip header at the start of a buffer (-1 if not a whole valid header) */
+		private static int headerLength(ByteBuffer in) {
+			int n = in.limit();
+			if (n < 10 || in.get(0) != (byte)0x1f || in.get(1) != (byte)0x8b || in.get(2) != 8) {
+				return -1;
+			}
+			int flags = in.get(3) & 0xff;
+			int pos = 10;
+			if ((flags & 4) != 0) { /* FEXTRA */
+				if (pos + 2 > n) {
+					return -1;
+				}
+				pos += 2 + ((in.get(pos) & 0xff) | (in.get(pos+1) & 0xff) << 8);
+			}
+			for (int flag : new int[] {8, 16}) { /* FNAME, FCOMMENT: zero-terminated */
+				if ((flags & flag) != 0) {
+					while (pos < n && in.get(pos) != 0) {
+						pos++;
+					}
+					pos++;
+				}
+			}
+			if ((flags & 2) != 0) { /* FHCRC */
+				pos += 2;
+			}
+			return (pos < n ? pos : -1);
+		}
+
+		private static long littleEndian(ByteBuffer b, int pos) {
+			return (b.get(pos) & 0xffL) | (b.get(pos+1) & 0xffL) << 8 |
+				(b.get(pos+2) & 0xffL) << 16 | (b.get(pos+3) & 0xffL) << 24;
+		}
+
+		private void closePool() {
+			for (Member m : inflating) {
+				m.future.cancel(false);
+			}
+			inflating.clear();
+			pool.shutdown(); /* no interrupts: they would close the shared channel */
+		}
+
+		@Override
+		public void close() throws IOException {
+			closePool();
+			if (sequential != null) {
+				sequential.close();
+			}
+			raf.close();
+		}
+	}
+}
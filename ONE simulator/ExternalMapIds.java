@@ -0,0 +1,185 @@
+package input;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import core.SettingsError;
+
+/**
+ * Dictionary of the node IDs of a trace: every distinct ID gets a dense number
+ * (0, 1, 2...) in the order of the IDs, so that the samples are sorted and the
+ * nodes looked up by numbers. The IDs can be ordered as text ("10" before "2",
+ * as before) or numerically, where the digit runs of the IDs are compared as
+ * numbers ("2" before "10", "dev2" before "dev10").
+ * Also writes the mapping of the trace IDs to the host addresses that follow them.
+ */
+public class ExternalMapIds {
+	/** Order of the IDs as text */
+	public static final Comparator<String> TEXT_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			return a.compareTo(b);
+		}
+	};
+	/** Order of the IDs with their digit runs compared as numbers */
+	public static final Comparator<String> NUMERIC_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			return compareNumeric(a, b);
+		}
+	};
+
+	private String[] ids;
+	private Map<String, Integer> index;
+
+	/**
+	 * Creates the dictionary of some IDs
+	 * @param ids: the IDs (duplicates are counted once)
+	 * @param order: the order of the IDs ({@link #TEXT_ORDER} or {@link #NUMERIC_ORDER})
+	 */
+	public ExternalMapIds(Collection<String> ids, Comparator<String> order) {
+		String[] sorted = ids.toArray(new String[ids.size()]);
+		Arrays.sort(sorted, order);
+		index = new HashMap<String, Integer>(sorted.length * 2);
+		int n = 0;
+		for (String id : sorted) {
+			if (!index.containsKey(id)) {
+				index.put(id, n);
+				sorted[n++] = id;
+			}
+		}
+		this.ids = Arrays.copyOf(sorted, n);
+	}
+
+	/**
+	 * Returns the number of an ID
+	 * @param id: the ID
+	 * @return the number, or -1 if the ID is not in the dictionary
+	 */
+	public int getIndex(String id) {
+		Integer i = index.get(id);
+		return (i == null ? -1 : i);
+	}
+
+	/**
+	 * Returns the ID of a number
+	 * @param index: the number
+	 * @return the ID
+	 */
+	public String getId(int index) {
+		return ids[index];
+	}
+
+	/**
+	 * Returns the number of IDs
+	 * @return the number of IDs
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Compares two IDs with their digit runs as numbers (leading zeros don't count,
+	 * but "02" comes after "2"), and the rest as text
+	 * @param a, b: the IDs
+	 * @return negative, zero or positive, as a is before, equal to or after b
+	 */
+	public static int compareNumeric(String a, String b) {
+		int i = 0, j = 0;
+		int zeros = 0; /* tie-break of numbers that differ only in leading zeros */
+		while (i < a.length() && j < b.length()) {
+			char ca = a.charAt(i);
+			char cb = b.charAt(j);
+			if (isDigit(ca) && isDigit(cb)) {
+				int sa = i, sb = j;
+				while (i < a.length() && a.charAt(i) == '0') {
+					i++;
+				}
+				while (j < b.length() && b.charAt(j) == '0') {
+					j++;
+				}
+				int ea = i, eb = j;
+				while (ea < a.length() && isDigit(a.charAt(ea))) {
+					ea++;
+				}
+				while (eb < b.length() && isDigit(b.charAt(eb))) {
+					eb++;
+				}
+				if (ea - i != eb - j) {
+					return (ea - i) - (eb - j); /* more digits, bigger number */
+				}
+				for (; i < ea; i++, j++) {
+					if (a.charAt(i) != b.charAt(j)) {
+						return a.charAt(i) - b.charAt(j);
+					}
+				}
+				if (zeros == 0) {
+					zeros = (ea - sa) - (eb - sb);
+				}
+			}
+			else {
+				if (ca != cb) {
+					return ca - cb;
+				}
+				i++;
+				j++;
+			}
+		}
+		if (i < a.length() || j < b.length()) {
+			return (a.length() - i) - (b.length() - j);
+		}
+		return zeros;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Returns the host address that follows each trace ID. The routes are given
+	 * to the hosts of a group in order, starting again from the first route when
+	 * there are more hosts than routes, so host k follows route k mod the number
+	 * of routes. IDs of routes that no host follows are not included.
+	 * @param routeIds: the IDs of the routes, in the order they are given to the hosts
+	 * @param nrofHosts: the number of hosts of the group
+	 * @param firstAddress: the address of the first host of the group
+	 * @return trace ID -> address of the first host that follows it, in address order
+	 */
+	public static Map<String, Integer> getHostAddresses(List<String> routeIds, int nrofHosts, int firstAddress) {
+		Map<String, Integer> addresses = new LinkedHashMap<String, Integer>();
+		for (int k=0; k<Math.min(nrofHosts, routeIds.size()); k++) {
+			addresses.put(routeIds.get(k), firstAddress + k);
+		}
+		return addresses;
+	}
+
+	/**
+	 * Writes the host address and the trace ID of every host of a group, one
+	 * host per line ("address id"), for joining the results of the hosts with the trace
+	 * @param file: the file
+	 * @param routeIds: the IDs of the routes, in the order they are given to the hosts
+	 * @param nrofHosts: the number of hosts of the group
+	 * @param firstAddress: the address of the first host of the group
+	 */
+	public static void saveHostMap(File file, List<String> routeIds, int nrofHosts, int firstAddress) {
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			try {
+				for (int k=0; k<nrofHosts; k++) {
+					out.println((firstAddress + k) + " " + routeIds.get(k % routeIds.size()));
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't write host map file " + file + " (cause: " + ioe.getMessage() + ")");
+		}
+	}
+}
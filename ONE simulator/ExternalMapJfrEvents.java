@@ -0,0 +1,132 @@
+package input;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The {@link ExternalMapEvents} recorded with JFR. Only loaded (by
+ * {@link ExternalMapEvents#get()}) when the JVM has jdk.jfr.
+ */
+class ExternalMapJfrEvents extends ExternalMapEvents {
+	@Override
+	public Object beginLoadPhase() {
+		LoadPhaseEvent event = new LoadPhaseEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endLoadPhase(Object e, String file, String phase, long rows) {
+		LoadPhaseEvent event = (LoadPhaseEvent)e;
+		event.end();
+		if (event.shouldCommit()) {
+			event.file = file;
+			event.phase = phase;
+			event.rows = rows;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void setPath(String node, long setPathNanos, long pathNanos, int waypoints, double distance) {
+		SetPathEvent event = new SetPathEvent();
+		if (event.isEnabled()) {
+			event.node = node;
+			event.setPathTime = setPathNanos;
+			event.pathTime = pathNanos;
+			event.waypoints = waypoints;
+			event.distance = distance;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void summary(String group, double simTime, int activeNodes, int inactiveNodes,
+		long setPathCalls, long zeroDistanceMoves, long setPathMean, long setPathP99,
+		long pathMean, long pathP99) {
+		SummaryEvent event = new SummaryEvent();
+		if (event.isEnabled()) {
+			event.group = group;
+			event.simTime = simTime;
+			event.activeNodes = activeNodes;
+			event.inactiveNodes = inactiveNodes;
+			event.setPathCalls = setPathCalls;
+			event.zeroDistanceMoves = zeroDistanceMoves;
+			event.setPathMean = setPathMean;
+			event.setPathP99 = setPathP99;
+			event.pathMean = pathMean;
+			event.pathP99 = pathP99;
+			event.commit();
+		}
+	}
+
+	/** JFR event of a loading phase */
+	@Name("ExternalMapMovement.LoadPhase")
+	@Label("External Map Load Phase")
+	@Category({"ONE", "External Map Movement"})
+	@Description("A phase of loading an external movement file")
+	static class LoadPhaseEvent extends Event {
+		@Label("File")
+		String file;
+		@Label("Phase")
+		String phase;
+		@Label("Rows")
+		long rows;
+	}
+
+	/** JFR event of a setPath call */
+	@Name("ExternalMapMovement.SetPath")
+	@Label("External Map SetPath")
+	@Category({"ONE", "External Map Movement"})
+	@Description("A node of an external map movement group got its next path")
+	static class SetPathEvent extends Event {
+		@Label("Node")
+		String node;
+		@Label("SetPath Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long setPathTime;
+		@Label("Shortest Path Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long pathTime;
+		@Label("Waypoints")
+		int waypoints;
+		@Label("Distance")
+		double distance;
+	}
+
+	/** JFR event of a periodic summary */
+	@Name("ExternalMapMovement.Summary")
+	@Label("External Map Movement Summary")
+	@Category({"ONE", "External Map Movement"})
+	@Description("Counters of an external map movement group")
+	static class SummaryEvent extends Event {
+		@Label("Group")
+		String group;
+		@Label("Simulated Time")
+		double simTime;
+		@Label("Active Nodes")
+		int activeNodes;
+		@Label("Inactive Nodes")
+		int inactiveNodes;
+		@Label("SetPath Calls")
+		long setPathCalls;
+		@Label("Zero-distance Moves")
+		long zeroDistanceMoves;
+		@Label("SetPath Mean")
+		@Timespan(Timespan.NANOSECONDS)
+		long setPathMean;
+		@Label("SetPath 99th Percentile")
+		@Timespan(Timespan.NANOSECONDS)
+		long setPathP99;
+		@Label("Shortest Path Mean")
+		@Timespan(Timespan.NANOSECONDS)
+		long pathMean;
+		@Label("Shortest Path 99th Percentile")
+		@Timespan(Timespan.NANOSECONDS)
+		long pathP99;
+	}
+}
@@ -0,0 +1,224 @@
+package movement.map;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import input.ExternalMapColumns;
+import input.ExternalMapLoadStats;
+import input.ExternalMapParser;
+import input.ExternalMapReader;
+import core.Coord;
+
+/**
+ * An external map route whose coordinates are found on the map only when the
+ * route is first used (when a node gets it). The file is read and sorted as for
+ * {@link ExternalMapRoute#readRoutes}, but the rows are kept as they are until
+ * then, so the routes of trace nodes that no host follows are never resolved,
+ * and the cost of resolving is spread over the creation of the hosts.
+ * The resolved route is the same as the one read by {@link ExternalMapRoute#readRoutes}
+ * (except that the routes don't share one table of map nodes).
+ */
+public class ExternalMapLazyRoute extends ExternalMapRoute {
+
+	/** the rows of the routes of a file, shared by its lazy routes */
+	private static class Rows {
+		private ExternalMapColumns data;
+		private int[] starts;
+		private double[] difs;
+		private MapNodeIndex mapIndex;
+		private File extMapFile;
+		/** number of routes not resolved yet (the rows are dropped when 0) */
+		private int unresolved;
+	}
+
+	private Rows rows;
+	/** the route's node in the rows */
+	private int node;
+	/** the route once resolved (null before) */
+	private ExternalMapRoute resolved;
+
+	/**
+	 * Creates a route of the rows of a node
+	 * @param rows: the rows of the file
+	 * @param node: the node
+	 * @param nodeID: the node's ID
+	 */
+	private ExternalMapLazyRoute(Rows rows, int node, String nodeID) {
+		super(nodeID, rows.difs[rows.starts[node]], getActiveEnd(rows, node));
+		this.rows = rows;
+		this.node = node;
+	}
+
+	/** the active end of a route, as computed by {@link ExternalMapRoute} */
+	private static double getActiveEnd(Rows rows, int node) {
+		int sum = 0;
+		for (int row=rows.starts[node]; row<rows.starts[node+1]; row++) {
+			sum += rows.difs[row];
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the route with its stops found on the map (resolving them the first time)
+	 * @return the resolved route
+	 */
+	public ExternalMapRoute resolve() {
+		if (resolved != null) {
+			return resolved;
+		}
+
+		int first = rows.starts[node];
+		int n = rows.starts[node+1] - first;
+		Map<Coord, Integer> coordIndex = new HashMap<Coord, Integer>();
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		int[] stops = new int[n];
+		Coord probe = new Coord(0, 0);
+		for (int i=0; i<n; i++) {
+			probe.setLocation(rows.data.getX(first + i), rows.data.getY(first + i));
+			Integer coord = coordIndex.get(probe);
+			if (coord == null) {
+				coord = coordIndex.size();
+				xs[coord] = probe.getX();
+				ys[coord] = probe.getY();
+				coordIndex.put(probe.clone(), coord);
+			}
+			stops[i] = coord;
+		}
+
+		/** locations that snap to the same map node share it */
+		MapNode[] found = rows.mapIndex.getNodes(xs, ys, coordIndex.size());
+		List<MapNode> table = new ArrayList<MapNode>();
+		Map<MapNode, Integer> tableIndex = new HashMap<MapNode, Integer>();
+		int[] toTable = new int[found.length];
+		for (int k=0; k<found.length; k++) {
+			if (found[k] == null) {
+				getMapNode(rows.mapIndex, xs[k], ys[k], rows.extMapFile); /** throws the error */
+			}
+			Integer t = tableIndex.get(found[k]);
+			if (t == null) {
+				t = table.size();
+				table.add(found[k]);
+				tableIndex.put(found[k], t);
+			}
+			toTable[k] = t;
+		}
+		for (int i=0; i<n; i++) {
+			stops[i] = toTable[stops[i]];
+		}
+
+		double[] times = new double[n];
+		System.arraycopy(rows.difs, first, times, 0, n);
+		resolved = new ExternalMapRoute(table.toArray(new MapNode[table.size()]), stops, times, getNodeID());
+
+		if (--rows.unresolved == 0) { /** no route needs the rows anymore */
+			rows.data = null;
+			rows.difs = null;
+		}
+		rows = null;
+		return resolved;
+	}
+
+	/**
+	 * Returns true if the route has been resolved
+	 * @return true if the stops of the route have been found on the map
+	 */
+	public boolean isResolved() {
+		return resolved != null;
+	}
+
+	@Override
+	public void setNextIndex(int index) {
+		resolve().setNextIndex(index);
+	}
+
+	@Override
+	public int[] getPosition() {
+		return resolve().getPosition();
+	}
+
+	@Override
+	public void setPosition(int[] position) {
+		resolve().setPosition(position);
+	}
+
+	@Override
+	public int getNrofStops() {
+		return resolve().getNrofStops();
+	}
+
+	@Override
+	public List<MapNode> getStops() {
+		return resolve().getStops();
+	}
+
+	@Override
+	public MapNode nextStop() {
+		return resolve().nextStop();
+	}
+
+	@Override
+	public double nextDifTime() {
+		return resolve().nextDifTime();
+	}
+
+	@Override
+	public double getWaitTime() {
+		return resolve().getWaitTime();
+	}
+
+	@Override
+	public List<Double> getWaitTimes() {
+		return resolve().getWaitTimes();
+	}
+
+	@Override
+	public List<Double> getDifTimes() {
+		return resolve().getDifTimes();
+	}
+
+	/**
+	 * Returns a replica of the resolved route (resolving it the first time).
+	 * All the replicas of a lazy route share the resolved arrays.
+	 */
+	@Override
+	public ExternalMapRoute replicate() {
+		return resolve().replicate();
+	}
+
+	public String toString() {
+		return (resolved != null ? resolved.toString() : "Unresolved External Map route");
+	}
+
+	/**
+	 * Reads routes that are resolved when they are first used
+	 * @param fileName: name of the file where to read routes
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param emmMode: mode of the external movement model
+	 * @param mapIndex: index of the sim map where corresponding map nodes are found
+	 * @param loadStats: where the timings of the phases of reading are added
+	 * @return A list of routes, in the same order as {@link ExternalMapRoute#readRoutes}
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, ExternalMapParser parser, String startingPoint, int emmMode, MapNodeIndex mapIndex, ExternalMapLoadStats loadStats) {
+		ExternalMapReader reader = new ExternalMapReader(fileName, parser, startingPoint, emmMode, loadStats);
+		List<String> nodesIDs = reader.getNodesIDs();
+		Rows rows = new Rows();
+		rows.data = reader.getColumns();
+		rows.starts = reader.getNodeStarts();
+		rows.difs = reader.getDifs();
+		rows.mapIndex = mapIndex;
+		rows.extMapFile = new File(fileName);
+		rows.unresolved = nodesIDs.size();
+
+		List<ExternalMapRoute> routes = new ArrayList<ExternalMapRoute>();
+		for (int i=0; i<nodesIDs.size(); i++) {
+			routes.add(new ExternalMapLazyRoute(rows, i, nodesIDs.get(i)));
+		}
+		loadStats.phase("build", routes.size());
+		return routes;
+	}
+}
@@ -0,0 +1,126 @@
+package input;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timings and row counts of the phases of loading an external movement file
+ * (reading, sorting, finding map nodes, building routes...). Each phase is
+ * also recorded as a JFR event (ExternalMapMovement.LoadPhase) when a flight
+ * recording is running (see {@link ExternalMapEvents}).
+ */
+public class ExternalMapLoadStats {
+	private String fileName;
+	private List<Phase> phases = new ArrayList<Phase>();
+	/** other things to report */
+	private List<String> notes = new ArrayList<String>();
+	/** start of the current phase */
+	private long phaseStart;
+	/** the JFR event of the current phase (null if not recorded) */
+	private Object event;
+
+	/**
+	 * Creates the stats of loading a file and starts the first phase
+	 * @param fileName: the file being loaded
+	 */
+	public ExternalMapLoadStats(String fileName) {
+		this.fileName = fileName;
+		start();
+	}
+
+	/** starts timing a new phase */
+	private void start() {
+		event = ExternalMapEvents.get().beginLoadPhase();
+		phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Ends the current phase and starts the next one
+	 * @param name: name of the phase that ended
+	 * @param rows: number of rows (or other items) the phase handled
+	 */
+	public void phase(String name, long rows) {
+		long nanos = System.nanoTime() - phaseStart;
+		phases.add(new Phase(name, nanos, rows));
+
+		ExternalMapEvents.get().endLoadPhase(event, fileName, name, rows);
+		start();
+	}
+
+	/**
+	 * Restarts timing of the current phase (e.g. after doing something that
+	 * isn't part of any phase)
+	 */
+	public void restart() {
+		start();
+	}
+
+	/**
+	 * Adds a line to the report
+	 * @param note: the line
+	 */
+	public void note(String note) {
+		notes.add(note);
+	}
+
+	/**
+	 * Returns the phases ended so far, in order
+	 * @return the phases
+	 */
+	public List<Phase> getPhases() {
+		return phases;
+	}
+
+	/**
+	 * Returns the total time of the phases
+	 * @return the time in nanoseconds
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for (Phase p : phases) {
+			total += p.getNanos();
+		}
+		return total;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Loading " + fileName + ": " +
+			String.format("%.1f", getTotalNanos() / 1e6) + " ms");
+		for (Phase p : phases) {
+			sb.append("\n\t").append(p);
+		}
+		for (String note : notes) {
+			sb.append("\n\t").append(note);
+		}
+		return sb.toString();
+	}
+
+	/** A phase of loading: its name, time and rows */
+	public static class Phase {
+		private String name;
+		private long nanos;
+		private long rows;
+
+		public Phase(String name, long nanos, long rows) {
+			this.name = name;
+			this.nanos = nanos;
+			this.rows = rows;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public String toString() {
+			return String.format("%-10s %10.1f ms %12d rows", name, nanos / 1e6, rows);
+		}
+	}
+}
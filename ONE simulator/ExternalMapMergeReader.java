@@ -0,0 +1,169 @@
+package input;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import core.SettingsError;
+
+/**
+ * Reads the samples of many files that are each sorted by time, in time order:
+ * a streaming k-way merge of the files, with one line of each file in memory.
+ * Samples of the same time are taken in the order of the files. When the files
+ * are shards of different times, each file is read to its end before the next
+ * one, and a sample costs only the comparisons with the heads of the other files.
+ */
+public class ExternalMapMergeReader {
+	private List<File> files;
+	private ExternalMapParser parser;
+	private BufferedReader[] readers;
+	private int[] lineNos;
+	/** the next sample of each file */
+	private double[] times, xs, ys;
+	private String[] ids;
+	/** true for the files whose first sample has been read */
+	private boolean[] started;
+	/** parses the lines. Keeps the interned ids of all the files */
+	private ExternalMapColumns parsed = new ExternalMapColumns(16);
+	/** files with a next sample, by sample time and file */
+	private int[] heap;
+	private int n;
+
+	/**
+	 * Opens the files and reads their first samples
+	 * @param files: the files (each sorted by time)
+	 * @param parser: the parser for the lines of the files
+	 * @throws IOException if reading fails
+	 */
+	public ExternalMapMergeReader(List<File> files, ExternalMapParser parser) throws IOException {
+		int k = files.size();
+		this.files = files;
+		this.parser = parser;
+		readers = new BufferedReader[k];
+		lineNos = new int[k];
+		times = new double[k];
+		xs = new double[k];
+		ys = new double[k];
+		ids = new String[k];
+		started = new boolean[k];
+		heap = new int[k];
+		try {
+			for (int f=0; f<k; f++) {
+				readers[f] = ExternalMapFiles.openReader(files.get(f), parser.getThreads());
+				if (readHead(f)) {
+					heap[n++] = f;
+					up(n - 1);
+				}
+			}
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Adds the next sample (in time order) to columns
+	 * @param columns: where the sample is added
+	 * @return false if all the files have ended
+	 * @throws IOException if reading fails
+	 */
+	public boolean next(ExternalMapColumns columns) throws IOException {
+		if (n == 0) {
+			return false;
+		}
+		int f = heap[0];
+		columns.add(columns.internId(ids[f]), times[f], xs[f], ys[f]);
+		if (!readHead(f)) {
+			heap[0] = heap[--n];
+		}
+		down(0);
+		return true;
+	}
+
+	/**
+	 * Reads the next sample of a file
+	 * @return false if the file has ended
+	 */
+	private boolean readHead(int f) throws IOException {
+		String dataRow = readers[f].readLine();
+		while (dataRow != null) {
+			lineNos[f]++;
+			if (lineNos[f] > parser.getHeaderLines() && parser.parseLine(dataRow, lineNos[f], parsed)) {
+				double time = parsed.getTime(0);
+				if (started[f] && time < times[f]) {
+					throw new SettingsError("Streamed routes need files sorted by time. Line " +
+						lineNos[f] + " of " + files.get(f) + " is out of order:\n" + dataRow + "\n");
+				}
+				ids[f] = parsed.getIdName(parsed.getId(0));
+				times[f] = time;
+				xs[f] = parsed.getX(0);
+				ys[f] = parsed.getY(0);
+				started[f] = true;
+				parsed.clear();
+				return true;
+			}
+			dataRow = readers[f].readLine();
+		}
+		readers[f].close();
+		readers[f] = null;
+		return false;
+	}
+
+	/**
+	 * Closes the files that are still open
+	 */
+	public void close() {
+		for (int f=0; f<readers.length; f++) {
+			if (readers[f] != null) {
+				try {
+					readers[f].close();
+				} catch (IOException ioe) {
+					/** nothing more to read from it anyway */
+				}
+				readers[f] = null;
+			}
+		}
+		n = 0;
+	}
+
+	/** by time of the next sample, then by file */
+	private boolean less(int a, int b) {
+		return (times[a] < times[b] || (times[a] == times[b] && a < b));
+	}
+
+	private void up(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!less(heap[i], heap[parent])) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void down(int i) {
+		while (true) {
+			int min = i;
+			int l = 2 * i + 1;
+			if (l < n && less(heap[l], heap[min])) {
+				min = l;
+			}
+			if (l + 1 < n && less(heap[l+1], heap[min])) {
+				min = l + 1;
+			}
+			if (min == i) {
+				return;
+			}
+			swap(i, min);
+			i = min;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int t = heap[i];
+		heap[i] = heap[j];
+		heap[j] = t;
+	}
+}
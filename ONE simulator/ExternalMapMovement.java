@@ -1,15 +1,31 @@
 package movement;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.lang.*;
 
 import movement.map.DijkstraPathFinder;
 import movement.map.MapNode;
+import movement.map.ExternalMapLazyRoute;
 import movement.map.ExternalMapRoute;
+import movement.map.ExternalMapRouteCache;
+import movement.map.ExternalMapStreamRoute;
+import movement.map.ExternalMapValidator;
+import movement.map.MapNodeIndex;
+import movement.map.ShortestPathCache;
+import movement.map.ShortestPathTable;
+import input.EventQueueHandler;
+import input.ExternalMapIds;
+import input.ExternalMapLoadStats;
+import input.ExternalMapParser;
+import input.ExternalMapStream;
 import core.Coord;
 import core.Settings;
 import core.SettingsError;
 import core.SimError;
+import core.SimScenario;
 import core.SimClock;
 
 /**
@@ -21,7 +37,8 @@ public class ExternalMapMovement extends MapBasedMovement implements
 	SwitchableMovement {
 	/** Router's setting namespace ({@value}) */
 	public static final String EXTMAPMOV_NS = "ExternalMapMovement";
-	/** Per node group setting used for selecting a route file ({@value}) */
+	/** Per node group setting used for selecting a route file ({@value}). Can also be a comma separated
+	 * list of files, directories and file name patterns (e.g. traces/day-*.csv) of a trace split in many files */
 	public static final String EMM_FILE_S = "extmapFile";
 	/** what column is each setting at the file, starting from zero (node id, time, x, y) */
 	public static final String EMM_ID_COL_S = "idCol";
@@ -32,10 +49,63 @@ public class ExternalMapMovement extends MapBasedMovement implements
 	public static final String EMM_TIME_FORMAT_S = "inputTimeFormat";
 	/** at what time does the simulation start? It must be less or equal to the earliest time in the input file */ 
 	public static final String EMM_START = "startPoint";
+	/** pattern of the dates when inputTimeFormat is "date", e.g. MM/dd/yy HH:mm:ss. Default MM/dd/yy HH:mm */
+	public static final String EMM_DATE_FORMAT_S = "dateFormat";
 	/** Movement mode: 	0 - calculate the speed of the node for each movement using distance and time difference. Default.
 						1 - use the given speed and if there's any time left, it's used as a wait time at the source location.
 							if speed is too low, it will throw an error. */
 	public static final String EMM_MODE_S = "extMovMode";
+	/** separator of the columns in the file. Use \t for tabs */
+	public static final String EMM_SEPARATOR_S = "separator";
+	/** number of header lines to skip at the beginning of the file */
+	public static final String EMM_HEADER_LINES_S = "headerLines";
+	/** prefix of comment lines in the file */
+	public static final String EMM_COMMENT_PREFIX_S = "commentPrefix";
+	/** number of threads reading the file. 1 (default) reads it sequentially, 0 uses all processors */
+	public static final String EMM_LOAD_THREADS_S = "loadThreads";
+	/** simplify the trajectories, dropping samples within this distance (meters) of the simplified ones. Default 0: no simplification */
+	public static final String EMM_SIMPLIFY_S = "simplifyDistance";
+	/** snap coordinates of the file to the nearest map node within this distance (meters). Default 0: exact matches only */
+	public static final String EMM_SNAP_S = "snapDistance";
+	/** read the routes from the file while the simulation runs (true/false). The file must be sorted by time. Default false */
+	public static final String EMM_STREAM_S = "streamRoutes";
+	/** number of stops the window of a streamed route holds before it grows. Default 16 */
+	public static final String EMM_STREAM_WINDOW_S = "streamWindow";
+	/** the most samples kept in memory for the streamed routes of the group. Default 0: no limit */
+	public static final String EMM_STREAM_MAX_BUFFERED_S = "streamMaxBuffered";
+	/** maximum number of shortest paths cached for the group (0 for no caching). Default 10000 */
+	public static final String EMM_PATH_CACHE_S = "pathCacheSize";
+	/** precompute the shortest paths between the stops of the routes at startup (true/false). Default false */
+	public static final String EMM_PATH_TABLE_S = "pathTable";
+	/** file where the precomputed shortest paths are saved and loaded. Default: not saved */
+	public static final String EMM_PATH_TABLE_FILE_S = "pathTableFile";
+	/** simulated time between summaries of the runtime counters (seconds). Default 0: no summaries */
+	public static final String EMM_STATS_INTERVAL_S = "statsInterval";
+	/** find the stops of a route on the map only when a node first gets the route (true/false). Default false */
+	public static final String EMM_LAZY_S = "lazyRoutes";
+	/** maximum number of samples sorted in memory. Bigger files are sorted in chunks spilled to temporary files. Default 0: all in memory */
+	public static final String EMM_SORT_CHUNK_S = "sortChunk";
+	/** directory of the temporary files of sortChunk. Default: the temporary directory of the system */
+	public static final String EMM_SORT_DIR_S = "sortDir";
+	/** check at startup that every hop of the routes can be made at maxSpeed on the map (true/false). Default false */
+	public static final String EMM_VALIDATE_S = "validateRoutes";
+	/** order the node IDs with their numbers compared as numbers, "2" before "10" (true/false). Default false: as text */
+	public static final String EMM_NUMERIC_IDS_S = "numericIds";
+	/** file where the host address and the trace ID of every host of the group are written. Default: not written */
+	public static final String EMM_HOST_MAP_FILE_S = "hostMapFile";
+	/** address of the first host of the group, for the host addresses of the trace IDs. Default 0 */
+	public static final String EMM_HOST_ADDRESS_OFFSET_S = "hostAddressOffset";
+	/** file where the state of the nodes is checkpointed (and restored from). Default: no checkpoints */
+	public static final String EMM_CHECKPOINT_FILE_S = "checkpointFile";
+	/** simulated seconds between checkpoints. Default 0: none written */
+	public static final String EMM_CHECKPOINT_INTERVAL_S = "checkpointInterval";
+	/** start from the state and the time of checkpointFile (true/false). Only the movement is
+	 * restored, so the scenario can't have event queues. Default false */
+	public static final String EMM_RESTORE_S = "restoreCheckpoint";
+	/** use a compiled binary cache of the routes (true/false). Default false */
+	public static final String EMM_CACHE_S = "traceCache";
+	/** name of the cache file. Default is the name of extmapFile + ".cache" */
+	public static final String EMM_CACHE_FILE_S = "traceCacheFile";
 	
 	/**default columns for settings */
 	public static final int EMM_DEFAULT_ID_COL = 0;
@@ -49,9 +119,25 @@ public class ExternalMapMovement extends MapBasedMovement implements
 	
 	/** the Dijkstra shortest path finder */
 	private DijkstraPathFinder pathFinder;
+	/** the shortest paths found, shared by the prototype and all its replicas */
+	private ShortestPathCache pathCache;
+	/** the runtime counters of the group, shared like the cache */
+	private ExternalMapStats stats;
+	/** the activation schedule of the group, shared like the counters */
+	private ActivationSchedule schedule;
+	/** id of this node in the schedule (-1 for the prototype) */
+	private int scheduleId = -1;
+	/** the checkpoints of the group (null if none) */
+	private ExternalMapCheckpoint checkpoint;
+	/** where a restored node starts (null if not restored, or after it started) */
+	private Coord restoredLocation;
+	/** true until a restored node has asked for the time of its restored path */
+	private boolean restoredPath;
 
 	/** Prototype's reference to all routes read for the group */
 	private List<ExternalMapRoute> allRoutes = null;
+	/** trace ID -> address of the host that follows it */
+	private Map<String, Integer> hostAddresses;
 	/** next route's index to give by prototype */
 	private Integer nextRouteIndex = null;
 	
@@ -63,6 +149,8 @@ public class ExternalMapMovement extends MapBasedMovement implements
 	private double speed = 0;
 	/** the time space between source and destination locations */
 	private double availTime = 0;
+	/** the time to stay at the destination after arriving (merged samples at the same place) */
+	private double stopWait = 0;
 	/** the next time to move */
 	private double nextMoveTime = 0;
 	/** the next time to check for movement */
@@ -94,31 +182,23 @@ public class ExternalMapMovement extends MapBasedMovement implements
 			timeCol = settings.getInt(EMM_TIME_COL_S);
 			xCol = settings.getInt(EMM_X_COL_S);
 			yCol = settings.getInt(EMM_Y_COL_S);
-			//System.out.println("Using manually set columns settings");
 		}
 		else {
 			idCol = EMM_DEFAULT_ID_COL;
 			timeCol = EMM_DEFAULT_TIME_COL;
 			xCol = EMM_DEFAULT_X_COL;
 			yCol = EMM_DEFAULT_Y_COL;
-			//System.out.println("Using default columns settings");
 		}
-		System.out.println("timeCol = " + timeCol + "\tidCol = " + idCol + "\txCol = " + xCol + "\tyCol = " + yCol + "\n");
 		
 		if (settings.contains(EMM_TIME_FORMAT_S)) {
 			timeFormat = settings.getSetting(EMM_TIME_FORMAT_S);
 			if (!timeFormat.equalsIgnoreCase("sec") && !timeFormat.equalsIgnoreCase("date")) {
 				throw new SettingsError("Time format is not right. It must be either \"date\" or \"sec\".\n");
 			}
-			else {
-				//System.out.println("Using manually set input time format");
-			}
 		}
 		else { 
 			timeFormat = EMM_DEFAULT_TIME_FORMAT;
-			//System.out.println("Using default time format");
 		}
-		System.out.println("inputTimeFormat = " + timeFormat + "\n");
 		
 		if (settings.contains(EMM_START)) {
 			startingPoint = settings.getSetting(EMM_START);
@@ -129,25 +209,220 @@ public class ExternalMapMovement extends MapBasedMovement implements
 			if (emmMode != 0 && emmMode != 1) {
 				throw new SettingsError("extMovMode must be either 0 or 1\n");
 			}
-			else {
-				//System.out.println("Using manually set movement mode");
-			}
 		}
 		else { 
 			this.emmMode = EMM_DEFAULT_MODE;
-			//System.out.println("Using default movement mode");
 		}
-		System.out.println("movement mode = " + this.emmMode + "\n");
 		
-		allRoutes = ExternalMapRoute.readRoutes(fileName, timeCol, idCol, xCol, yCol, timeFormat, startingPoint, this.emmMode, getMap());
+		ExternalMapParser parser = new ExternalMapParser(idCol, timeCol, xCol, yCol, timeFormat);
+		setParserOptions(parser, settings);
+		
+		double snapDistance = 0;
+		if (settings.contains(EMM_SNAP_S)) {
+			snapDistance = settings.getDouble(EMM_SNAP_S);
+			if (snapDistance < 0) {
+				throw new SettingsError("snapDistance can't be negative\n");
+			}
+		}
+		MapNodeIndex mapIndex = new MapNodeIndex(getMap(), snapDistance);
+		ExternalMapLoadStats loadStats = new ExternalMapLoadStats(fileName);
+		
+		boolean lazy = settings.contains(EMM_LAZY_S) && settings.getBoolean(EMM_LAZY_S);
+		boolean validate = settings.contains(EMM_VALIDATE_S) && settings.getBoolean(EMM_VALIDATE_S);
+		if (lazy && ((settings.contains(EMM_STREAM_S) && settings.getBoolean(EMM_STREAM_S)) ||
+			(settings.contains(EMM_CACHE_S) && settings.getBoolean(EMM_CACHE_S)) ||
+			(settings.contains(EMM_PATH_TABLE_S) && settings.getBoolean(EMM_PATH_TABLE_S)) || validate)) {
+			throw new SettingsError("lazyRoutes can't be used with streamRoutes, traceCache, pathTable or validateRoutes\n");
+		}
+		if (parser.getSortChunk() > 0 && (lazy || (settings.contains(EMM_STREAM_S) && settings.getBoolean(EMM_STREAM_S)))) {
+			throw new SettingsError("sortChunk can't be used with lazyRoutes or streamRoutes\n");
+		}
+		
+		if (settings.contains(EMM_STREAM_S) && settings.getBoolean(EMM_STREAM_S)) {
+			int window = ExternalMapStream.DEFAULT_WINDOW;
+			if (settings.contains(EMM_STREAM_WINDOW_S)) {
+				window = settings.getInt(EMM_STREAM_WINDOW_S);
+			}
+			long maxBuffered = 0;
+			if (settings.contains(EMM_STREAM_MAX_BUFFERED_S)) {
+				maxBuffered = settings.getInt(EMM_STREAM_MAX_BUFFERED_S);
+			}
+			allRoutes = ExternalMapStreamRoute.readRoutes(fileName, parser, startingPoint, window, maxBuffered,
+				mapIndex, loadStats);
+		}
+		else if (settings.contains(EMM_CACHE_S) && settings.getBoolean(EMM_CACHE_S)) {
+			String cacheName = null;
+			if (settings.contains(EMM_CACHE_FILE_S)) {
+				cacheName = settings.getSetting(EMM_CACHE_FILE_S);
+			}
+			allRoutes = ExternalMapRouteCache.readRoutes(fileName, cacheName, parser, startingPoint, this.emmMode, mapIndex, loadStats);
+		}
+		else if (lazy) {
+			allRoutes = ExternalMapLazyRoute.readRoutes(fileName, parser, startingPoint, this.emmMode, mapIndex, loadStats);
+		}
+		else {
+			allRoutes = ExternalMapRoute.readRoutes(fileName, parser, startingPoint, this.emmMode, mapIndex, loadStats);
+		}
 		nextRouteIndex = 0;
 		pathFinder = new DijkstraPathFinder(getOkMapNodeTypes());
+		int pathCacheSize = ShortestPathCache.DEFAULT_SIZE;
+		if (settings.contains(EMM_PATH_CACHE_S)) {
+			pathCacheSize = settings.getInt(EMM_PATH_CACHE_S);
+			if (pathCacheSize < 0) {
+				throw new SettingsError("pathCacheSize can't be negative\n");
+			}
+		}
+		pathCache = new ShortestPathCache(pathFinder, pathCacheSize);
+		if ((settings.contains(EMM_PATH_TABLE_S) && settings.getBoolean(EMM_PATH_TABLE_S)) || validate) {
+			if (allRoutes.size() > 0 && allRoutes.get(0) instanceof ExternalMapStreamRoute) {
+				throw new SettingsError("pathTable and validateRoutes can't be used with streamRoutes\n");
+			}
+			String tableName = null;
+			if (settings.contains(EMM_PATH_TABLE_FILE_S)) {
+				tableName = settings.getSetting(EMM_PATH_TABLE_FILE_S);
+			}
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (settings.contains(EMM_LOAD_THREADS_S) && settings.getInt(EMM_LOAD_THREADS_S) > 0) {
+				threads = settings.getInt(EMM_LOAD_THREADS_S);
+			}
+			loadStats.restart();
+			pathCache.setTable(new ShortestPathTable(getMap(), getOkMapNodeTypes(), allRoutes, threads, tableName));
+			loadStats.phase("paths", pathCache.getTable().size());
+			if (validate) {
+				/** the paths found for the check are kept as the path table of the group */
+				validateRoutes(allRoutes, pathCache.getTable(), super.maxSpeed, this.emmMode, threads, loadStats);
+			}
+		}
+		hostAddresses = mapHosts(allRoutes, settings);
+		System.out.println("idCol = " + idCol + "\ttimeCol = " + timeCol + "\txCol = " + xCol + "\tyCol = " + yCol +
+			"\tinputTimeFormat = " + timeFormat + "\tmovement mode = " + this.emmMode + "\n" + loadStats + "\n");
+		
+		double statsInterval = 0;
+		if (settings.contains(EMM_STATS_INTERVAL_S)) {
+			statsInterval = settings.getDouble(EMM_STATS_INTERVAL_S);
+		}
+		schedule = new ActivationSchedule();
+		stats = new ExternalMapStats(fileName, statsInterval, pathCache, schedule);
+		if (settings.contains(EMM_CHECKPOINT_FILE_S)) {
+			if (allRoutes.size() > 0 && allRoutes.get(0) instanceof ExternalMapStreamRoute) {
+				throw new SettingsError("checkpointFile can't be used with streamRoutes\n");
+			}
+			double interval = 0;
+			if (settings.contains(EMM_CHECKPOINT_INTERVAL_S)) {
+				interval = settings.getDouble(EMM_CHECKPOINT_INTERVAL_S);
+			}
+			checkpoint = new ExternalMapCheckpoint(new File(settings.getSetting(EMM_CHECKPOINT_FILE_S)), interval);
+			if (settings.contains(EMM_RESTORE_S) && settings.getBoolean(EMM_RESTORE_S)) {
+				/** the clock is moved to the checkpoint, but the events of the queues would start over */
+				Settings events = new Settings(EventQueueHandler.SETTINGS_NAMESPACE);
+				if (events.contains(EventQueueHandler.NROF_SETTING) &&
+						events.getInt(EventQueueHandler.NROF_SETTING) > 0) {
+					throw new SettingsError("restoreCheckpoint restores only the movement and can't be used with event queues (" +
+						EventQueueHandler.SETTINGS_NAMESPACE + "." + EventQueueHandler.NROF_SETTING + " > 0)\n");
+				}
+				double time = checkpoint.load();
+				if (SimClock.getTime() != 0 && SimClock.getTime() != time) {
+					throw new SettingsError("Checkpoint " + settings.getSetting(EMM_CHECKPOINT_FILE_S) +
+						" is from time " + time + ", but the simulation is restored to time " + SimClock.getTime() + "\n");
+				}
+				SimClock.getInstance().setTime(time);
+			}
+		}
+		else if (settings.contains(EMM_CHECKPOINT_INTERVAL_S) || settings.contains(EMM_RESTORE_S)) {
+			throw new SettingsError("checkpointInterval and restoreCheckpoint need checkpointFile\n");
+		}
 		this.route = this.allRoutes.get(this.nextRouteIndex).replicate();
 		if (this.nextRouteIndex >= this.allRoutes.size()) {
 			this.nextRouteIndex = 0;
 		}
 	}
 	
+	/**
+	 * Checks that all the hops of the routes can be made (see {@link ExternalMapValidator})
+	 * @param routes: the routes of the group
+	 * @param table: the shortest paths of the hops (null for straight lines)
+	 * @param maxSpeed: the maximum speed of the group
+	 * @param emmMode: the movement mode
+	 * @param threads: number of threads checking the routes
+	 * @param loadStats: where the time of the check is added
+	 * @throws SettingsError listing all the infeasible hops, if there are any
+	 */
+	static void validateRoutes(List<ExternalMapRoute> routes, ShortestPathTable table, double maxSpeed, int emmMode,
+			int threads, ExternalMapLoadStats loadStats) {
+		ExternalMapValidator validator = new ExternalMapValidator(routes, table, maxSpeed, emmMode, threads);
+		loadStats.phase("validate", validator.getNrofHops());
+		validator.check();
+		if (validator.getWarnings().isEmpty()) {
+			loadStats.note(validator.getNrofHops() + " hops checked, all feasible at max speed " + maxSpeed);
+		}
+		else {
+			System.out.print(validator.getReport());
+			loadStats.note(validator.getNrofHops() + " hops checked, " + validator.getWarnings().size() +
+				" faster than max speed " + maxSpeed);
+		}
+	}
+	
+	/**
+	 * Maps the trace IDs of the routes to the addresses of the hosts that follow
+	 * them (host k of the group gets route k, as the routes are given in order),
+	 * and writes the map of all the hosts to hostMapFile if it is set
+	 * @param routes: the routes of the group, in the order they are given
+	 * @param settings: the settings of the group
+	 * @return trace ID -> address of the first host that follows it
+	 */
+	static Map<String, Integer> mapHosts(List<ExternalMapRoute> routes, Settings settings) {
+		List<String> ids = new ArrayList<String>(routes.size());
+		for (ExternalMapRoute r : routes) {
+			ids.add(r.getNodeID());
+		}
+		int nrofHosts = routes.size();
+		if (settings.contains(SimScenario.NROF_HOSTS_S)) {
+			nrofHosts = settings.getInt(SimScenario.NROF_HOSTS_S);
+		}
+		int offset = 0;
+		if (settings.contains(EMM_HOST_ADDRESS_OFFSET_S)) {
+			offset = settings.getInt(EMM_HOST_ADDRESS_OFFSET_S);
+		}
+		if (settings.contains(EMM_HOST_MAP_FILE_S) && !ids.isEmpty()) {
+			ExternalMapIds.saveHostMap(new File(settings.getSetting(EMM_HOST_MAP_FILE_S)), ids, nrofHosts, offset);
+		}
+		return ExternalMapIds.getHostAddresses(ids, nrofHosts, offset);
+	}
+	
+	/**
+	 * Sets the options of a parser (date format, separator, header lines,
+	 * comment prefix, threads, simplification, sorting and ID order) from the settings
+	 * @param parser: the parser
+	 * @param settings: the settings of the group
+	 */
+	static void setParserOptions(ExternalMapParser parser, Settings settings) {
+		if (settings.contains(EMM_DATE_FORMAT_S)) {
+			parser.setDatePattern(settings.getSetting(EMM_DATE_FORMAT_S));
+		}
+		if (settings.contains(EMM_SEPARATOR_S)) {
+			parser.setSeparator(settings.getSetting(EMM_SEPARATOR_S));
+		}
+		if (settings.contains(EMM_HEADER_LINES_S)) {
+			parser.setHeaderLines(settings.getInt(EMM_HEADER_LINES_S));
+		}
+		if (settings.contains(EMM_COMMENT_PREFIX_S)) {
+			parser.setCommentPrefix(settings.getSetting(EMM_COMMENT_PREFIX_S));
+		}
+		if (settings.contains(EMM_LOAD_THREADS_S)) {
+			parser.setThreads(settings.getInt(EMM_LOAD_THREADS_S));
+		}
+		if (settings.contains(EMM_SIMPLIFY_S)) {
+			parser.setSimplifyDistance(settings.getDouble(EMM_SIMPLIFY_S));
+		}
+		if (settings.contains(EMM_SORT_CHUNK_S)) {
+			parser.setSortChunk(settings.getInt(EMM_SORT_CHUNK_S),
+				settings.contains(EMM_SORT_DIR_S) ? settings.getSetting(EMM_SORT_DIR_S) : null);
+		}
+		if (settings.contains(EMM_NUMERIC_IDS_S)) {
+			parser.setNumericIds(settings.getBoolean(EMM_NUMERIC_IDS_S));
+		}
+	}
+	
 	/**
 	 * Copyconstructor. Gives a route to the new movement model.
 	 * @param proto The ExternalMapMovement prototype
@@ -157,7 +432,13 @@ public class ExternalMapMovement extends MapBasedMovement implements
 		this.route = proto.allRoutes.get(proto.nextRouteIndex).replicate();
 		this.nextCheck = route.getActiveStart();
 		this.nextMoveTime = 0;
+		this.stopWait = route.getWaitTime(); /** wait at the first stop */
 		this.pathFinder = proto.pathFinder;
+		this.pathCache = proto.pathCache;
+		this.stats = proto.stats;
+		this.hostAddresses = proto.hostAddresses;
+		this.schedule = proto.schedule;
+		this.scheduleId = schedule.add(this, route.getActiveStart(), route.getActiveEnd());
 		
 		this.idCol = proto.idCol;
 		this.timeCol = proto.timeCol;
@@ -172,19 +453,123 @@ public class ExternalMapMovement extends MapBasedMovement implements
 		this.p = null;
 		this.to = null;
 		
+		this.checkpoint = proto.checkpoint;
+		if (checkpoint != null) {
+			int id = checkpoint.add(this);
+			ExternalMapCheckpoint.State state = checkpoint.getRestored(id);
+			if (state != null) {
+				setState(state);
+			}
+		}
+		
 		proto.nextRouteIndex++; /** give routes in order */
 		if (proto.nextRouteIndex >= proto.allRoutes.size()) {
 			proto.nextRouteIndex = 0;
 		}
 	}
 
+	/**
+	 * Returns the state of the node at a time, for a checkpoint. A node whose
+	 * path has started is saved at the point it has reached on the path.
+	 * @param time: the simulation time
+	 * @return the state
+	 */
+	ExternalMapCheckpoint.State getState(double time) {
+		ExternalMapCheckpoint.State s = new ExternalMapCheckpoint.State();
+		s.nodeID = route.getNodeID();
+		s.position = route.getPosition();
+		s.nextMoveTime = nextMoveTime;
+		s.nextCheck = nextCheck;
+		s.waitTime = waitTime;
+		s.speed = speed;
+		s.availTime = availTime;
+		s.stopWait = stopWait;
+		s.lastStop = (lastMapNode == null ? null : lastMapNode.getLocation());
+		s.nextStop = (to == null ? null : to.getLocation());
+		if (p != null && !p.getCoords().isEmpty()) {
+			List<Coord> coords = p.getCoords();
+			/** how far along the path the node has moved since the path started */
+			double moved = (time > nextMoveTime ? p.getSpeed() * (time - nextMoveTime) : 0);
+			Coord at = coords.get(0);
+			int next = 1;
+			for (; next < coords.size(); next++) {
+				double d = at.distance(coords.get(next));
+				if (moved < d) {
+					Coord c = coords.get(next);
+					at = new Coord(at.getX() + (c.getX() - at.getX()) * moved / d,
+						at.getY() + (c.getY() - at.getY()) * moved / d);
+					break;
+				}
+				moved -= d;
+				at = coords.get(next);
+			}
+			s.location = at;
+			s.path = new ArrayList<Coord>(coords.size() - next + 1);
+			s.path.add(at);
+			s.path.addAll(coords.subList(Math.min(next, coords.size()), coords.size()));
+			s.pathSpeed = p.getSpeed();
+		}
+		return s;
+	}
+	
+	/**
+	 * Restores the state of the node from a checkpoint
+	 * @param s: the state
+	 */
+	private void setState(ExternalMapCheckpoint.State s) {
+		if (!s.nodeID.equals(route.getNodeID())) {
+			throw new SettingsError("Checkpoint node " + s.nodeID + " got the route of node " + route.getNodeID() +
+				". Use the trace and the settings of the run that wrote the checkpoint.");
+		}
+		route.setPosition(s.position);
+		this.nextMoveTime = s.nextMoveTime;
+		this.nextCheck = s.nextCheck;
+		this.waitTime = s.waitTime;
+		this.speed = s.speed;
+		this.availTime = s.availTime;
+		this.stopWait = s.stopWait;
+		this.lastMapNode = getMapNode(s.lastStop);
+		this.to = getMapNode(s.nextStop);
+		if (s.path != null) {
+			this.p = new Path(s.pathSpeed);
+			for (Coord c : s.path) {
+				this.p.addWaypoint(c);
+			}
+			this.restoredLocation = s.location;
+			this.restoredPath = true;
+		}
+	}
+	
+	/** the map node of a saved stop */
+	private MapNode getMapNode(Coord c) {
+		if (c == null) {
+			return null;
+		}
+		MapNode node = getMap().getNodeByCoord(c);
+		if (node == null) {
+			throw new SettingsError("The checkpoint has a stop at " + c + " that is not on the map");
+		}
+		return node;
+	}
+	
+	/**
+	 * Returns the checkpoints of the group
+	 * @return the checkpoints (null if none)
+	 */
+	public ExternalMapCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+	
 	/**
 	 * Returns a new path by this movement model.
 	 * We set it earlier in the setPath method.
 	 */
 	@Override
 	public Path getPath() {
-		//System.out.println("\n" + SimClock.getTime() + "\tnode " + route.getNodeID() + " at " + this.nextMoveTime + " moves from = " + lastMapNode + " to = " + this.to + "\t, speed =" + this.speed);
+		if (checkpoint != null) {
+			/** the simulation runs: the checkpoints can follow the updates of the world */
+			checkpoint.start();
+		}
 		lastMapNode = this.to;
 		return this.p;
 	}
@@ -203,33 +588,56 @@ public class ExternalMapMovement extends MapBasedMovement implements
 	 * so that we get there at the right time 
 	 */
 	public double calcWaitTime(String nodeID, MapNode from, MapNode to, double difTime, double speed, double distance) {
-		double wT = difTime - (distance/speed);
+		this.speed = calcMoveSpeed(nodeID, from.getLocation(), to.getLocation(), difTime, speed, distance, super.maxSpeed);
+		return difTime - (distance/this.speed);
+	}
+	
+	/** 
+	 * Returns the speed to move at in mode 1: the given speed, or the max speed
+	 * if the time is not enough to get to the destination with the given speed.
+	 * Shared by the models that follow external traces.
+	 * @param nodeID: the node, for the error message
+	 * @param from, to: the source and the destination
+	 * @param difTime: the time available to get to the destination
+	 * @param speed: the speed of the node
+	 * @param distance: the length of the path
+	 * @param maxSpeed: the max speed of the node
+	 * @return the speed
+	 * @throws SimError if the time is not enough even with the max speed
+	 */
+	static double calcMoveSpeed(String nodeID, Coord from, Coord to, double difTime, double speed,
+			double distance, double maxSpeed) {
 		/** if time is not enough to get to destination with the random speed, use the max speed */
-		if (wT < 0) {
-			this.speed = super.maxSpeed;
-			speed = this.speed;
-			wT = difTime - (distance/speed);
+		if (difTime - (distance/speed) < 0) {
+			speed = maxSpeed;
 		}
 		
 		/** if still not enough, throw error */
-		if (wT < 0) {
+		if (difTime - (distance/speed) < 0) {
 			throw new SimError("Node " + nodeID + " is too slow to get from (" 
-				+ from.getLocation().getX() + ", " + from.getLocation().getY() + ") to ("
-				+ to.getLocation().getX() + ", " + to.getLocation().getY() + ") !!");
+				+ from.getX() + ", " + from.getY() + ") to ("
+				+ to.getX() + ", " + to.getY() + ") !!");
 		}
-		return wT;
+		return speed;
 	}
 
 	/** Return the time for the next movement */
 	@Override
 	public double nextPathAvailable() {
+		if (restoredPath) {
+			/** the path of the checkpoint starts when it would have */
+			restoredPath = false;
+			return this.nextMoveTime;
+		}
 		if (this.emmMode == 0) {
 			/** if mode 0, return the time to move and then set the next path */
 			this.nextMoveTime += this.availTime;
+			this.nextMoveTime += this.stopWait;
 			setPath();
 		}
 		else {
 			/** if mode 1, first set the path and return the time */
+			this.nextCheck += this.stopWait;
 			setPath();
 			this.nextMoveTime = this.nextCheck + this.waitTime;
 			this.nextCheck += this.availTime;
@@ -239,29 +647,30 @@ public class ExternalMapMovement extends MapBasedMovement implements
 	
 	
 	public void setPath() {
+		long start = System.nanoTime();
 		/** create path with random speed */
 		this.p = new Path(generateSpeed());
 		/** get the next stop */
 		this.to = route.nextStop();
 		
-		/** find the path to the next stop */
-		List<MapNode> nodePath = pathFinder.getShortestPath(lastMapNode, to);
+		/** find the path to the next stop (shortest paths are precomputed or cached for the group) */
+		long pathStart = System.nanoTime();
+		ShortestPathCache.CachedPath shortest = pathCache.getPath(lastMapNode, to);
+		long pathNanos = System.nanoTime() - pathStart;
+		List<MapNode> nodePath = shortest.getNodes();
 		
 		// this assertion should never fire if the map is checked in read phase
 		assert nodePath.size() > 0 : "No path from " + lastMapNode + " to " +
 			to + ". The simulation map isn't fully connected";
 		
-		double pathDist = 0;
-		for (int i=0; i<nodePath.size(); i++) {
-			MapNode node = nodePath.get(i);			
+		for (MapNode node : nodePath) {
 			this.p.addWaypoint(node.getLocation());
-			if (i<nodePath.size()-1) {
-				pathDist += node.getLocation().distance(nodePath.get(i+1).getLocation());
-			}
 		}
+		double pathDist = shortest.getLength();
 		
 		/** get the available time to move to the next stop */
 		this.availTime = route.nextDifTime();
+		this.stopWait = route.getWaitTime();
 
 		if (pathDist == 0) {
 			/** next stop is the same as this stop */
@@ -281,14 +690,54 @@ public class ExternalMapMovement extends MapBasedMovement implements
 		}
 		/** set the new speed for the path */
 		this.p.setSpeed(this.speed);
+		stats.setPathDone(route.getNodeID(), System.nanoTime() - start, pathNanos,
+			nodePath.size(), pathDist, SimClock.getTime());
 	}	
 	
 	
+	/**
+	 * Returns the shortest path cache of the group (with its hit/miss counters)
+	 * @return the shortest path cache
+	 */
+	public ShortestPathCache getPathCache() {
+		return pathCache;
+	}
+	
+	/**
+	 * Returns the addresses of the hosts that follow the trace IDs of the group
+	 * (starting from hostAddressOffset)
+	 * @return trace ID -> host address
+	 */
+	public Map<String, Integer> getHostAddresses() {
+		return hostAddresses;
+	}
+	
+	/**
+	 * Returns the runtime counters of the group
+	 * @return the counters
+	 */
+	public ExternalMapStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Returns the activation schedule of the group
+	 * @return the schedule
+	 */
+	public ActivationSchedule getSchedule() {
+		return schedule;
+	}
+	
 	/**
 	 * Returns the first stop on the route
 	 */
 	@Override
 	public Coord getInitialLocation() {
+		if (restoredLocation != null) {
+			Coord c = restoredLocation;
+			restoredLocation = null;
+			return c.clone();
+		}
 		if (lastMapNode == null) {
 			lastMapNode = route.nextStop();
 		}
@@ -320,14 +769,25 @@ public class ExternalMapMovement extends MapBasedMovement implements
 	public List<MapNode> getStops() {
 		return route.getStops();
 	}
+
+	/**
+	 * Returns the route of the node
+	 * @return the route
+	 */
+	public ExternalMapRoute getRoute() {
+		return route;
+	}
 	
 	/**
 	 * Returns true if this node is active at the moment (false if not)
 	 * @return true if this node is active (false if not)
 	 */
 	@Override
-	public boolean isActive() {	
+	public boolean isActive() {
 		double time = SimClock.getTime();
+		if (scheduleId >= 0) {
+			return schedule.isActive(scheduleId, time);
+		}
 		
 		if (time < route.getActiveStart() || time > route.getActiveEnd() ) {
 				return false; /** out of range */
@@ -0,0 +1,585 @@
+package input;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import core.SettingsError;
+
+/**
+ * Streaming parser for external movement files.
+ * Reads the file line by line and stores only the id, time, x and y columns
+ * straight into an {@link ExternalMapColumns} store, in one pass.
+ * The separator, the number of header lines and the comment prefix can be set.
+ * Dates are converted to seconds once, when the line is read, with an immutable
+ * (thread-safe) formatter whose pattern can be set.
+ * Big files can be read in parallel: the file is split in byte ranges at line
+ * boundaries, which are parsed by a fork-join pool and merged in file order,
+ * so the result is the same as when the file is read by one thread.
+ * Compressed (.gz) files are read line by line while they are decompressed,
+ * with the threads decompressing the file (see {@link ExternalMapGzip}).
+ */
+public class ExternalMapParser {
+	/** Default separator of the columns */
+	public static final String DEFAULT_SEPARATOR = ",";
+	/** Default prefix for comment lines (lines starting with this are ignored) */
+	public static final String DEFAULT_COMMENT_PREFIX = "#";
+	/** Default number of header lines to skip */
+	public static final int DEFAULT_HEADER_LINES = 0;
+	/** Default number of threads used for reading */
+	public static final int DEFAULT_THREADS = 1;
+	/** Size of the byte ranges that are read in parallel */
+	public static final int CHUNK_SIZE = 8 * 1024 * 1024;
+	/** Default date format */
+	public static final String DEFAULT_DATE_FORMAT = "MM/dd/yy HH:mm";
+
+	/** columns for id, time, x, y */
+	private int idCol;
+	private int timeCol;
+	private int xCol;
+	private int yCol;
+	/** the biggest of the columns. Fields after it are not scanned */
+	private int lastCol;
+	/** Is time in date format (or in seconds)? */
+	private boolean dateTime;
+	/** pattern of the dates */
+	private String datePattern;
+	/** date parser. Immutable, so it can be shared between threads */
+	private DateTimeFormatter dateFormatter;
+	/** time zone of dates without one */
+	private ZoneId zone = ZoneId.systemDefault();
+	/** first year of the two-digit years (yy), or 0 if the pattern has none */
+	private int twoDigitBase;
+
+	private String separator = DEFAULT_SEPARATOR;
+	private String commentPrefix = DEFAULT_COMMENT_PREFIX;
+	private int headerLines = DEFAULT_HEADER_LINES;
+	private int threads = DEFAULT_THREADS;
+	/** maximum position error of simplifying the trajectories (0 for no simplification) */
+	private double simplifyDistance = 0;
+	/** order of the node IDs */
+	private Comparator<String> idOrder = ExternalMapIds.TEXT_ORDER;
+	/** maximum number of samples sorted in memory (0 for the whole file, see {@link ExternalMapSpillReader}) */
+	private int sortChunk = 0;
+	/** directory of the sorted runs (null for the default temporary directory) */
+	private File sortDir;
+
+	/**
+	 * Creates a new parser
+	 * @param idCol, timeCol, xCol, yCol: the columns of the data (starting from 0)
+	 * @param timeFormat: Is time in seconds ("sec") or date format ("date")?
+	 */
+	public ExternalMapParser(int idCol, int timeCol, int xCol, int yCol, String timeFormat) {
+		/** columns for id, time, x, y */
+		int[] cols = {idCol, timeCol, xCol, yCol};
+
+		/** all columns must be different */
+		for (int i=0; i<cols.length-1; i++) {
+			for (int j=i+1; j<cols.length; j++) {
+				if (cols[i] == cols[j]) {
+					throw new SettingsError("Settings columns must be different for Node id, time, x, y");
+				}
+			}
+		}
+		for (int c : cols) {
+			if (c < 0) {
+				throw new SettingsError("Settings columns for Node id, time, x, y can't be negative");
+			}
+			lastCol = Math.max(lastCol, c);
+		}
+
+		this.idCol = idCol;
+		this.timeCol = timeCol;
+		this.xCol = xCol;
+		this.yCol = yCol;
+		this.dateTime = timeFormat.equalsIgnoreCase("date");
+		setDatePattern(DEFAULT_DATE_FORMAT);
+	}
+
+	/**
+	 * Sets the pattern of the dates (see {@link DateTimeFormatter}), e.g.
+	 * "MM/dd/yy HH:mm:ss" or "yyyy-MM-dd HH:mm:ss.SSS" for sub-second precision.
+	 * Numbers are parsed leniently, so "5/3/11 9:05" matches "MM/dd/yy HH:mm".
+	 * Two-digit years (yy) are within 80 years before and 20 years after now,
+	 * as with SimpleDateFormat, so "12/31/99" is in 1999.
+	 * @param datePattern: the pattern
+	 */
+	public void setDatePattern(String datePattern) {
+		LocalDate base = LocalDate.now().minusYears(80);
+		DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder().parseLenient();
+		int base2 = 0;
+		try {
+			/** the pattern is added in parts, with the yy fields between them */
+			int start = 0;
+			boolean quoted = false;
+			for (int i=0; i<datePattern.length(); i++) {
+				char c = datePattern.charAt(i);
+				if (c == '\'') {
+					quoted = !quoted;
+				}
+				if (quoted || c != 'y') {
+					continue;
+				}
+				int end = i;
+				while (end < datePattern.length() && datePattern.charAt(end) == 'y') {
+					end++;
+				}
+				if (end - i == 2) {
+					if (i > start) {
+						builder.appendPattern(datePattern.substring(start, i));
+					}
+					builder.appendValueReduced(ChronoField.YEAR, 2, 2, base);
+					base2 = base.getYear();
+					start = end;
+				}
+				i = end - 1;
+			}
+			if (start < datePattern.length()) {
+				builder.appendPattern(datePattern.substring(start));
+			}
+			this.dateFormatter = builder.toFormatter();
+		} catch (IllegalArgumentException e) {
+			throw new SettingsError("Invalid date format " + datePattern + " (cause: " + e.getMessage() + ")");
+		}
+		this.datePattern = datePattern;
+		this.twoDigitBase = base2;
+	}
+
+	/**
+	 * Sets the separator of the columns
+	 * @param separator: the separator. "\t" (backslash t) can be used for tabs
+	 */
+	public void setSeparator(String separator) {
+		if (separator.equals("\\t")) {
+			separator = "\t";
+		}
+		if (separator.length() == 0) {
+			throw new SettingsError("The separator of the external movement file can't be empty");
+		}
+		this.separator = separator;
+	}
+
+	/**
+	 * Sets the prefix of comment lines
+	 * @param commentPrefix: lines starting with this are ignored
+	 */
+	public void setCommentPrefix(String commentPrefix) {
+		this.commentPrefix = commentPrefix;
+	}
+
+	/**
+	 * Sets how many lines to skip at the beginning of the file
+	 * @param headerLines: the number of header lines
+	 */
+	public void setHeaderLines(int headerLines) {
+		if (headerLines < 0) {
+			throw new SettingsError("The number of header lines can't be negative");
+		}
+		this.headerLines = headerLines;
+	}
+
+	/**
+	 * Returns how many lines are skipped at the beginning of the file
+	 * @return the number of header lines
+	 */
+	public int getHeaderLines() {
+		return headerLines;
+	}
+
+	/**
+	 * Sets how many threads read the file
+	 * @param threads: the number of threads. 1 reads the file sequentially,
+	 * 0 uses all available processors
+	 */
+	public void setThreads(int threads) {
+		if (threads < 0) {
+			throw new SettingsError("The number of threads for reading can't be negative");
+		}
+		if (threads == 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns how many threads read the file
+	 * @return the number of threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sets the maximum position error of simplifying the trajectories
+	 * (see {@link ExternalMapSimplifier})
+	 * @param simplifyDistance: the maximum error (0 for no simplification)
+	 */
+	public void setSimplifyDistance(double simplifyDistance) {
+		if (simplifyDistance < 0) {
+			throw new SettingsError("The simplification distance can't be negative");
+		}
+		this.simplifyDistance = simplifyDistance;
+	}
+
+	/**
+	 * Returns the maximum position error of simplifying the trajectories
+	 * @return the maximum error (0 for no simplification)
+	 */
+	public double getSimplifyDistance() {
+		return simplifyDistance;
+	}
+
+	/**
+	 * Sets how many samples are sorted in memory at a time. Bigger files are
+	 * sorted in chunks that are spilled to temporary files (see {@link ExternalMapSpillReader})
+	 * @param sortChunk: the number of samples (0 for sorting the whole file in memory)
+	 * @param sortDir: directory of the temporary files (null for the default)
+	 */
+	public void setSortChunk(int sortChunk, String sortDir) {
+		if (sortChunk < 0) {
+			throw new SettingsError("The number of samples sorted in memory can't be negative");
+		}
+		this.sortChunk = sortChunk;
+		this.sortDir = (sortDir == null ? null : new File(sortDir));
+		if (this.sortDir != null && !this.sortDir.isDirectory()) {
+			throw new SettingsError("Directory for sorting " + sortDir + " doesn't exist");
+		}
+	}
+
+	/**
+	 * Returns how many samples are sorted in memory at a time
+	 * @return the number of samples (0 for the whole file)
+	 */
+	public int getSortChunk() {
+		return sortChunk;
+	}
+
+	/**
+	 * Returns the directory of the temporary files of sorting
+	 * @return the directory (null for the default)
+	 */
+	public File getSortDir() {
+		return sortDir;
+	}
+
+	/**
+	 * Sets the order of the node IDs, which is the order of the routes
+	 * @param numeric: true for comparing the digits of the IDs as numbers
+	 * ("2" before "10"), false for comparing them as text ("10" before "2")
+	 */
+	public void setNumericIds(boolean numeric) {
+		this.idOrder = (numeric ? ExternalMapIds.NUMERIC_ORDER : ExternalMapIds.TEXT_ORDER);
+	}
+
+	/**
+	 * Returns the order of the node IDs
+	 * @return {@link ExternalMapIds#TEXT_ORDER} or {@link ExternalMapIds#NUMERIC_ORDER}
+	 */
+	public Comparator<String> getIdOrder() {
+		return idOrder;
+	}
+
+	/**
+	 * Returns a description of the parser's settings. Two parsers with the
+	 * same description read the same samples from the same file.
+	 * @return the description of the settings
+	 */
+	public String getDescription() {
+		return "id=" + idCol + ",time=" + timeCol + ",x=" + xCol + ",y=" + yCol +
+			",timeFormat=" + (dateTime ? "date " + datePattern + " zone " + zone.getId() +
+				(twoDigitBase > 0 ? " yy from " + twoDigitBase : "") : "sec") + ",separator=" + separator +
+			",header=" + headerLines + ",comment=" + commentPrefix +
+			",simplify=" + simplifyDistance + (idOrder == ExternalMapIds.NUMERIC_ORDER ? ",ids=numeric" : "");
+	}
+
+	/**
+	 * Reads a whole file
+	 * @param fileName: name of the file
+	 * @return the samples of the file
+	 */
+	public ExternalMapColumns parse(String fileName) {
+		File file = new File(fileName);
+		if (threads > 1 && file.length() > CHUNK_SIZE && !ExternalMapGzip.isCompressed(file)) {
+			return parseParallel(file);
+		}
+		
+		ExternalMapColumns columns = new ExternalMapColumns();
+		try {
+			BufferedReader reader = ExternalMapFiles.openReader(file, threads);
+			try {
+				parse(reader, columns);
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't read ExternalMapRoute-data file " +
+					fileName + " (cause: " + ioe.getMessage() + ")");
+		}
+		return columns;
+	}
+
+	/**
+	 * Reads all lines of a reader and adds the samples to the columns
+	 * @param reader: where the lines are read from
+	 * @param columns: where the samples are added
+	 * @throws IOException if reading fails
+	 */
+	public void parse(BufferedReader reader, ExternalMapColumns columns) throws IOException {
+		int lineNo = 0;
+		String dataRow = reader.readLine();
+		while (dataRow != null) {
+			lineNo++;
+			if (lineNo > headerLines) {
+				parseLine(dataRow, lineNo, columns);
+			}
+			dataRow = reader.readLine();
+		}
+	}
+
+	/**
+	 * Reads a file in parallel, in byte ranges that start and end at line boundaries
+	 * @param file: the file
+	 * @return the samples of the file, in the same order as when read sequentially
+	 */
+	private ExternalMapColumns parseParallel(File file) {
+		List<ChunkTask> tasks = new ArrayList<ChunkTask>();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long length = raf.length();
+				/** skip the header lines */
+				long start = 0;
+				for (int i=0; i<headerLines && start < length; i++) {
+					start = nextLineStart(raf, start);
+				}
+				while (start < length) {
+					long end = Math.min(length, nextLineStart(raf, start + CHUNK_SIZE));
+					tasks.add(new ChunkTask(file, start, end));
+					start = end;
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't read ExternalMapRoute-data file " +
+					file + " (cause: " + ioe.getMessage() + ")");
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		List<ExternalMapColumns> chunks = new ArrayList<ExternalMapColumns>(tasks.size());
+		try {
+			for (ChunkTask t : tasks) {
+				pool.execute(t);
+			}
+			for (ChunkTask t : tasks) {
+				chunks.add(t.join());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		/** merge the chunks in file order */
+		int size = 0;
+		for (ExternalMapColumns c : chunks) {
+			size += c.size();
+		}
+		ExternalMapColumns columns = new ExternalMapColumns(size);
+		for (ExternalMapColumns c : chunks) {
+			columns.append(c);
+		}
+		return columns;
+	}
+
+	/**
+	 * Returns the position after the first new line at or after a position
+	 * @param raf: the file
+	 * @param pos: where to start looking
+	 * @return the position where the next line starts (or the end of the file)
+	 */
+	private static long nextLineStart(RandomAccessFile raf, long pos) throws IOException {
+		byte[] buf = new byte[8192];
+		long length = raf.length();
+		while (pos < length) {
+			raf.seek(pos);
+			int n = raf.read(buf);
+			for (int i=0; i<n; i++) {
+				if (buf[i] == '\n') {
+					return pos + i + 1;
+				}
+			}
+			pos += n;
+		}
+		return length;
+	}
+
+	/** Parses the lines of a byte range of the file */
+	@SuppressWarnings("serial")
+	private class ChunkTask extends RecursiveTask<ExternalMapColumns> {
+		private File file;
+		private long start;
+		private long end;
+
+		public ChunkTask(File file, long start, long end) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected ExternalMapColumns compute() {
+			String text;
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start);
+					byte[] bytes = new byte[buf.remaining()];
+					buf.get(bytes);
+					text = new String(bytes, Charset.defaultCharset());
+				} finally {
+					raf.close();
+				}
+			} catch (IOException ioe) {
+				throw new SettingsError("Couldn't read ExternalMapRoute-data file " +
+						file + " (cause: " + ioe.getMessage() + ")");
+			}
+
+			ExternalMapColumns columns = new ExternalMapColumns(text.length() / 32);
+			int lineNo = 0;
+			int pos = 0;
+			try {
+				while (pos < text.length()) {
+					int eol = text.indexOf('\n', pos);
+					if (eol < 0) {
+						eol = text.length();
+					}
+					int lineEnd = eol;
+					if (lineEnd > pos && text.charAt(lineEnd-1) == '\r') {
+						lineEnd--;
+					}
+					lineNo++;
+					parseLine(text.substring(pos, lineEnd), lineNo, columns);
+					pos = eol + 1;
+				}
+			} catch (SettingsError e) {
+				throw new SettingsError("In the part of " + file + " starting at byte " + start +
+					" (line numbers count from there):" + e.getMessage());
+			}
+			return columns;
+		}
+	}
+
+	/**
+	 * Parses one line and adds its sample to the columns.
+	 * Empty and comment lines are skipped.
+	 * @param dataRow: the line
+	 * @param lineNo: number of the line (for error messages)
+	 * @param columns: where the sample is added
+	 * @return true if a sample was added, false if the line was skipped
+	 */
+	public boolean parseLine(String dataRow, int lineNo, ExternalMapColumns columns) {
+		if (dataRow.trim().length() == 0 ||
+			(commentPrefix.length() > 0 && dataRow.startsWith(commentPrefix))) {
+			return false; /* skip empty and comment lines */
+		}
+
+		String id = null;
+		String time = null;
+		double x = 0;
+		double y = 0;
+
+		int column = 0;
+		int start = 0;
+		try {
+			while (column <= lastCol) {
+				int end = dataRow.indexOf(separator, start);
+				if (end < 0) {
+					end = dataRow.length();
+				}
+
+				if (column == idCol) {
+					id = dataRow.substring(start, end).trim();
+				}
+				else if (column == timeCol) {
+					time = dataRow.substring(start, end).trim();
+				}
+				else if (column == xCol) {
+					x = Double.parseDouble(dataRow.substring(start, end));
+				}
+				else if (column == yCol) {
+					y = Double.parseDouble(dataRow.substring(start, end));
+				}
+
+				column++;
+				if (end == dataRow.length()) {
+					break; /* no more fields */
+				}
+				start = end + separator.length();
+			}
+		} catch (NumberFormatException e) {
+			throw new SettingsError("\nCheck your x, y columns! Not a number in line " + lineNo + ":\n" + dataRow + "\n");
+		}
+
+		if (column <= lastCol) {
+			throw new SettingsError("\nNot enough columns in line " + lineNo + ":\n" + dataRow + "\n");
+		}
+
+		columns.add(columns.internId(id), parseTime(time, lineNo), x, y);
+		return true;
+	}
+
+	/**
+	 * Converts a time of the file to seconds
+	 * @param time: the time as written in the file
+	 * @return the time in seconds (seconds since epoch if time is a date)
+	 */
+	public double parseTime(String time) {
+		return parseTime(time, -1);
+	}
+
+	private double parseTime(String time, int lineNo) {
+		String where = (lineNo < 0 ? "" : " in line " + lineNo);
+		if (dateTime) {
+			try {
+				TemporalAccessor t = dateFormatter.parseBest(time,
+					ZonedDateTime::from, LocalDateTime::from, LocalDate::from);
+				ZonedDateTime date;
+				if (t instanceof ZonedDateTime) {
+					date = (ZonedDateTime)t;
+				}
+				else if (t instanceof LocalDateTime) {
+					date = ((LocalDateTime)t).atZone(zone);
+				}
+				else {
+					date = ((LocalDate)t).atStartOfDay(zone);
+				}
+				return date.toEpochSecond() + date.getNano() / 1e9;
+			} catch (DateTimeParseException e) {
+				throw new SettingsError("\nCheck your dates! Not in right format (" +
+					datePattern + ")" + where + ":\n" + time + "\n");
+			}
+		}
+
+		try {
+			return Double.parseDouble(time);
+		} catch (NumberFormatException e) {
+			throw new SettingsError("\nCheck your time column! Not a number" + where + ":\n" + time + "\n");
+		}
+	}
+}
@@ -1,163 +1,71 @@
 package input;
 
 import java.io.File;
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
-import java.lang.NumberFormatException;
-import java.util.*;
-import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Date;
-import java.util.Calendar;
-import java.util.Comparator;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 
 import core.Coord;
 import core.SettingsError;
 
 /**
  * Class for reading the external movement file in the format of comma separated columns.
+ * The file can also be split in many files (see {@link ExternalMapFiles}), which are sorted one by one and merged.
  * There must be at least four columns: id, time, x, y (0-3). 
  * The default order of the columns is as stated above, but it can be changed through settings (idCol, timeCol, xCol, yCol).
- * The time can be given in date format or in seconds. Current date format is MM/dd/yy HH:mm.
+ * The separator, header lines and comment prefix can be changed through the {@link ExternalMapParser}.
+ * The time can be given in date format or in seconds. Default date format is MM/dd/yy HH:mm.
  * Time zero in the simulation is the earliest time in the file, unless defined otherwise in the settings file (startPoint).
  */
 public class ExternalMapReader {
-	/** Prefix for comment lines (lines starting with this are ignored) */
-	public static final String COMMENT_PREFIX = "#";
-	/** Date format */
-	public static final DateFormat df = new SimpleDateFormat("MM/dd/yy HH:mm");
-	/** List containing lists for stops. A list for each node */
-	List<List<Coord>> locations = new ArrayList<List<Coord>>();
-	/** List containing lists for time space between stops. A list for each node */
-	List<List<Double>> difTimes = new ArrayList<List<Double>>();
+	/** The samples, sorted by node and time */
+	ExternalMapColumns columns;
+	/** First row of each node's samples in the columns */
+	int[] nodeStarts;
+	/** Time space between stops, one for each row of the columns */
+	double[] difs;
 	/** List containing the nodes' IDs */
 	List<String> nodesIDs = new ArrayList<String>();
-	
-	/** New column positions for data in the list: id, time, x, y (0-3) */
-	private int NidCol;
-	private int NtimeCol;
-	private int NxCol;
-	private int NyCol;
+	/** Timings of the phases of reading */
+	ExternalMapLoadStats loadStats;
 
 	public ExternalMapReader (String fileName, int timeCol, int idCol, int xCol, int yCol, String timeFormat, String startingPoint, int emmMode) {
-		
-		/** columns for id, time, x, y */
-		int[] cols = {idCol, timeCol, xCol, yCol};
-		/** input file */
-		File extMapFile = null;
-		/** a line in the file */
-		String dataRow = null;
-		/** List of lists for all the data */
-		List<List<String>> nData = new ArrayList<List<String>>();
-		/** earliest time in the input file */
-		String firstTime = null;
+		this(fileName, new ExternalMapParser(idCol, timeCol, xCol, yCol, timeFormat), startingPoint, emmMode);
+	}
 
-		/** all columns must be different */
-		for (int i=0; i<cols.length-1; i++) {
-			for (int j=i+1; j<cols.length; j++) {
-				if (cols[i] == cols[j]) {
-					throw new SettingsError("Settings columns must be different for Node id, time, x, y");
-				}
-			}
-		}
+	public ExternalMapReader (String fileName, ExternalMapParser parser, String startingPoint, int emmMode) {
+		this(fileName, parser, startingPoint, emmMode, new ExternalMapLoadStats(fileName));
+	}
 
-		/** Setting the column positions */
-		Arrays.sort(cols);
-		if (idCol == cols[0]) { NidCol = 0; }
-		else if (idCol == cols[1]) { NidCol = 1; }
-		else if (idCol == cols[2]) { NidCol = 2; }
-		else { NidCol = 3; }
-		
-		if (timeCol == cols[0]) { NtimeCol = 0; }
-		else if (timeCol == cols[1]) { NtimeCol = 1; }
-		else if (timeCol == cols[2]) { NtimeCol = 2; }
-		else { NtimeCol = 3; }
-		
-		if (xCol == cols[0]) { NxCol = 0; }
-		else if (xCol == cols[1]) { NxCol = 1; }
-		else if (xCol == cols[2]) { NxCol = 2; }
-		else { NxCol = 3; }
-		
-		if (yCol == cols[0]) { NyCol = 0; }
-		else if (yCol == cols[1]) { NyCol = 1; }
-		else if (yCol == cols[2]) { NyCol = 2; }
-		else { NyCol = 3; }
-		
-		/** read the file and save the data needed */
-		try {
-			extMapFile = new File(fileName);
-			BufferedReader reader = new BufferedReader(new FileReader(extMapFile));
-			
-			int row = 0;
-			/** uncomment if first line contains header */
-			//dataRow = reader.readLine();	
-			dataRow = reader.readLine();
-			while (dataRow != null) {
-				if (dataRow.trim().length() == 0 || dataRow.startsWith(COMMENT_PREFIX)) {
-					dataRow = reader.readLine();
-					continue; /* skip empty and comment lines */
-				}
-						
-				nData.add(new ArrayList<String>());
-		
-				String[] dataArray = dataRow.split(","); /* comma separated fields */
-				
-				int column = 0;
-				for (String item:dataArray) {	
-					if ((column == idCol) || (column == timeCol) || (column == xCol) || (column == yCol)) {
-						nData.get(row).add(item.trim());
-					}
-					column++;
-				}
-			
-				dataRow = reader.readLine();
-				row++;
+	public ExternalMapReader (String fileName, ExternalMapParser parser, String startingPoint, int emmMode, ExternalMapLoadStats loadStats) {
+		this.loadStats = loadStats;
+		/** read the file(s) and save the columns needed */
+		List<File> files = ExternalMapFiles.list(fileName);
+		ExternalMapColumns data;
+		if (files.size() == 1) {
+			data = parser.parse(files.get(0).getPath());
+			if (data.size() == 0) {
+				throw new SettingsError("ExternalMapRoute-data file " + fileName + " contains no data");
 			}
-			reader.close();
-		} catch (IOException ioe){
-			throw new SettingsError("Couldn't read ExternalMapRoute-data file " + 
-					fileName + 	" (cause: " + ioe.getMessage() + ")");
-		}
-		
-		System.out.println("Done Reading!\n\n");
-		
-		
-		/** Dumping duplicates (same host, same time, same location */
-		HashSet<List<String>> hs = new HashSet<List<String>>();
-		hs.addAll(nData);
-		nData.clear();
-		nData.addAll(hs);
+			loadStats.phase("read", data.size());
 			
-		/** Sorting by time */
-		if (timeFormat.equals("date")) {
-			Collections.sort(nData, new CompareClassB(NtimeCol));
+			/** Sorting by node id and time, dumping duplicates (same host, same time, same location) */
+			data.sortByIdAndTime(data.getIdRanks(parser.getIdOrder()));
+			loadStats.phase("sort", data.size());
 		}
 		else {
-			Collections.sort(nData, new CompareClassC(NtimeCol));
+			data = readShards(files, parser, fileName);
 		}
 			
 		/** Check and set the startingPoint. Either from settings or input file */
-		firstTime = nData.get(0).get(NtimeCol);
+		double firstTime = data.getTime(0);
+		for (int i=1; i<data.size(); i++) {
+			firstTime = Math.min(firstTime, data.getTime(i));
+		}
+		double startTime;
 		if (startingPoint != null) {
-			double startDiff;
-			if (timeFormat.equals("date")) {
-				try {
-					df.parse(startingPoint);
-				} catch (ParseException e) {
-					e.printStackTrace();
-					throw new SettingsError("\nStarting point is not in the right format");
-				}
-				startDiff = dateDiff(startingPoint, firstTime);
-			}
-			else {
-				startDiff = Double.parseDouble(firstTime) - Double.parseDouble(startingPoint);
-			}
+			startTime = parser.parseTime(startingPoint);
+			double startDiff = firstTime - startTime;
 			
 			if (startDiff < 0) {
 				throw new SettingsError("startPoint must be less or equal to the earliest time in the input file." +
@@ -165,253 +73,203 @@ public class ExternalMapReader {
 			}
 		}
 		else {
-			startingPoint = firstTime;
-		}
-
-		/** Sorting by node id */
-		Collections.sort(nData, new CompareClassA(NidCol));
-		
-		/** Printing all data collected from file */		
-		/*
-		System.out.println();
-		for(int i=0; i<nData.size(); i++) {  
-			for(int j=0; j<nData.get(i).size(); j++) {  
-				System.out.print(nData.get(i).get(j) + "\t");  
-			}  
-		System.out.println();  
+			startTime = firstTime;
 		}
-		*/
 		
 		/** time1, time2: subsequent times to calculate time space between locations */
-		String time1 = null;
-		String time2 = null;
-		int cur_node = 0;		
-		String node_id1 = nData.get(0).get(NidCol);
-		locations.add(new ArrayList<Coord>());
-		difTimes.add(new ArrayList<Double>());
-		nodesIDs.add(nData.get(0).get(NidCol));
+		double time1 = startTime;
+		double time2;
+		int cur_node = 0;
+		int[] starts = new int[data.getNrofIds() + 1];
+		difs = new double[data.size()];
+		int node_id1 = data.getId(0);
+		nodesIDs.add(data.getIdName(node_id1));
 
-		/** Creating locations and difTimes lists */
-		for(int i=0; i<nData.size(); i++) {
-			String node_id2 = nData.get(i).get(NidCol);
+		/** nodes at two places at the same time (all are reported together) */
+		List<String> conflicts = new ArrayList<String>();
+		
+		/** Creating the difTimes of the nodes */
+		for(int row=0; row<data.size(); row++) {
+			int node_id2 = data.getId(row);
 			
-			if (!node_id2.equals(node_id1)) /* moving onto next node */
+			if (node_id2 != node_id1) /* moving onto next node */
 			{
-				nodesIDs.add(nData.get(i).get(NidCol));
-				locations.add(new ArrayList<Coord>());
-				difTimes.add(new ArrayList<Double>());
+				nodesIDs.add(data.getIdName(node_id2));
 				cur_node++;
+				starts[cur_node] = row;
 			}		
-						
-			double x = Double.parseDouble(nData.get(i).get(NxCol));
-			double y = Double.parseDouble(nData.get(i).get(NyCol));
-			Coord crd = new Coord(x, y);
-			locations.get(cur_node).add(crd);
 			
 			/** first time1 is the starting point */
-			int dl = locations.get(cur_node).size();
-			if (dl == 1) { time1 = startingPoint; }
+			if (row == starts[cur_node]) { time1 = startTime; }
 			
-			double dif;
-			time2 = nData.get(i).get(NtimeCol);
-			if (timeFormat.equals("date")) {
-				dif = dateDiff(time1, time2);
-			}
-			else { dif = Double.parseDouble(time2) - Double.parseDouble(time1); }
+			time2 = data.getTime(row);
+			double dif = time2 - time1;
 			time1 = time2;
-			difTimes.get(cur_node).add(dif);
+			difs[row] = dif;
 			
 			/** A node can be only at one place at a time */
-			if (dif == 0) {
-				int lastEntry = locations.get(cur_node).size();
-				if (lastEntry > 1) {
-					if (((locations.get(cur_node).get(lastEntry-1)).getX() != (locations.get(cur_node).get(lastEntry-2)).getX())
-						|| ((locations.get(cur_node).get(lastEntry-1)).getY() != (locations.get(cur_node).get(lastEntry-2)).getY())) {
-							throw new SettingsError("A node can't be at two different places at the same time!\n\n" + 
-								"node " + node_id2 + " at " + time1 + "\n");
-					}
+			if (dif == 0 && row > starts[cur_node]) {
+				if (data.getX(row) != data.getX(row-1) || data.getY(row) != data.getY(row-1)) {
+					conflicts.add("node " + data.getIdName(node_id2) + " at " + time1);
 				}
 			}
 			node_id1 = node_id2;
 		}
-				
-		/** Printing locations and difTimes lists */		
-		/*
-		System.out.println();
-		for(int i=0; i<locations.size(); i++) {  
-			for(int j=0; j<locations.get(i).size(); j++) {  
-				System.out.print("(" + (locations.get(i).get(j)).getX() + ", " + (locations.get(i).get(j)).getY() + ") \t");  
-			}  
-			System.out.println("\n\n");  
-		}
+		checkConflicts(conflicts);
+		starts[cur_node + 1] = data.size();
+		nodeStarts = Arrays.copyOf(starts, cur_node + 2);
+		columns = data;
+		loadStats.phase("times", data.size());
 		
-		System.out.println();
-		for(int i=0; i<difTimes.size(); i++) {  
-			for(int j=0; j<difTimes.get(i).size(); j++) {  
-				System.out.print(difTimes.get(i).get(j) + "\t");  
-			}  
-			System.out.println();  
+		if (parser.getSimplifyDistance() > 0) {
+			simplify(parser.getSimplifyDistance(), startTime);
 		}
-		*/
 	}	
 	
-	/** Method to calculate date difference in seconds */
-	public double dateDiff(String one, String two) {
-        //DateFormat df = new SimpleDateFormat("MM/dd/yy HH:mm");
-		Date d1 = new Date();
-		Date d2 = new Date();
-
-        try {
-            d1 = df.parse(one);
-			d2 = df.parse(two);			
-		} catch (ParseException e) {
-            e.printStackTrace();
-			throw new SettingsError("\nCheck your dates! Not in right format:\n" + one + "\n" + two + "\n");
+	/**
+	 * Throws one error that lists all the nodes found at two places at the same time
+	 * @param conflicts: the node and time of each conflict
+	 * @throws SettingsError if there are conflicts
+	 */
+	static void checkConflicts(List<String> conflicts) {
+		if (conflicts.isEmpty()) {
+			return;
 		}
+		StringBuilder sb = new StringBuilder("A node can't be at two different places at the same time!\n\n");
+		for (String c : conflicts) {
+			sb.append(c).append("\n");
+		}
+		throw new SettingsError(sb.toString());
+	}
+	
+	/**
+	 * Reads the files of a sharded trace: each file is sorted on its own and the
+	 * sorted files are merged (k-way), so the whole trace is never sorted at once.
+	 * The files are freed while they are merged (see {@link ExternalMapColumns#merge}).
+	 */
+	private ExternalMapColumns readShards(List<File> files, ExternalMapParser parser, String fileName) {
+		List<ExternalMapColumns> shards = new ArrayList<ExternalMapColumns>();
+		long rows = 0;
+		for (File f : files) {
+			ExternalMapColumns shard = parser.parse(f.getPath());
+			rows += shard.size();
+			shards.add(shard);
+		}
+		if (rows == 0) {
+			throw new SettingsError("ExternalMapRoute-data files " + fileName + " contain no data");
+		}
+		loadStats.phase("read", rows);
 		
-		Calendar c1 = Calendar.getInstance();
-		c1.clear();
-		c1.setTime(d1);
-		
-		Calendar c2 = Calendar.getInstance();
-		c2.clear();
-		c2.setTime(d2);
+		for (ExternalMapColumns shard : shards) {
+			shard.sortByIdAndTime(shard.getIdRanks(parser.getIdOrder()));
+		}
+		loadStats.phase("sort", rows);
 		
-		double time1 = c1.getTimeInMillis();
-        double time2 = c2.getTimeInMillis();
-
-        /** Calculate difference in milliseconds */
-        double diff = time2 - time1;
-
-        /** Difference in seconds */
-        double diffSec = diff / 1000;
-		return diffSec;
+		ExternalMapColumns data = ExternalMapColumns.merge(shards, parser.getIdOrder());
+		loadStats.phase("merge", data.size());
+		loadStats.note(files.size() + " files merged");
+		return data;
 	}
 	
-	/** Method to get locations list of lists */
-	public List<List<Coord>> getLocations () {
-		return locations;
+	/**
+	 * Drops the samples that are within a distance from the simplified trajectories
+	 * and computes the time spaces between the samples that are kept
+	 */
+	private void simplify(double maxError, double startTime) {
+		int before = columns.size();
+		boolean[] keep = new boolean[before];
+		double error = ExternalMapSimplifier.simplify(columns, nodeStarts, maxError, keep);
+		
+		int[] starts = new int[nodeStarts.length];
+		int n = 0;
+		for (int i=0; i<nodeStarts.length - 1; i++) {
+			starts[i] = n;
+			for (int row=nodeStarts[i]; row<nodeStarts[i+1]; row++) {
+				if (keep[row]) {
+					n++;
+				}
+			}
+		}
+		starts[nodeStarts.length - 1] = n;
+		nodeStarts = starts;
+		columns.retain(keep);
+		
+		difs = new double[columns.size()];
+		for (int i=0; i<nodeStarts.length - 1; i++) {
+			double time1 = startTime;
+			for (int row=nodeStarts[i]; row<nodeStarts[i+1]; row++) {
+				difs[row] = columns.getTime(row) - time1;
+				time1 = columns.getTime(row);
+			}
+		}
+		loadStats.phase("simplify", columns.size());
+		loadStats.note(String.format("simplified %d of %d samples away, max position error %.3f (bound %.3f)",
+			before - columns.size(), before, error, maxError));
 	}
 	
-	/** Method to get difTimes list of lists */
-	public List<List<Double>> getDifTimes() {
-		return difTimes;
+	/**
+	 * Returns the samples, sorted by node and time, without duplicates.
+	 * The samples of node i (in the order of {@link #getNodesIDs()}) are
+	 * the rows from getNodeStarts()[i] to getNodeStarts()[i+1] (exclusive).
+	 * @return the samples
+	 */
+	public ExternalMapColumns getColumns() {
+		return columns;
 	}
 	
-	/** Method to get IDs list */
-	public List<String> getNodesIDs() {
-		return nodesIDs;
+	/**
+	 * Returns where the samples of each node start in the columns
+	 * @return the first row of each node, and the number of rows at the end
+	 */
+	public int[] getNodeStarts() {
+		return nodeStarts;
 	}
-
-
-	/** Class used for sorting data by id */
-	private class CompareClassA implements Comparator<List<String>> {
 	
-		public int idC;
-	
-		public CompareClassA(int column) {
-			this.idC = column;
-		}
-	
-		public int compare(List<String> ena, List<String> dio) {
-			ArrayList one = (ArrayList)ena;
-			ArrayList two = (ArrayList)dio;
-			int result = 0;
-			if (one.size() == 0 || two.size() == 0) {
-				result = 0;
-			} else {  
-				String st1 = (String)one.get(idC);	
-				String st2 = (String)two.get(idC);
-				int r = st1.compareTo(st2);
-				if (r == 0) {
-					result = 0;
-				}
-				else if (r < 0) {
-					result = -1;
-				}
-				else {
-					result = 1;
-				}
-			}
-			return result;  
-		}  
+	/**
+	 * Returns the time space of each sample from the previous sample
+	 * of its node (for the first sample from the starting point)
+	 * @return the time differences, one for each row of the columns
+	 */
+	public double[] getDifs() {
+		return difs;
 	}
-
-
-	/** Class used for sorting data by time (date) */
-	private class CompareClassB implements Comparator<List<String>> {
 	
-		public int tC;
-	
-		public CompareClassB(int column) {
-			tC = column;
-		}
+	/**
+	 * Returns the timings and row counts of the phases of reading
+	 * @return the stats of reading the file
+	 */
+	public ExternalMapLoadStats getLoadStats() {
+		return loadStats;
+	}
 	
-		public int compare(List<String> e, List<String> d) {
-			int result = 0;
-			ArrayList ena = (ArrayList)e;
-			ArrayList dio = (ArrayList)d;
-			if (ena.size() == 0 || dio.size() == 0) {
-				result = 0;
-			} else {
-				String one = (String)ena.get(tC);
-				String two = (String)dio.get(tC);
-				double r = dateDiff(one, two);
-				if (r == 0) {
-					result = 0;
-				}
-				else if (r < 0) {
-					result = 1;
-				}
-				else {
-					result = -1;
-				}
-			}	
-			return result;  
+	/** Method to get locations list of lists. Creates the lists */
+	public List<List<Coord>> getLocations () {
+		List<List<Coord>> locations = new ArrayList<List<Coord>>();
+		for (int i=0; i<nodesIDs.size(); i++) {
+			List<Coord> l = new ArrayList<Coord>();
+			for (int row=nodeStarts[i]; row<nodeStarts[i+1]; row++) {
+				l.add(new Coord(columns.getX(row), columns.getY(row)));
+			}
+			locations.add(l);
 		}
+		return locations;
 	}
-
-
-	/** Class used for sorting data by time (seconds) */
-	private class CompareClassC implements Comparator<List<String>> {
 	
-		public int timeC;
-	
-		public CompareClassC(int column) {
-			timeC = column;
+	/** Method to get difTimes list of lists. Creates the lists */
+	public List<List<Double>> getDifTimes() {
+		List<List<Double>> difTimes = new ArrayList<List<Double>>();
+		for (int i=0; i<nodesIDs.size(); i++) {
+			List<Double> l = new ArrayList<Double>();
+			for (int row=nodeStarts[i]; row<nodeStarts[i+1]; row++) {
+				l.add(difs[row]);
+			}
+			difTimes.add(l);
 		}
+		return difTimes;
+	}
 	
-		public int compare(List<String> ena, List<String> dio) {
-			ArrayList one = (ArrayList)ena;
-			ArrayList two = (ArrayList)dio;
-			int result = 0;
-			if (one.size() == 0 || two.size() == 0) {
-				result = 0;
-			} else {  
-				String time1 = (String)ena.get(timeC);	
-				String time2 = (String)dio.get(timeC);
-				double r = 0;
-				/** Calculate difference in seconds */
-				try {
-					double t1 = Double.parseDouble(time1);
-					double t2 = Double.parseDouble(time2);
-					r = t2 - t1;
-				} catch (NumberFormatException e) {
-					e.printStackTrace();
-					throw new SettingsError("\nCheck your time column! Not a number in lines (column " + timeC + "):\n" + ena + "\n" + dio + "\n");
-				}
-			
-				if (r == 0) {
-					result = 0;
-				}
-				else if (r < 0) {
-					result = 1;
-				}
-				else {
-					result = -1;
-				}
-			}
-			return result;  
-		}  
+	/** Method to get IDs list */
+	public List<String> getNodesIDs() {
+		return nodesIDs;
 	}
 }
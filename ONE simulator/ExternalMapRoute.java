@@ -1,23 +1,43 @@
 package movement.map;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import input.ExternalMapColumns;
+import input.ExternalMapParser;
+import input.ExternalMapLoadStats;
 import input.ExternalMapReader;
+import input.ExternalMapSpillReader;
 import core.Coord;
 import core.SettingsError;
 
 /**
  * A route that consists of map nodes.
+ * The stops are kept as indexes to a table of map nodes that is shared by all
+ * the routes of a group, and the times as a primitive array. Replicas share
+ * these arrays and keep only their own position on the route.
+ * Consecutive samples at the same map node are kept as one stop with a wait
+ * time, so a node that stays in place doesn't need a movement for every sample.
  */
 public class ExternalMapRoute {
 	
-	private List<MapNode> stops;
-	private List<Double> tempTimes;
+	/** The distinct stops of the group. Shared by the routes read together */
+	private MapNode[] nodeTable;
+	/** The stops of this route as indexes to the nodeTable. Shared by the replicas */
+	private int[] stops;
+	/** The time in seconds between stops. Shared by the replicas */
+	private double[] tempTimes;
+	/** The time in seconds spent at each stop after arriving (null if none). Shared by the replicas */
+	private double[] waits;
 	private String nodeID = null;
 	private int index, index1;
+	/** the index of the last time given by nextDifTime (0 before the first) */
+	private int lastDif;
 	/** When does the node first and last appear in the data. 
 	 * It doesn't move or exchange data, if out of range. 
 	 */ 
@@ -29,10 +49,20 @@ public class ExternalMapRoute {
 	 * @param tempTimes: The time in seconds between stops
 	 */
 	public ExternalMapRoute(List<MapNode> stops, List<Double> tempTimes, String nodeID) {
-		assert stops.size() > 0 : "Route needs stops";
-		assert index < stops.size() : "Too big start index for route";		
-		this.stops = stops;
-		this.tempTimes = tempTimes;
+		this(stops.toArray(new MapNode[stops.size()]), identity(stops.size()), toArray(tempTimes), nodeID);
+	}
+	
+	/**
+	 * Creates a new external map route that shares its arrays.
+	 * Runs of stops at the same map node are merged into one stop with a wait time.
+	 * @param nodeTable: The map nodes the stops refer to
+	 * @param stops: The stops of this route as indexes to the nodeTable
+	 * @param tempTimes: The time in seconds between stops
+	 */
+	public ExternalMapRoute(MapNode[] nodeTable, int[] stops, double[] tempTimes, String nodeID) {
+		assert stops.length > 0 : "Route needs stops";
+		assert index < stops.length : "Too big start index for route";		
+		this.nodeTable = nodeTable;
 		this.nodeID = nodeID;
 		this.index = 0;
 		this.index1 = 1; /** node becomes active after the first time */
@@ -42,8 +72,114 @@ public class ExternalMapRoute {
 		for (double t : tempTimes) {
 			sum += t;
 		}
-		activeStart = tempTimes.get(0);
+		activeStart = tempTimes[0];
 		activeEnd = sum;
+		
+		coalesce(stops, tempTimes);
+	}
+	
+	/**
+	 * Creates a new external map route whose runs of stops are already merged
+	 * @param nodeTable: The map nodes the stops refer to
+	 * @param stops: The stops of this route as indexes to the nodeTable
+	 * @param tempTimes: The time in seconds between stops
+	 * @param waits: The time in seconds spent at each stop (null for none)
+	 * @param activeEnd: the last time when the node is active
+	 */
+	public ExternalMapRoute(MapNode[] nodeTable, int[] stops, double[] tempTimes, double[] waits, String nodeID, double activeEnd) {
+		assert stops.length > 0 : "Route needs stops";
+		this.nodeTable = nodeTable;
+		this.stops = stops;
+		this.tempTimes = tempTimes;
+		this.waits = waits;
+		this.nodeID = nodeID;
+		this.index = 0;
+		this.index1 = 1;
+		this.activeStart = tempTimes[0];
+		this.activeEnd = activeEnd;
+	}
+	
+	/**
+	 * Merges every run of stops at the same map node into its first stop: the
+	 * time spaces of the other stops of the run become the wait time of that stop.
+	 * Movement times stay the same: the node arrives at the first stop of the run
+	 * and leaves after the time of the last one. The last stop of the route is
+	 * never merged, so the route ends the same way.
+	 */
+	private void coalesce(int[] stops, double[] tempTimes) {
+		this.stops = stops;
+		this.tempTimes = tempTimes;
+		int n = 1;
+		for (int i=1; i<stops.length - 1; i++) {
+			if (nodeTable[stops[i]] != nodeTable[stops[i-1]]) {
+				n++;
+			}
+		}
+		if (stops.length > 1) {
+			n++; /* the last stop */
+		}
+		if (n == stops.length) {
+			return; /* nothing to merge */
+		}
+		
+		this.stops = new int[n];
+		this.tempTimes = new double[n];
+		this.waits = new double[n];
+		int k = 0;
+		for (int i=0; i<stops.length; i++) {
+			if (i > 0 && i < stops.length - 1 && nodeTable[stops[i]] == nodeTable[stops[i-1]]) {
+				this.waits[k-1] += tempTimes[i];
+				continue;
+			}
+			this.stops[k] = stops[i];
+			this.tempTimes[k] = tempTimes[i];
+			k++;
+		}
+	}
+	
+	/**
+	 * Creates a replica that shares the arrays of a route
+	 * @param r: the route to replicate
+	 */
+	private ExternalMapRoute(ExternalMapRoute r) {
+		this.nodeTable = r.nodeTable;
+		this.stops = r.stops;
+		this.tempTimes = r.tempTimes;
+		this.waits = r.waits;
+		this.nodeID = r.nodeID;
+		this.index = 0;
+		this.index1 = 1;
+		this.activeStart = r.activeStart;
+		this.activeEnd = r.activeEnd;
+	}
+	
+	/**
+	 * Creates a route without stop arrays, for subclasses that keep the stops elsewhere
+	 * @param nodeID: the node's ID
+	 * @param activeStart, activeEnd: when does the node first and last appear in the data
+	 */
+	protected ExternalMapRoute(String nodeID, double activeStart, double activeEnd) {
+		this.nodeID = nodeID;
+		this.index = 0;
+		this.index1 = 1;
+		this.activeStart = activeStart;
+		this.activeEnd = activeEnd;
+	}
+	
+	private static int[] identity(int n) {
+		int[] a = new int[n];
+		for (int i=0; i<n; i++) {
+			a[i] = i;
+		}
+		return a;
+	}
+	
+	private static double[] toArray(List<Double> l) {
+		double[] a = new double[l.size()];
+		for (int i=0; i<a.length; i++) {
+			a[i] = l.get(i);
+		}
+		return a;
 	}
 		
 	/**
@@ -51,27 +187,56 @@ public class ExternalMapRoute {
 	 * @param index The index to set
 	 */
 	public void setNextIndex(int index) {
-		if (index > stops.size()) {
-			index = stops.size();
+		if (index > stops.length) {
+			index = stops.length;
 		}
 		
 		this.index = index;
 	}
 	
+	/**
+	 * Returns the position of a replica on the route, for saving it
+	 * @return the next stop, the next time and the last time given
+	 */
+	public int[] getPosition() {
+		return new int[] {index, index1, lastDif};
+	}
+	
+	/**
+	 * Moves a replica to a position saved by {@link #getPosition()}
+	 * @param position: the next stop, the next time and the last time given
+	 */
+	public void setPosition(int[] position) {
+		if (position.length != 3 || position[0] < 0 || position[0] >= stops.length ||
+			position[1] < 0 || position[1] >= tempTimes.length || position[2] < 0 || position[2] >= tempTimes.length) {
+			throw new SettingsError("Invalid position " + Arrays.toString(position) + " on the route of node " + nodeID);
+		}
+		this.index = position[0];
+		this.index1 = position[1];
+		this.lastDif = position[2];
+	}
+	
 	/**
 	 * Returns the number of stops on this route
 	 * @return the number of stops on this route
 	 */
 	public int getNrofStops() {
-		return stops.size();
+		return stops.length;
 	}
 	
 	/**
 	 * Returns the stops on this route
-	 * @return the stops on this route
+	 * @return the stops on this route (a read-only view)
 	 */
 	public List<MapNode> getStops() {
-		return this.stops;
+		return new AbstractList<MapNode>() {
+			public MapNode get(int i) {
+				return nodeTable[stops[i]];
+			}
+			public int size() {
+				return stops.length;
+			}
+		};
 	}
 	
 	/**
@@ -79,11 +244,11 @@ public class ExternalMapRoute {
 	 * @return the next stop on the route
 	 */
 	public MapNode nextStop() {
-		MapNode next = stops.get(index);
+		MapNode next = nodeTable[stops[index]];
 		
 		index++;
-		if (index >= stops.size()) { /** reached last stop */
-			index = stops.size()-1; /** go next to prev to last stop */
+		if (index >= stops.length) { /** reached last stop */
+			index = stops.length-1; /** go next to prev to last stop */
 		}
 		
 		return next;		
@@ -94,23 +259,55 @@ public class ExternalMapRoute {
 	 * @return the time available for the next route
 	 */
 	public double nextDifTime() {
-		double next = tempTimes.get(index1);
+		double next = tempTimes[index1];
+		lastDif = index1;
 		index1++;
 		
-		if (index1 >= tempTimes.size()) {
-				index1 = tempTimes.size()-1;
+		if (index1 >= tempTimes.length) {
+				index1 = tempTimes.length-1;
 
 		}
 		
 		return next;
 	}
 	
+	/**
+	 * Returns the time to wait at the stop of the last time given by {@link #nextDifTime()}
+	 * (at the first stop before the first time), after arriving there
+	 * @return the time to wait at the stop
+	 */
+	public double getWaitTime() {
+		return (waits == null ? 0 : waits[lastDif]);
+	}
+	
+	/**
+	 * Returns the wait times of the stops on this route
+	 * @return the time spent at each stop after arriving (a read-only view)
+	 */
+	public List<Double> getWaitTimes() {
+		return new AbstractList<Double>() {
+			public Double get(int i) {
+				return (waits == null ? 0.0 : waits[i]);
+			}
+			public int size() {
+				return getNrofStops();
+			}
+		};
+	}
+	
 	/**
 	 * Returns the difTimes on this route
-	 * @return the difTimes on this route
+	 * @return the difTimes on this route (a read-only view)
 	 */
 	public List<Double> getDifTimes() {
-		return this.tempTimes;
+		return new AbstractList<Double>() {
+			public Double get(int i) {
+				return tempTimes[i];
+			}
+			public int size() {
+				return tempTimes.length;
+			}
+		};
 	}
 	
 	/**
@@ -142,7 +339,7 @@ public class ExternalMapRoute {
 	 * @return a replicate of this route
 	 */
 	public ExternalMapRoute replicate() {
-		return new ExternalMapRoute(stops, tempTimes, nodeID);
+		return new ExternalMapRoute(this);
 	}
 	
 	public String toString() {
@@ -160,47 +357,201 @@ public class ExternalMapRoute {
 	 * @return A list of ExternalMapRoutes that were read
 	 */
 	public static List<ExternalMapRoute> readRoutes(String fileName, int timeCol, int idCol, int xCol, int yCol, String timeFormat, String startingPoint, int emmMode, SimMap map) {
+		return readRoutes(fileName, new ExternalMapParser(idCol, timeCol, xCol, yCol, timeFormat), startingPoint, emmMode, map);
+	}
+	
+	/**
+	 * Reads routes from files defined in Settings
+	 * @param fileName: name of the file where to read routes
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param emmMode: mode of the external movement model
+	 * @param map SimMap: where corresponding map nodes are found
+	 * @return A list of ExternalMapRoutes that were read
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, ExternalMapParser parser, String startingPoint, int emmMode, SimMap map) {
+		return readRoutes(fileName, parser, startingPoint, emmMode, new MapNodeIndex(map, 0));
+	}
+	
+	/**
+	 * Reads routes from files defined in Settings
+	 * @param fileName: name of the file where to read routes
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param emmMode: mode of the external movement model
+	 * @param index: index of the sim map where corresponding map nodes are found
+	 * @return A list of ExternalMapRoutes that were read
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, ExternalMapParser parser, String startingPoint, int emmMode, MapNodeIndex index) {
+		return readRoutes(fileName, parser, startingPoint, emmMode, index, new ExternalMapLoadStats(fileName));
+	}
+	
+	/**
+	 * Reads routes from files defined in Settings
+	 * @param fileName: name of the file where to read routes
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param emmMode: mode of the external movement model
+	 * @param index: index of the sim map where corresponding map nodes are found
+	 * (null for stops that are not on a map, see {@link #readTraceRoutes})
+	 * @param loadStats: where the timings of the phases of reading are added
+	 * @return A list of ExternalMapRoutes that were read
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, ExternalMapParser parser, String startingPoint, int emmMode, MapNodeIndex index, ExternalMapLoadStats loadStats) {
 		List<ExternalMapRoute> routes = new ArrayList<ExternalMapRoute>();
-		ExternalMapReader reader = new ExternalMapReader(fileName, timeCol, idCol, xCol, yCol, timeFormat, startingPoint, emmMode);
-		List<List<Coord>> coords;
-		List<List<Double>> times;
-		List<String> nodesIDs;
-		int l_index = 0;
-		File extMapFile = null;
-		boolean mirror = map.isMirrored();
-		double xOffset = map.getOffset().getX();
-		double yOffset = map.getOffset().getY();
-		
-		extMapFile = new File(fileName);
-		coords = reader.getLocations();
-		times = reader.getDifTimes();
-		nodesIDs = reader.getNodesIDs();
-		
-		for (List<Coord> l : coords) {			
-			List<MapNode> nodes = new ArrayList<MapNode>();
-			for (Coord c : l) {
-				/** make coordinates match sim map data */
-				if (mirror) {
-					c.setLocation(c.getX(), -c.getY());
-				}
-				c.translate(xOffset, yOffset);
-				MapNode node = map.getNodeByCoord(c);
-				if (node == null) {
-					Coord orig = c.clone();
-					orig.translate(-xOffset, -yOffset);
-					orig.setLocation(orig.getX(), -orig.getY());
-					
-					throw new SettingsError("ExternalMapRoute in file " + extMapFile + 
-							" contained invalid coordinate " + c + " orig: " +
-							orig);
+		List<String> nodesIDs = new ArrayList<String>();
+		List<int[]> stops = new ArrayList<int[]>();
+		List<double[]> difTimes = new ArrayList<double[]>();
+		File extMapFile = new File(fileName);
+		
+		/** every distinct location is resolved (all together) and stored once for the group */
+		Locations locations = new Locations();
+		if (parser.getSortChunk() > 0) {
+			/** too big to sort in memory: sorted in runs on disk, merged node by node */
+			ExternalMapSpillReader spill = new ExternalMapSpillReader(fileName, parser, startingPoint,
+				parser.getSortChunk(), parser.getSortDir(), loadStats);
+			try {
+				while (spill.nextNode()) {
+					ExternalMapColumns data = spill.getColumns();
+					nodesIDs.add(spill.getNodeID());
+					stops.add(locations.add(data, 0, data.size()));
+					difTimes.add(Arrays.copyOf(spill.getDifs(), data.size()));
 				}
-				nodes.add(node);
+			} finally {
+				spill.close();
+			}
+		}
+		else {
+			ExternalMapReader reader = new ExternalMapReader(fileName, parser, startingPoint, emmMode, loadStats);
+			ExternalMapColumns data = reader.getColumns();
+			int[] starts = reader.getNodeStarts();
+			double[] difs = reader.getDifs();
+			nodesIDs = reader.getNodesIDs();
+			for (int i=0; i<nodesIDs.size(); i++) {
+				stops.add(locations.add(data, starts[i], starts[i+1]));
+				difTimes.add(Arrays.copyOfRange(difs, starts[i], starts[i+1]));
+			}
+		}
+		double[] xs = locations.xs;
+		double[] ys = locations.ys;
+		int nrofCoords = locations.size();
+		locations = null;
+		
+		/** distinct locations to map nodes. Locations that snap to the same node share it */
+		MapNode[] resolved = (index != null ? index.getNodes(xs, ys, nrofCoords) : freeNodes(xs, ys, nrofCoords));
+		List<MapNode> table = new ArrayList<MapNode>();
+		Map<MapNode, Integer> tableIndex = new HashMap<MapNode, Integer>();
+		int[] toTable = new int[resolved.length];
+		for (int k=0; k<resolved.length; k++) {
+			if (resolved[k] == null) {
+				throwInvalid(index, xs[k], ys[k], extMapFile);
+			}
+			Integer t = tableIndex.get(resolved[k]);
+			if (t == null) {
+				t = table.size();
+				table.add(resolved[k]);
+				tableIndex.put(resolved[k], t);
+			}
+			toTable[k] = t;
+		}
+		for (int[] l : stops) {
+			for (int j=0; j<l.length; j++) {
+				l[j] = toTable[l[j]];
 			}
-			
-			routes.add(new ExternalMapRoute(nodes, times.get(l_index), nodesIDs.get(l_index)));
-			l_index++;
 		}
+		loadStats.phase("resolve", nrofCoords);
+		
+		MapNode[] nodeTable = table.toArray(new MapNode[table.size()]);
+		for (int i=0; i<nodesIDs.size(); i++) {
+			routes.add(new ExternalMapRoute(nodeTable, stops.get(i), difTimes.get(i), nodesIDs.get(i)));
+		}
+		loadStats.phase("build", routes.size());
 		
 		return routes;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Reads routes whose stops are not on a map: every distinct location of the file
+	 * is a map node of its own, at the coordinates of the file and without neighbors.
+	 * Nodes move straight from a stop to the next one.
+	 * @param fileName: name of the file where to read routes
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param emmMode: mode of the external movement model
+	 * @param loadStats: where the timings of the phases of reading are added
+	 * @return A list of ExternalMapRoutes that were read
+	 */
+	public static List<ExternalMapRoute> readTraceRoutes(String fileName, ExternalMapParser parser, String startingPoint, int emmMode, ExternalMapLoadStats loadStats) {
+		return readRoutes(fileName, parser, startingPoint, emmMode, (MapNodeIndex)null, loadStats);
+	}
+	
+	/** The distinct locations of the samples, numbered in the order they are first seen */
+	private static class Locations {
+		private Map<Coord, Integer> index = new HashMap<Coord, Integer>();
+		private double[] xs = new double[1024];
+		private double[] ys = new double[1024];
+		private Coord probe = new Coord(0, 0);
+		
+		/** the numbers of the locations of the rows from..to (exclusive) of the samples */
+		public int[] add(ExternalMapColumns data, int from, int to) {
+			int[] stops = new int[to - from];
+			for (int row=from; row<to; row++) {
+				probe.setLocation(data.getX(row), data.getY(row));
+				Integer coord = index.get(probe);
+				if (coord == null) {
+					coord = index.size();
+					if (coord == xs.length) {
+						xs = Arrays.copyOf(xs, coord * 2);
+						ys = Arrays.copyOf(ys, coord * 2);
+					}
+					xs[coord] = probe.getX();
+					ys[coord] = probe.getY();
+					index.put(probe.clone(), coord);
+				}
+				stops[row - from] = coord;
+			}
+			return stops;
+		}
+		
+		public int size() {
+			return index.size();
+		}
+	}
+	
+	/** map nodes at the coordinates, not on any map */
+	private static MapNode[] freeNodes(double[] xs, double[] ys, int n) {
+		MapNode[] nodes = new MapNode[n];
+		for (int i=0; i<n; i++) {
+			nodes[i] = new MapNode(new Coord(xs[i], ys[i]));
+		}
+		return nodes;
+	}
+	
+	/**
+	 * Finds the map node of a coordinate of the data
+	 * @param index: index of the sim map where corresponding map nodes are found
+	 * @param x, y: the coordinate as read from the file
+	 * @param extMapFile: the file (for the error message)
+	 * @return the map node at the coordinate
+	 */
+	protected static MapNode getMapNode(MapNodeIndex index, double x, double y, File extMapFile) {
+		MapNode node = index.getNode(x, y);
+		if (node == null) {
+			throwInvalid(index, x, y, extMapFile);
+		}
+		return node;
+	}
+	
+	/** Throws the error for a coordinate without map node */
+	private static void throwInvalid(MapNodeIndex index, double x, double y, File extMapFile) {
+		SimMap map = index.getMap();
+		Coord c = new Coord(x, map.isMirrored() ? -y : y);
+		c.translate(map.getOffset().getX(), map.getOffset().getY());
+		Coord orig = new Coord(x, y);
+		
+		throw new SettingsError("ExternalMapRoute in file " + extMapFile + 
+				" contained invalid coordinate " + c + " orig: " +
+				orig + (index.getSnapDistance() > 0 ? 
+				" (no map node within " + index.getSnapDistance() + ")" : ""));
+	}
+}
@@ -0,0 +1,343 @@
+package movement.map;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import input.ExternalMapFiles;
+import input.ExternalMapLoadStats;
+import input.ExternalMapParser;
+import core.Coord;
+import core.SettingsError;
+
+/**
+ * Compiled binary cache of external map routes.
+ * The first time a trace is loaded, its routes are written as map node indices
+ * and time differences. The loaded routes share the map's node table. Later runs with the same trace file, parser settings,
+ * startPoint and map memory-map the cache and build the routes without parsing text.
+ */
+public class ExternalMapRouteCache {
+	/** Magic number at the beginning of a cache file ("EMMC") */
+	private static final int MAGIC = 0x454D4D43;
+	/** Version of the cache file format */
+	private static final int VERSION = 2;
+	/** Size of the memory-mapped windows */
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	/** Charset of the node IDs */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Default extension of cache files (added to the trace file's name) */
+	public static final String CACHE_EXTENSION = ".cache";
+
+	/**
+	 * Reads routes from the cache file if it matches the trace, else reads the trace
+	 * with {@link ExternalMapRoute#readRoutes} and writes the cache file for the next run.
+	 * @param fileName: name of the trace file
+	 * @param cacheName: name of the cache file (null for the trace file name + {@value #CACHE_EXTENSION})
+	 * @param parser: the parser for the lines of the trace file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param emmMode: mode of the external movement model
+	 * @param mapIndex: index of the sim map where corresponding map nodes are found
+	 * @return A list of ExternalMapRoutes
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, String cacheName, ExternalMapParser parser,
+			String startingPoint, int emmMode, MapNodeIndex mapIndex) {
+		return readRoutes(fileName, cacheName, parser, startingPoint, emmMode, mapIndex, new ExternalMapLoadStats(fileName));
+	}
+
+	/**
+	 * Reads routes from the cache file if it matches the trace, else reads the trace
+	 * with {@link ExternalMapRoute#readRoutes} and writes the cache file for the next run.
+	 * @param fileName: name of the trace file
+	 * @param cacheName: name of the cache file (null for the trace file name + {@value #CACHE_EXTENSION})
+	 * @param parser: the parser for the lines of the trace file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param emmMode: mode of the external movement model
+	 * @param mapIndex: index of the sim map where corresponding map nodes are found
+	 * @param loadStats: where the timings of the phases of reading are added
+	 * @return A list of ExternalMapRoutes
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, String cacheName, ExternalMapParser parser,
+			String startingPoint, int emmMode, MapNodeIndex mapIndex, ExternalMapLoadStats loadStats) {
+		SimMap map = mapIndex.getMap();
+		if (cacheName == null) {
+			if (ExternalMapFiles.isMultiple(fileName)) {
+				throw new SettingsError("The route cache of many ExternalMapRoute-data files needs a cache file name");
+			}
+			cacheName = fileName + CACHE_EXTENSION;
+		}
+		File cacheFile = new File(cacheName);
+		long[] key = getKey(ExternalMapFiles.list(fileName), parser, startingPoint, mapIndex);
+		loadStats.phase("hash", 0);
+
+		if (cacheFile.exists()) {
+			List<ExternalMapRoute> routes = load(cacheFile, key, map);
+			if (routes != null) {
+				loadStats.phase("cache", routes.size());
+				return routes;
+			}
+			loadStats.restart();
+		}
+
+		List<ExternalMapRoute> routes = ExternalMapRoute.readRoutes(fileName, parser, startingPoint, emmMode, mapIndex, loadStats);
+		try {
+			write(cacheFile, key, routes, map);
+			loadStats.phase("write", routes.size());
+		} catch (IOException ioe) {
+			/** not fatal, the next run just reads the trace again */
+			System.err.println("Couldn't write route cache " + cacheFile + " (cause: " + ioe.getMessage() + ")");
+		}
+		return routes;
+	}
+
+	/**
+	 * Computes the key of a trace: the hash and length of the file(s) and
+	 * a hash of the parser settings, the startPoint, the map and the snapping distance.
+	 */
+	private static long[] getKey(List<File> files, ExternalMapParser parser, String startingPoint, MapNodeIndex mapIndex) {
+		SimMap map = mapIndex.getMap();
+		long settingsHash = 17;
+		settingsHash = 31 * settingsHash + parser.getDescription().hashCode();
+		settingsHash = 31 * settingsHash + (startingPoint == null ? 0 : startingPoint.hashCode());
+
+		long mapHash = 17;
+		Coord offset = map.getOffset();
+		mapHash = 31 * mapHash + (map.isMirrored() ? 1 : 0);
+		mapHash = 31 * mapHash + Double.doubleToLongBits(offset.getX());
+		mapHash = 31 * mapHash + Double.doubleToLongBits(offset.getY());
+		for (MapNode n : map.getNodes()) {
+			mapHash = 31 * mapHash + Double.doubleToLongBits(n.getLocation().getX());
+			mapHash = 31 * mapHash + Double.doubleToLongBits(n.getLocation().getY());
+		}
+		mapHash = 31 * mapHash + map.getNodes().size();
+		mapHash = 31 * mapHash + Double.doubleToLongBits(mapIndex.getSnapDistance());
+
+		CRC32 crc = new CRC32();
+		long length = 0;
+		for (File file : files) {
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					FileChannel ch = raf.getChannel();
+					long fileLength = ch.size();
+					for (long pos = 0; pos < fileLength; pos += WINDOW_SIZE) {
+						long size = Math.min(WINDOW_SIZE, fileLength - pos);
+						crc.update(ch.map(FileChannel.MapMode.READ_ONLY, pos, size));
+					}
+					length += fileLength;
+				} finally {
+					raf.close();
+				}
+			} catch (IOException ioe) {
+				throw new SettingsError("Couldn't read ExternalMapRoute-data file " +
+						file + " (cause: " + ioe.getMessage() + ")");
+			}
+		}
+
+		return new long[] {crc.getValue(), length, settingsHash, mapHash};
+	}
+
+	/**
+	 * Writes the routes to the cache file. The file is first written
+	 * under a temporary name and then moved over the old cache, so a broken
+	 * write or a crash never leaves a broken cache.
+	 */
+	private static void write(File cacheFile, long[] key, List<ExternalMapRoute> routes, SimMap map)
+			throws IOException {
+		Map<MapNode, Integer> nodeIndex = new HashMap<MapNode, Integer>();
+		List<MapNode> nodes = map.getNodes();
+		for (int i=0; i<nodes.size(); i++) {
+			nodeIndex.put(nodes.get(i), i);
+		}
+
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (long k : key) {
+				out.writeLong(k);
+			}
+			out.writeInt(routes.size());
+			for (ExternalMapRoute r : routes) {
+				byte[] id = r.getNodeID().getBytes(UTF8);
+				out.writeInt(id.length);
+				out.write(id);
+
+				List<MapNode> stops = r.getStops();
+				List<Double> times = r.getDifTimes();
+				List<Double> waits = r.getWaitTimes();
+				out.writeInt(stops.size());
+				for (MapNode n : stops) {
+					out.writeInt(nodeIndex.get(n));
+				}
+				for (double t : times) {
+					out.writeDouble(t);
+				}
+				for (double w : waits) {
+					out.writeDouble(w);
+				}
+				out.writeDouble(r.getActiveEnd());
+			}
+		} finally {
+			out.close();
+		}
+
+		/** replaces the old cache at once: a crash leaves either of them */
+		try {
+			Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			tmp.delete();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Loads the routes of a cache file
+	 * @return the routes or null if the cache doesn't match the key (or is broken)
+	 */
+	private static List<ExternalMapRoute> load(File cacheFile, long[] key, SimMap map) {
+		List<MapNode> mapNodes = map.getNodes();
+		MapNode[] nodes = mapNodes.toArray(new MapNode[mapNodes.size()]);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+			try {
+				MappedInput in = new MappedInput(raf.getChannel());
+				if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+					return null;
+				}
+				for (long k : key) {
+					if (in.getLong() != k) {
+						return null; /** stale cache */
+					}
+				}
+
+				/** a route takes at least its ID length, stop count and active end */
+				int nrofRoutes = in.getCount(16);
+				List<ExternalMapRoute> routes = new ArrayList<ExternalMapRoute>(nrofRoutes);
+				for (int i=0; i<nrofRoutes; i++) {
+					byte[] id = new byte[in.getCount(1)];
+					in.get(id);
+
+					/** a stop has its node index, time and wait time */
+					int nrofStops = in.getCount(20);
+					int[] stops = new int[nrofStops];
+					double[] times = new double[nrofStops];
+					for (int j=0; j<nrofStops; j++) {
+						stops[j] = in.getInt();
+						if (stops[j] < 0 || stops[j] >= nodes.length) {
+							throw new IndexOutOfBoundsException("bad map node index");
+						}
+					}
+					for (int j=0; j<nrofStops; j++) {
+						times[j] = in.getDouble();
+					}
+					double[] waits = null;
+					for (int j=0; j<nrofStops; j++) {
+						double w = in.getDouble();
+						if (w != 0 && waits == null) {
+							waits = new double[nrofStops];
+						}
+						if (waits != null) {
+							waits[j] = w;
+						}
+					}
+					double activeEnd = in.getDouble();
+					routes.add(new ExternalMapRoute(nodes, stops, times, waits, new String(id, UTF8), activeEnd));
+				}
+				return routes;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			System.err.println("Couldn't read route cache " + cacheFile + " (cause: " + ioe.getMessage() + ")");
+		} catch (IndexOutOfBoundsException e) {
+			System.err.println("Route cache " + cacheFile + " is broken");
+		} catch (NegativeArraySizeException e) {
+			System.err.println("Route cache " + cacheFile + " is broken");
+		}
+		return null;
+	}
+
+	/**
+	 * Sequential reader of a file that maps it in windows,
+	 * so files bigger than 2GB can be read too.
+	 */
+	private static class MappedInput {
+		private FileChannel ch;
+		private long size;
+		/** file position of the current window */
+		private long windowPos;
+		private MappedByteBuffer window;
+
+		public MappedInput(FileChannel ch) throws IOException {
+			this.ch = ch;
+			this.size = ch.size();
+			this.windowPos = 0;
+			map(0);
+		}
+
+		private void map(long pos) throws IOException {
+			windowPos = pos;
+			window = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, size - pos));
+		}
+
+		/** makes sure that the next n bytes are in the current window */
+		private void ensure(int n) throws IOException {
+			if (window.remaining() < n) {
+				long pos = windowPos + window.position();
+				if (size - pos < n) {
+					throw new IndexOutOfBoundsException("end of file");
+				}
+				map(pos);
+			}
+		}
+
+		public int getInt() throws IOException {
+			ensure(4);
+			return window.getInt();
+		}
+
+		/**
+		 * Reads a count of items that must fit in the rest of the file
+		 * @param itemSize: the least number of bytes of an item
+		 * @return the count
+		 */
+		public int getCount(int itemSize) throws IOException {
+			int n = getInt();
+			long left = size - windowPos - window.position();
+			if (n < 0 || (long)n * itemSize > left) {
+				throw new IndexOutOfBoundsException("bad count " + n);
+			}
+			return n;
+		}
+
+		public long getLong() throws IOException {
+			ensure(8);
+			return window.getLong();
+		}
+
+		public double getDouble() throws IOException {
+			ensure(8);
+			return window.getDouble();
+		}
+
+		public void get(byte[] b) throws IOException {
+			ensure(b.length);
+			window.get(b);
+		}
+	}
+}
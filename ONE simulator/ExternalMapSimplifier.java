@@ -0,0 +1,81 @@
+package input;
+
+import java.util.Arrays;
+
+/**
+ * Simplification of the trajectories of an external movement file.
+ * Uses Douglas-Peucker with the synchronized distance: the error of a dropped
+ * sample is its distance from where the node is, at the time of the sample,
+ * when it moves at constant speed between the kept samples around it.
+ * So both the positions and the times of the simplified trajectory stay
+ * within the bound. The first and last samples of every node are kept.
+ */
+public class ExternalMapSimplifier {
+
+	private ExternalMapSimplifier() {}
+
+	/**
+	 * Finds the samples to keep
+	 * @param columns: the samples, sorted by node and time
+	 * @param nodeStarts: the first row of each node, and the number of rows at the end
+	 * @param maxError: maximum distance of a dropped sample from the simplified trajectory
+	 * @param keep: set to true for the samples to keep (one for each row)
+	 * @return the largest error of a dropped sample
+	 */
+	public static double simplify(ExternalMapColumns columns, int[] nodeStarts, double maxError, boolean[] keep) {
+		double error = 0;
+		/** segments [from, to] to check, as a stack */
+		int[] stack = new int[64];
+		for (int i=0; i<nodeStarts.length - 1; i++) {
+			int first = nodeStarts[i];
+			int last = nodeStarts[i+1] - 1;
+			keep[first] = true;
+			keep[last] = true;
+
+			int top = 0;
+			stack[top++] = first;
+			stack[top++] = last;
+			while (top > 0) {
+				int to = stack[--top];
+				int from = stack[--top];
+				int worst = -1;
+				double worstError = 0;
+				for (int row=from+1; row<to; row++) {
+					double e = distance(columns, from, to, row);
+					if (e > worstError) {
+						worstError = e;
+						worst = row;
+					}
+				}
+
+				if (worst >= 0 && worstError > maxError) {
+					keep[worst] = true;
+					if (top + 4 > stack.length) {
+						stack = Arrays.copyOf(stack, stack.length * 2);
+					}
+					stack[top++] = from;
+					stack[top++] = worst;
+					stack[top++] = worst;
+					stack[top++] = to;
+				}
+				else {
+					error = Math.max(error, worstError);
+				}
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Returns the synchronized distance of a sample from the segment between two samples
+	 */
+	private static double distance(ExternalMapColumns c, int from, int to, int row) {
+		double dt = c.getTime(to) - c.getTime(from);
+		double f = (dt > 0 ? (c.getTime(row) - c.getTime(from)) / dt : 0);
+		double x = c.getX(from) + f * (c.getX(to) - c.getX(from));
+		double y = c.getY(from) + f * (c.getY(to) - c.getY(from));
+		double dx = c.getX(row) - x;
+		double dy = c.getY(row) - y;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+}
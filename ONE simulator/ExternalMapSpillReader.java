@@ -0,0 +1,485 @@
+package input;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import core.SettingsError;
+
+/**
+ * Reads an external movement file that is too big to be sorted in memory, node
+ * by node. The file is read in chunks of at most a number of samples; each chunk
+ * is sorted by node and time (see {@link ExternalMapColumns#sortByIdAndTime}) and
+ * spilled to a temporary file as a binary run. The runs are then merged while the
+ * samples of each node are taken, so only one chunk, or the samples of one node,
+ * are in memory at a time. The samples of a node, their time differences and the
+ * order of the nodes are the same as those of {@link ExternalMapReader}.
+ * When there are more than {@value #FAN_IN} runs, they are merged in groups first,
+ * so few files are open at a time.
+ */
+public class ExternalMapSpillReader {
+	/** Maximum number of runs merged at a time */
+	public static final int FAN_IN = 64;
+	/** Maximum number of samples of a group in a run file */
+	private static final int GROUP_SIZE = 4096;
+	/** Buffer size of a run file */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private String fileName;
+	private ExternalMapParser parser;
+	private ExternalMapLoadStats loadStats;
+	private File dir;
+	/** the runs not merged yet */
+	private List<File> runs = new ArrayList<File>();
+	private long rows;
+	private double startTime;
+
+	/** dictionary of the node IDs of the file(s), built while spilling */
+	private ExternalMapIds ids;
+	/** the runs being merged, by their next samples */
+	private Run[] heap;
+	private int n;
+	/** samples and time differences of the current node */
+	private ExternalMapColumns node = new ExternalMapColumns();
+	private double[] difs = new double[1024];
+	private String nodeID;
+	/** nodes at two places at the same time (all are reported at the end) */
+	private List<String> conflicts = new ArrayList<String>();
+	/** simplification counts */
+	private long dropped;
+	private double maxError;
+
+	/**
+	 * Reads the file(s) and spills them as sorted runs
+	 * @param fileName: the file, or the files of a trace split in many files
+	 * (see {@link ExternalMapFiles})
+	 * @param parser: the parser for the lines of the files
+	 * @param startingPoint: the starting time of the simulation (null for the earliest time of the file)
+	 * @param chunkSize: maximum number of samples sorted in memory
+	 * @param dir: directory of the temporary files (null for the default)
+	 * @param loadStats: where the timings of the phases of reading are added
+	 */
+	public ExternalMapSpillReader(String fileName, ExternalMapParser parser, String startingPoint,
+		int chunkSize, File dir, ExternalMapLoadStats loadStats) {
+		if (chunkSize < 1) {
+			throw new SettingsError("The number of samples sorted in memory must be at least 1");
+		}
+		this.fileName = fileName;
+		this.parser = parser;
+		this.dir = dir;
+		this.loadStats = loadStats;
+		try {
+			double firstTime = spill(chunkSize);
+			loadStats.phase("spill", rows);
+			loadStats.note(runs.size() + " runs of up to " + chunkSize + " samples");
+
+			if (startingPoint != null) {
+				startTime = parser.parseTime(startingPoint);
+				if (firstTime - startTime < 0) {
+					throw new SettingsError("startPoint must be less or equal to the earliest time in the input file." +
+						"\nThe earliest time is: " + firstTime);
+				}
+			}
+			else {
+				startTime = firstTime;
+			}
+
+			while (runs.size() > FAN_IN) {
+				List<File> merged = new ArrayList<File>();
+				for (int i=0; i<runs.size(); i+=FAN_IN) {
+					List<File> group = runs.subList(i, Math.min(i + FAN_IN, runs.size()));
+					File out = newRun();
+					merged.add(out);
+					mergeRuns(group, out);
+				}
+				runs = merged;
+			}
+			open(runs);
+		} catch (IOException ioe) {
+			close();
+			throw new SettingsError("Couldn't sort ExternalMapRoute-data file " + fileName +
+				" (cause: " + ioe.getMessage() + ")");
+		} catch (RuntimeException re) {
+			close();
+			throw re;
+		}
+	}
+
+	/**
+	 * Reads the files in chunks and writes each chunk, sorted, as a run
+	 * @return the earliest time of the samples
+	 */
+	private double spill(int chunkSize) throws IOException {
+		ExternalMapColumns chunk = new ExternalMapColumns(Math.min(chunkSize, GROUP_SIZE));
+		double firstTime = Double.MAX_VALUE;
+		for (File f : ExternalMapFiles.list(fileName)) {
+			BufferedReader reader = ExternalMapFiles.openReader(f, parser.getThreads());
+			try {
+				int lineNo = 0;
+				String dataRow = reader.readLine();
+				while (dataRow != null) {
+					lineNo++;
+					if (lineNo > parser.getHeaderLines() && parser.parseLine(dataRow, lineNo, chunk)) {
+						firstTime = Math.min(firstTime, chunk.getTime(chunk.size() - 1));
+						rows++;
+						if (chunk.size() >= chunkSize) {
+							writeRun(chunk);
+						}
+					}
+					dataRow = reader.readLine();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		if (rows == 0) {
+			throw new SettingsError("ExternalMapRoute-data file " + fileName + " contains no data");
+		}
+		if (chunk.size() > 0) {
+			writeRun(chunk);
+		}
+		List<String> names = new ArrayList<String>(chunk.getNrofIds());
+		for (int i=0; i<chunk.getNrofIds(); i++) {
+			names.add(chunk.getIdName(i));
+		}
+		ids = new ExternalMapIds(names, parser.getIdOrder());
+		return firstTime;
+	}
+
+	/** sorts a chunk, writes it as a new run and clears it */
+	private void writeRun(ExternalMapColumns chunk) throws IOException {
+		chunk.sortByIdAndTime(chunk.getIdRanks(parser.getIdOrder()));
+		File file = newRun();
+		runs.add(file);
+		RunWriter out = new RunWriter(file);
+		try {
+			for (int i=0; i<chunk.size(); i++) {
+				out.add(chunk.getIdName(chunk.getId(i)), chunk.getTime(i), chunk.getX(i), chunk.getY(i));
+			}
+		} finally {
+			out.close();
+		}
+		chunk.clear();
+	}
+
+	/** merges runs into one and deletes them */
+	private void mergeRuns(List<File> group, File file) throws IOException {
+		open(group);
+		RunWriter out = new RunWriter(file);
+		try {
+			while (n > 0) {
+				Run r = heap[0];
+				out.add(r.name, r.time, r.x, r.y);
+				advance();
+			}
+		} finally {
+			out.close();
+		}
+		for (File f : group) {
+			f.delete();
+		}
+	}
+
+	/** opens runs for merging */
+	private void open(List<File> group) throws IOException {
+		heap = new Run[group.size()];
+		n = 0;
+		for (int i=0; i<group.size(); i++) {
+			Run r = new Run(group.get(i), i, ids);
+			if (r.next()) {
+				heap[n++] = r;
+				up(n - 1);
+			}
+		}
+	}
+
+	/**
+	 * Takes the samples of the next node (in the order of the node IDs)
+	 * @return false if there are no more nodes
+	 */
+	public boolean nextNode() {
+		if (n == 0) {
+			close();
+			ExternalMapReader.checkConflicts(conflicts);
+			if (nodeID != null) {
+				loadStats.phase("merge", rows);
+				if (parser.getSimplifyDistance() > 0) {
+					loadStats.note(String.format("simplified %d of %d samples away, max position error %.3f (bound %.3f)",
+						dropped, rows, maxError, parser.getSimplifyDistance()));
+				}
+				nodeID = null;
+			}
+			return false;
+		}
+		nodeID = heap[0].name;
+		int rank = heap[0].rank;
+		node.clear();
+		int id = node.internId(nodeID);
+		try {
+			while (n > 0 && heap[0].rank == rank) {
+				Run r = heap[0];
+				int last = node.size() - 1;
+				if (last < 0 || node.getTime(last) != r.time || node.getX(last) != r.x || node.getY(last) != r.y) {
+					node.add(id, r.time, r.x, r.y); /* dumping duplicates */
+				}
+				advance();
+			}
+		} catch (IOException ioe) {
+			close();
+			throw new SettingsError("Couldn't read the sorted runs of ExternalMapRoute-data file " + fileName +
+				" (cause: " + ioe.getMessage() + ")");
+		}
+		setDifs();
+		if (parser.getSimplifyDistance() > 0) {
+			simplify();
+		}
+		return true;
+	}
+
+	/** time differences of the samples of the node (the first from the starting point) */
+	private void setDifs() {
+		if (difs.length < node.size()) {
+			difs = new double[Math.max(node.size(), difs.length * 2)];
+		}
+		double time1 = startTime;
+		for (int row=0; row<node.size(); row++) {
+			double time2 = node.getTime(row);
+			difs[row] = time2 - time1;
+			/** A node can be only at one place at a time */
+			if (difs[row] == 0 && row > 0 &&
+				(node.getX(row) != node.getX(row-1) || node.getY(row) != node.getY(row-1))) {
+				conflicts.add("node " + nodeID + " at " + time1);
+			}
+			time1 = time2;
+		}
+	}
+
+	/** drops the samples of the node that are within the distance from its simplified trajectory */
+	private void simplify() {
+		int before = node.size();
+		boolean[] keep = new boolean[before];
+		double error = ExternalMapSimplifier.simplify(node, new int[] {0, before}, parser.getSimplifyDistance(), keep);
+		node.retain(keep);
+		dropped += before - node.size();
+		maxError = Math.max(maxError, error);
+		double time1 = startTime;
+		for (int row=0; row<node.size(); row++) {
+			difs[row] = node.getTime(row) - time1;
+			time1 = node.getTime(row);
+		}
+	}
+
+	/**
+	 * Returns the ID of the current node
+	 * @return the node ID
+	 */
+	public String getNodeID() {
+		return nodeID;
+	}
+
+	/**
+	 * Returns the samples of the current node, sorted by time, without duplicates.
+	 * The store is reused for the next node.
+	 * @return the samples
+	 */
+	public ExternalMapColumns getColumns() {
+		return node;
+	}
+
+	/**
+	 * Returns the time space of each sample of the current node from its previous
+	 * sample (for the first sample from the starting point). The array is reused
+	 * for the next node and can be longer than the samples.
+	 * @return the time differences
+	 */
+	public double[] getDifs() {
+		return difs;
+	}
+
+	/**
+	 * Returns the number of samples read from the file(s)
+	 * @return the number of samples
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * Closes and deletes the temporary files
+	 */
+	public void close() {
+		for (int i=0; i<n; i++) {
+			heap[i].close();
+		}
+		n = 0;
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+	}
+
+	private File newRun() throws IOException {
+		File file = File.createTempFile("extmap", ".run", dir);
+		file.deleteOnExit();
+		return file;
+	}
+
+	/** takes the sample at the top of the heap */
+	private void advance() throws IOException {
+		if (!heap[0].next()) {
+			heap[0].close();
+			heap[0] = heap[--n];
+		}
+		down(0);
+	}
+
+	private void up(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heap[i].compareTo(heap[parent]) >= 0) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void down(int i) {
+		while (true) {
+			int min = i;
+			int l = 2 * i + 1;
+			if (l < n && heap[l].compareTo(heap[min]) < 0) {
+				min = l;
+			}
+			if (l + 1 < n && heap[l+1].compareTo(heap[min]) < 0) {
+				min = l + 1;
+			}
+			if (min == i) {
+				return;
+			}
+			swap(i, min);
+			i = min;
+		}
+	}
+
+	private void swap(int i, int j) {
+		Run t = heap[i];
+		heap[i] = heap[j];
+		heap[j] = t;
+	}
+
+	/**
+	 * Writes a run: groups of samples of the same node, each a node ID, the number
+	 * of samples and their time, x and y, and an empty group at the end
+	 */
+	private static class RunWriter {
+		private DataOutputStream out;
+		private String name;
+		private double[] group = new double[3 * GROUP_SIZE];
+		private int size;
+
+		public RunWriter(File file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		}
+
+		public void add(String name, double time, double x, double y) throws IOException {
+			if (size > 0 && (size == GROUP_SIZE || !name.equals(this.name))) {
+				flush();
+			}
+			this.name = name;
+			group[3 * size] = time;
+			group[3 * size + 1] = x;
+			group[3 * size + 2] = y;
+			size++;
+		}
+
+		private void flush() throws IOException {
+			out.writeUTF(name);
+			out.writeInt(size);
+			for (int i=0; i<3*size; i++) {
+				out.writeDouble(group[i]);
+			}
+			size = 0;
+		}
+
+		public void close() throws IOException {
+			try {
+				if (size > 0) {
+					flush();
+				}
+				out.writeUTF("");
+				out.writeInt(0);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/** A run being merged, with its next sample. Ordered by node ID, time, x, y and then by run */
+	private static class Run implements Comparable<Run> {
+		private DataInputStream in;
+		private int index;
+		private ExternalMapIds ids;
+		private String name;
+		/** number of the node ID in the dictionary */
+		private int rank;
+		private int left;
+		private double time, x, y;
+
+		public Run(File file, int index, ExternalMapIds ids) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			this.index = index;
+			this.ids = ids;
+		}
+
+		/**
+		 * Reads the next sample
+		 * @return false if the run has ended
+		 */
+		public boolean next() throws IOException {
+			if (left == 0) {
+				name = in.readUTF();
+				left = in.readInt();
+				if (left == 0) {
+					return false;
+				}
+				rank = ids.getIndex(name);
+			}
+			time = in.readDouble();
+			x = in.readDouble();
+			y = in.readDouble();
+			left--;
+			return true;
+		}
+
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException ioe) {
+				/** nothing more to read from it anyway */
+			}
+		}
+
+		public int compareTo(Run o) {
+			int r = Integer.compare(rank, o.rank);
+			if (r == 0) {
+				r = Double.compare(time, o.time);
+			}
+			if (r == 0) {
+				r = Double.compare(x, o.x);
+			}
+			if (r == 0) {
+				r = Double.compare(y, o.y);
+			}
+			return (r != 0 ? r : Integer.compare(index, o.index));
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package movement;
+
+import input.ExternalMapEvents;
+import movement.map.ShortestPathCache;
+
+/**
+ * Runtime counters of an {@link ExternalMapMovement} group: setPath calls and
+ * their latency, shortest path latency, zero-distance moves and active nodes.
+ * One instance is shared by the prototype and all its replicas. A summary is
+ * printed every report interval (of simulated time) and recorded as a JFR event
+ * (ExternalMapMovement.Summary); every setPath call is recorded as a JFR event
+ * (ExternalMapMovement.SetPath) when a flight recording enables it (see
+ * {@link ExternalMapEvents}: the group runs without JFR too).
+ */
+public class ExternalMapStats {
+	private String name;
+	private ShortestPathCache pathCache;
+	/** simulated time between summaries (0 for no summaries) */
+	private double reportInterval;
+	private double nextReport;
+
+	private long setPathCalls;
+	private long zeroDistanceMoves;
+	private Histogram setPathTimes = new Histogram();
+	private Histogram pathTimes = new Histogram();
+
+	/** the active times of the nodes of the group */
+	private ActivationSchedule schedule;
+
+	/**
+	 * Creates the stats of a group
+	 * @param name: name of the group in the reports (e.g. the trace file)
+	 * @param reportInterval: simulated time between summaries (0 for no summaries)
+	 * @param pathCache: the shortest path cache of the group, for its counters (null if none)
+	 * @param schedule: the activation schedule of the nodes of the group
+	 */
+	public ExternalMapStats(String name, double reportInterval, ShortestPathCache pathCache,
+		ActivationSchedule schedule) {
+		this.name = name;
+		this.reportInterval = reportInterval;
+		this.nextReport = reportInterval;
+		this.pathCache = pathCache;
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Records a setPath call
+	 * @param nodeID: the node whose path was set
+	 * @param setPathNanos: how long the call took
+	 * @param pathNanos: how long finding the shortest path took
+	 * @param waypoints: number of waypoints of the path
+	 * @param distance: length of the path
+	 * @param time: the simulated time
+	 */
+	public void setPathDone(String nodeID, long setPathNanos, long pathNanos, int waypoints, double distance, double time) {
+		setPathCalls++;
+		setPathTimes.add(setPathNanos);
+		pathTimes.add(pathNanos);
+		if (distance == 0) {
+			zeroDistanceMoves++;
+		}
+
+		ExternalMapEvents.get().setPath(nodeID, setPathNanos, pathNanos, waypoints, distance);
+
+		if (reportInterval > 0 && time >= nextReport) {
+			while (nextReport <= time) {
+				nextReport += reportInterval;
+			}
+			report(time);
+		}
+	}
+
+	/**
+	 * Returns the number of nodes of the group active at a time
+	 * @param time: the simulated time
+	 * @return the number of active nodes
+	 */
+	public int getNrofActive(double time) {
+		schedule.advance(time);
+		return schedule.getNrofActive();
+	}
+
+	/**
+	 * Prints a summary of the counters and records it as a JFR event
+	 * @param time: the simulated time
+	 */
+	public void report(double time) {
+		int active = getNrofActive(time);
+		System.out.println(summary(time, active));
+
+		ExternalMapEvents.get().summary(name, time, active, getNrofNodes() - active,
+			setPathCalls, zeroDistanceMoves, (long)setPathTimes.getMean(), setPathTimes.getPercentile(0.99),
+			(long)pathTimes.getMean(), pathTimes.getPercentile(0.99));
+	}
+
+	private String summary(double time, int active) {
+		return String.format("%s at %.0f: %d/%d nodes active, %d setPath calls (%d zero-distance moves)" +
+			"\n\tsetPath: %s\n\tshortest path: %s%s",
+			name, time, active, getNrofNodes(), setPathCalls, zeroDistanceMoves,
+			setPathTimes, pathTimes, (pathCache != null ? "\n\t" + pathCache : ""));
+	}
+
+	public long getSetPathCalls() {
+		return setPathCalls;
+	}
+
+	public long getZeroDistanceMoves() {
+		return zeroDistanceMoves;
+	}
+
+	public Histogram getSetPathTimes() {
+		return setPathTimes;
+	}
+
+	public Histogram getPathTimes() {
+		return pathTimes;
+	}
+
+	public int getNrofNodes() {
+		return schedule.getNrofModels();
+	}
+
+	/**
+	 * Latency histogram with power of two buckets (of nanoseconds)
+	 */
+	public static class Histogram {
+		/** bucket b counts the values in [2^b, 2^(b+1)) (bucket 0 also 0) */
+		private long[] buckets = new long[64];
+		private long count;
+		private long total;
+		private long max;
+
+		public void add(long nanos) {
+			buckets[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))]++;
+			count++;
+			total += nanos;
+			max = Math.max(max, nanos);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return (count == 0 ? 0 : (double)total / count);
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns an upper bound of a percentile
+		 * @param p: the percentile (0..1)
+		 * @return the upper bound of the bucket of the percentile (nanoseconds)
+		 */
+		public long getPercentile(double p) {
+			long rank = (long)Math.ceil(p * count);
+			long seen = 0;
+			for (int b=0; b<buckets.length; b++) {
+				seen += buckets[b];
+				if (seen >= rank && seen > 0) {
+					return Math.min(max, (2L << b) - 1);
+				}
+			}
+			return max;
+		}
+
+		public String toString() {
+			return String.format("mean %.1f us, p50 < %.1f us, p99 < %.1f us, max %.1f us",
+				getMean() / 1e3, getPercentile(0.5) / 1e3, getPercentile(0.99) / 1e3, max / 1e3);
+		}
+	}
+}
@@ -0,0 +1,503 @@
+package input;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import core.SettingsError;
+import core.SimError;
+
+/**
+ * Time-ordered source of the samples of an external movement file, for reading
+ * the file while the simulation runs instead of keeping it all in memory.
+ * The file must be sorted by time. A trace split in many files (see {@link ExternalMapFiles})
+ * is read as one file, with the files merged in time order ({@link ExternalMapMergeReader}):
+ * each file must be sorted by time, but the files don't have to be concatenated or sorted together.
+ * <p>
+ * When created, the file is read once to find the nodes and, for each node,
+ * its first sample, the number of its samples and its active times. Then the
+ * file is read again, as the nodes ask for their next samples: when a node
+ * needs a sample that isn't read yet, the file is read up to that sample, and
+ * no further. The samples of the other nodes read on the way are kept until
+ * their nodes get to them. So the samples in memory are those of the span of
+ * time between the simulation time and the next sample of the node that is
+ * furthest ahead, usually the node with the longest gap between its samples:
+ * about (samples per second of the file) x (longest gap of a moving node), not
+ * the length of the trace. A node with a sample an hour keeps an hour of the
+ * samples of all the other nodes in memory. The number of samples kept can be
+ * limited with {@link #setMaxBuffered}.
+ * Duplicates are dumped and the time differences are computed the same way as
+ * in {@link ExternalMapReader}.
+ */
+public class ExternalMapStream {
+	/** Default number of samples the window of a node holds before it grows */
+	public static final int DEFAULT_WINDOW = 16;
+
+	private String fileName;
+	private ExternalMapParser parser;
+	/** number of samples the window of a node holds before it grows */
+	private int window;
+	/** number of samples in the windows of the nodes, and the most that may be (0 for no limit) */
+	private long buffered;
+	private long maxBuffered;
+	/** time of the last sample read (for error messages) */
+	private double readTime;
+	/** the start of the simulation (seconds) */
+	private double startTime;
+
+	/** the nodes. Position is the interned id of the node */
+	private NodeWindow[] nodes;
+	/** buffer for the sample of one line. Keeps the interned ids */
+	private ExternalMapColumns line = new ExternalMapColumns(16);
+
+	/** reader of the second pass (null before it starts and after its end) */
+	private ExternalMapMergeReader reader;
+	private boolean eof;
+
+	/**
+	 * Creates a new stream. Reads the file once to find the nodes and their active times.
+	 * @param fileName: name of the file (sorted by time)
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation (null for the earliest time in the file)
+	 * @param window: number of samples the window of a node holds before it grows
+	 */
+	public ExternalMapStream(String fileName, ExternalMapParser parser, String startingPoint, int window) {
+		this(fileName, parser, startingPoint, window, new ExternalMapLoadStats(fileName));
+	}
+
+	/**
+	 * Creates a new stream. Reads the file once to find the nodes and their active times.
+	 * @param fileName: name of the file (sorted by time)
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation (null for the earliest time in the file)
+	 * @param window: number of samples the window of a node holds before it grows
+	 * @param loadStats: where the timing of the first pass is added
+	 */
+	public ExternalMapStream(String fileName, ExternalMapParser parser, String startingPoint, int window, ExternalMapLoadStats loadStats) {
+		if (window < 1) {
+			throw new SettingsError("The window of streamed routes must be at least 1");
+		}
+		if (parser.getSimplifyDistance() > 0) {
+			throw new SettingsError("Streamed routes can't be simplified");
+		}
+		this.fileName = fileName;
+		this.parser = parser;
+		this.window = window;
+
+		NodeWindow[] found = new NodeWindow[16];
+		int nrofNodes = 0;
+		boolean first = true;
+		long r = 0;
+
+		/** first pass: nodes, first samples and active times */
+		try {
+			ExternalMapMergeReader in = open();
+			try {
+				while (in.next(line)) {
+					int id = line.getId(0);
+					double time = line.getTime(0);
+					double x = line.getX(0);
+					double y = line.getY(0);
+					line.clear();
+
+					if (first) {
+						/** the earliest time is the first time of a sorted file */
+						if (startingPoint != null) {
+							startTime = parser.parseTime(startingPoint);
+							if (time - startTime < 0) {
+								throw new SettingsError("startPoint must be less or equal to the earliest time in the input file." +
+									"\nThe earliest time is: " + time);
+							}
+						}
+						else {
+							startTime = time;
+						}
+						first = false;
+					}
+
+					if (id == nrofNodes) {
+						if (nrofNodes == found.length) {
+							found = Arrays.copyOf(found, nrofNodes * 2);
+						}
+						found[nrofNodes++] = new NodeWindow(time - startTime, x, y);
+					}
+					found[id].summarize(time, x, y, line.getIdName(id));
+					r++;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't read ExternalMapRoute-data file " +
+					fileName + " (cause: " + ioe.getMessage() + ")");
+		}
+
+		if (nrofNodes == 0) {
+			throw new SettingsError("ExternalMapRoute-data file " + fileName + " contains no data");
+		}
+		nodes = Arrays.copyOf(found, nrofNodes);
+		loadStats.phase("scan", r);
+	}
+
+	/**
+	 * Limits the number of samples kept in memory. Reading a sample that would
+	 * keep more than that is an error, which names the node that needed it.
+	 * @param maxBuffered: the most samples kept for all the nodes (0 for no limit)
+	 */
+	public void setMaxBuffered(long maxBuffered) {
+		if (maxBuffered < 0) {
+			throw new SettingsError("The limit of the buffered samples can't be negative");
+		}
+		this.maxBuffered = maxBuffered;
+	}
+
+	/**
+	 * Returns the number of samples kept in memory for all the nodes
+	 * @return the number of samples
+	 */
+	public long getNrofBuffered() {
+		return buffered;
+	}
+
+	/** opens the file(s), merged in time order */
+	private ExternalMapMergeReader open() throws IOException {
+		return new ExternalMapMergeReader(ExternalMapFiles.list(fileName), parser);
+	}
+
+	/**
+	 * Returns the nodes sorted by their IDs, in the same order as the routes of {@link ExternalMapReader}
+	 * @return the nodes in order
+	 */
+	public int[] getNodesInOrder() {
+		int[] ranks = line.getIdRanks(parser.getIdOrder());
+		int[] order = new int[ranks.length];
+		for (int i=0; i<ranks.length; i++) {
+			order[ranks[i]] = i;
+		}
+		return order;
+	}
+
+	/**
+	 * Returns the number of nodes
+	 * @return the number of nodes
+	 */
+	public int getNrofNodes() {
+		return nodes.length;
+	}
+
+	/**
+	 * Returns the ID of a node
+	 * @param node: the node
+	 * @return the ID of the node in the file
+	 */
+	public String getNodeID(int node) {
+		return line.getIdName(node);
+	}
+
+	/**
+	 * Returns the number of samples of a node (after dumping duplicates)
+	 * @param node: the node
+	 * @return the number of samples
+	 */
+	public int getNrofSamples(int node) {
+		return nodes[node].total;
+	}
+
+	/**
+	 * Returns the time difference of the first sample of a node from the start
+	 * @param node: the node
+	 * @return the time when the node first appears
+	 */
+	public double getActiveStart(int node) {
+		return nodes[node].firstDif;
+	}
+
+	/**
+	 * Returns the time when a node last appears
+	 * (computed as in {@link movement.map.ExternalMapRoute})
+	 * @param node: the node
+	 * @return the time when node becomes inactive
+	 */
+	public double getActiveEnd(int node) {
+		return nodes[node].activeEnd;
+	}
+
+	/**
+	 * Registers a new reader of the samples of a node.
+	 * The first sample is always available; the reader must {@link #release} the
+	 * samples it doesn't need anymore.
+	 * @param node: the node
+	 * @return the reader's id
+	 */
+	public int register(int node) {
+		return nodes[node].register();
+	}
+
+	/**
+	 * Releases the samples of a node before a sample index for a reader
+	 * @param node: the node
+	 * @param reader: the reader's id (see {@link #register})
+	 * @param index: first index the reader still needs
+	 */
+	public void release(int node, int reader, int index) {
+		nodes[node].release(reader, index);
+	}
+
+	/**
+	 * Returns the time difference of a sample from the previous one
+	 * (for the first sample from the starting point)
+	 * @param node: the node
+	 * @param index: the index of the sample (less than {@link #getNrofSamples})
+	 * @return the time difference
+	 */
+	public double getDifTime(int node, int index) {
+		NodeWindow n = nodes[node];
+		if (index == 0) {
+			return n.firstDif;
+		}
+		int pos = n.position(fill(node, index)); /* fill first, it may replace the arrays */
+		return n.difs[pos];
+	}
+
+	/**
+	 * Returns the x coordinate of a sample
+	 * @param node: the node
+	 * @param index: the index of the sample (less than {@link #getNrofSamples})
+	 * @return the x coordinate
+	 */
+	public double getX(int node, int index) {
+		NodeWindow n = nodes[node];
+		if (index == 0) {
+			return n.firstX;
+		}
+		int pos = n.position(fill(node, index)); /* fill first, it may replace the arrays */
+		return n.xs[pos];
+	}
+
+	/**
+	 * Returns the y coordinate of a sample
+	 * @param node: the node
+	 * @param index: the index of the sample (less than {@link #getNrofSamples})
+	 * @return the y coordinate
+	 */
+	public double getY(int node, int index) {
+		NodeWindow n = nodes[node];
+		if (index == 0) {
+			return n.firstY;
+		}
+		int pos = n.position(fill(node, index)); /* fill first, it may replace the arrays */
+		return n.ys[pos];
+	}
+
+	/**
+	 * Returns the number of samples buffered for a node after a sample index
+	 * @param node: the node
+	 * @param index: the index of the sample
+	 * @return the number of buffered samples from the index on
+	 */
+	public int getNrofBuffered(int node, int index) {
+		NodeWindow n = nodes[node];
+		return Math.max(0, n.added - Math.max(index, n.base));
+	}
+
+	/**
+	 * Makes sure a sample of a node is in its window. If not, reads the file
+	 * up to that sample.
+	 * @return the index
+	 */
+	private int fill(int node, int index) {
+		NodeWindow n = nodes[node];
+		if (index >= n.total) {
+			throw new SimError("Node " + getNodeID(node) + " has no sample " + index);
+		}
+		if (index < n.base) {
+			throw new SimError("Sample " + index + " of node " + getNodeID(node) + " is already released");
+		}
+
+		while (n.added <= index) {
+			if (!readSample()) {
+				throw new SimError("File " + fileName + " ended before all the samples of node " +
+					getNodeID(node) + " were read (was it changed?)");
+			}
+			if (maxBuffered > 0 && buffered > maxBuffered) {
+				throw new SimError("Reading sample " + index + " of node " + getNodeID(node) + " of " + fileName +
+					" needs more than " + maxBuffered + " samples in memory (read up to time " + readTime +
+					"). The samples of the node are too far apart: raise the limit or don't stream the routes.");
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Reads the next sample of the file and adds it to the window of its node
+	 * @return false if the file has ended
+	 */
+	private boolean readSample() {
+		if (eof) {
+			return false;
+		}
+		try {
+			if (reader == null) {
+				reader = open();
+			}
+			if (reader.next(line)) {
+				int id = line.getId(0);
+				double time = line.getTime(0);
+				double x = line.getX(0);
+				double y = line.getY(0);
+				line.clear();
+				readTime = time;
+
+				if (id >= nodes.length) {
+					throw new SimError("File " + fileName + " was changed while streaming routes");
+				}
+				nodes[id].add(time, x, y);
+				return true;
+			}
+			reader.close();
+			reader = null;
+			eof = true;
+			return false;
+		} catch (IOException ioe) {
+			throw new SimError("Couldn't read ExternalMapRoute-data file " +
+					fileName + " (cause: " + ioe.getMessage() + ")");
+		}
+	}
+
+	/** The samples of a node */
+	private class NodeWindow {
+		/** first sample */
+		private double firstDif, firstX, firstY;
+		/** number of samples (after dumping duplicates) and last time of the node */
+		private int total;
+		private double activeEnd;
+		/** activeEnd is summed in an int, the same way as in ExternalMapRoute */
+		private int sum;
+
+		/** last sample added (for time differences and dumping duplicates) */
+		private boolean hasLast;
+		private double lastTime, lastX, lastY;
+
+		/** window of samples: [base, added) are needed, arrayBase is the index at position 0 */
+		private double[] difs = new double[0];
+		private double[] xs = new double[0];
+		private double[] ys = new double[0];
+		private int arrayBase = 1;
+		private int base = 1;
+		private int added = 0;
+
+		/** first index each reader still needs */
+		private int[] readers = new int[0];
+
+		public NodeWindow(double firstDif, double firstX, double firstY) {
+			this.firstDif = firstDif;
+			this.firstX = firstX;
+			this.firstY = firstY;
+		}
+
+		/** first pass: count a sample and update the active times */
+		public void summarize(double time, double x, double y, String nodeID) {
+			if (!accept(time, x, y, nodeID)) {
+				return;
+			}
+			total++;
+			sum += (total == 1 ? firstDif : time - lastTime);
+			activeEnd = sum;
+			setLast(time, x, y);
+		}
+
+		/** second pass: add a sample to the window (if someone will read it) */
+		public void add(double time, double x, double y) {
+			if (!accept(time, x, y, null)) {
+				return;
+			}
+			double dif = (added == 0 ? time - startTime : time - lastTime);
+			setLast(time, x, y);
+			buffered -= held();
+			if (added > 0 && readers.length > 0) { /* first sample is kept separately */
+				if (added - arrayBase == difs.length) {
+					compact();
+				}
+				int pos = added - arrayBase;
+				difs[pos] = dif;
+				xs[pos] = x;
+				ys[pos] = y;
+			}
+			added++;
+			if (readers.length == 0) { /* nobody will read it */
+				base = Math.max(base, added);
+				arrayBase = base;
+			}
+			buffered += held();
+		}
+
+		/** number of samples in the window */
+		private int held() {
+			return Math.max(0, added - base);
+		}
+
+		/** Dumps duplicates and checks that the node isn't at two places at once */
+		private boolean accept(double time, double x, double y, String nodeID) {
+			if (hasLast && time == lastTime) {
+				if (x == lastX && y == lastY) {
+					return false; /* dumping duplicates */
+				}
+				throw new SettingsError("A node can't be at two different places at the same time!\n\n" +
+					"node " + (nodeID != null ? nodeID : "") + " at " + time + "\n");
+			}
+			return true;
+		}
+
+		private void setLast(double time, double x, double y) {
+			hasLast = true;
+			lastTime = time;
+			lastX = x;
+			lastY = y;
+		}
+
+		/** position of a sample index in the window arrays */
+		public int position(int index) {
+			return index - arrayBase;
+		}
+
+		public int register() {
+			readers = Arrays.copyOf(readers, readers.length + 1);
+			readers[readers.length-1] = 1;
+			return readers.length - 1;
+		}
+
+		public void release(int reader, int index) {
+			readers[reader] = Math.max(readers[reader], index);
+			int min = Integer.MAX_VALUE;
+			for (int r : readers) {
+				min = Math.min(min, r);
+			}
+			buffered -= held();
+			base = Math.max(base, Math.min(min, added));
+			buffered += held();
+		}
+
+		/** drops released samples from the front of the window and grows it, if needed */
+		private void compact() {
+			int used = added - base;
+			int start = base - arrayBase;
+			if (2 * (used + 1) > difs.length) {
+				int capacity = Math.max(window, 2 * (used + 1));
+				difs = compacted(difs, start, used, capacity);
+				xs = compacted(xs, start, used, capacity);
+				ys = compacted(ys, start, used, capacity);
+			}
+			else {
+				System.arraycopy(difs, start, difs, 0, used);
+				System.arraycopy(xs, start, xs, 0, used);
+				System.arraycopy(ys, start, ys, 0, used);
+			}
+			arrayBase = base;
+		}
+
+		private double[] compacted(double[] a, int start, int used, int capacity) {
+			double[] n = new double[capacity];
+			System.arraycopy(a, start, n, 0, used);
+			return n;
+		}
+	}
+}
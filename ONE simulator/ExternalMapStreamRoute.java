@@ -0,0 +1,197 @@
+package movement.map;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import input.ExternalMapLoadStats;
+import input.ExternalMapParser;
+import input.ExternalMapStream;
+
+/**
+ * An external map route whose stops are read from an {@link ExternalMapStream}
+ * while the simulation runs. Only the upcoming stops read so far are kept in memory.
+ * The stops and times given are those of the file: runs of samples at the same
+ * place are not merged (as they are in an {@link ExternalMapRoute}), so there are
+ * no wait times, but the node moves at the same times.
+ */
+public class ExternalMapStreamRoute extends ExternalMapRoute {
+
+	private ExternalMapStream stream;
+	/** the node of the stream */
+	private int node;
+	private MapNodeIndex mapIndex;
+	private File extMapFile;
+	/** reader id of this route in the stream (-1 before the first stop) */
+	private int reader = -1;
+	/** next indexes for stops and times */
+	private int index, index1;
+
+	/**
+	 * Creates a new streamed route
+	 * @param stream: where the stops are read from
+	 * @param node: the node of the stream
+	 * @param mapIndex: index of the sim map where corresponding map nodes are found
+	 * @param extMapFile: the file of the stream (for error messages)
+	 */
+	public ExternalMapStreamRoute(ExternalMapStream stream, int node, MapNodeIndex mapIndex, File extMapFile) {
+		super(stream.getNodeID(node), stream.getActiveStart(node), stream.getActiveEnd(node));
+		this.stream = stream;
+		this.node = node;
+		this.mapIndex = mapIndex;
+		this.extMapFile = extMapFile;
+		this.index = 0;
+		this.index1 = 1; /** node becomes active after the first time */
+	}
+
+	/**
+	 * Registers the route in the stream, the first time a stop is needed.
+	 * Routes that are never used (e.g. the prototype's) don't keep samples in the stream.
+	 */
+	private void register() {
+		if (reader < 0) {
+			reader = stream.register(node);
+		}
+	}
+
+	/** the samples before both indexes aren't needed anymore */
+	private void release() {
+		stream.release(node, reader, Math.min(index, index1));
+	}
+
+	@Override
+	public void setNextIndex(int index) {
+		if (index > getNrofStops()) {
+			index = getNrofStops();
+		}
+
+		this.index = index;
+	}
+
+	@Override
+	public int getNrofStops() {
+		return stream.getNrofSamples(node);
+	}
+
+	/**
+	 * Returns the stops in the window of this route
+	 * @return the upcoming stops that are in memory
+	 */
+	@Override
+	public List<MapNode> getStops() {
+		register();
+		List<MapNode> stops = new ArrayList<MapNode>();
+		int n = stream.getNrofBuffered(node, index);
+		for (int i=index; i<index+n; i++) {
+			stops.add(getStop(i));
+		}
+		return stops;
+	}
+
+	@Override
+	public MapNode nextStop() {
+		register();
+		MapNode next = getStop(index);
+
+		index++;
+		if (index >= getNrofStops()) { /** reached last stop */
+			index = getNrofStops()-1; /** go next to prev to last stop */
+		}
+		release();
+
+		return next;
+	}
+
+	@Override
+	public double nextDifTime() {
+		register();
+		double next = stream.getDifTime(node, Math.min(index1, getNrofStops()-1));
+		index1++;
+
+		if (index1 >= getNrofStops()) {
+			index1 = getNrofStops()-1;
+		}
+		release();
+
+		return next;
+	}
+
+	/**
+	 * Returns the time differences in the window of this route
+	 * @return the upcoming time differences that are in memory
+	 */
+	@Override
+	public List<Double> getDifTimes() {
+		register();
+		List<Double> times = new ArrayList<Double>();
+		int n = stream.getNrofBuffered(node, index1);
+		for (int i=index1; i<index1+n; i++) {
+			times.add(stream.getDifTime(node, i));
+		}
+		return times;
+	}
+
+	@Override
+	public ExternalMapRoute replicate() {
+		return new ExternalMapStreamRoute(stream, node, mapIndex, extMapFile);
+	}
+
+	public String toString() {
+		return ("Streamed External Map route with " + getNrofStops() + " stops");
+	}
+
+	/** finds the map node of a stop */
+	private MapNode getStop(int i) {
+		return getMapNode(mapIndex, stream.getX(node, i), stream.getY(node, i), extMapFile);
+	}
+
+	/**
+	 * Creates streamed routes for the nodes of a file sorted by time
+	 * @param fileName: name of the file where to read routes
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param window: number of stops the window of a route holds before it grows
+	 * @param mapIndex: index of the sim map where corresponding map nodes are found
+	 * @return A list of routes, in the same order as {@link ExternalMapRoute#readRoutes}
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, ExternalMapParser parser, String startingPoint, int window, MapNodeIndex mapIndex) {
+		return readRoutes(fileName, parser, startingPoint, window, mapIndex, new ExternalMapLoadStats(fileName));
+	}
+
+	/**
+	 * Creates streamed routes for the nodes of a file sorted by time
+	 * @param fileName: name of the file where to read routes
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param window: number of stops the window of a route holds before it grows
+	 * @param mapIndex: index of the sim map where corresponding map nodes are found
+	 * @param loadStats: where the timing of reading is added
+	 * @return A list of routes, in the same order as {@link ExternalMapRoute#readRoutes}
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, ExternalMapParser parser, String startingPoint, int window, MapNodeIndex mapIndex, ExternalMapLoadStats loadStats) {
+		return readRoutes(fileName, parser, startingPoint, window, 0, mapIndex, loadStats);
+	}
+
+	/**
+	 * Creates streamed routes for the nodes of a file sorted by time
+	 * @param fileName: name of the file where to read routes
+	 * @param parser: the parser for the lines of the file
+	 * @param startingPoint: the starting time of the simulation
+	 * @param window: number of stops the window of a route holds before it grows
+	 * @param maxBuffered: the most samples kept in memory for all the routes (0 for no limit)
+	 * @param mapIndex: index of the sim map where corresponding map nodes are found
+	 * @param loadStats: where the timing of reading is added
+	 * @return A list of routes, in the same order as {@link ExternalMapRoute#readRoutes}
+	 */
+	public static List<ExternalMapRoute> readRoutes(String fileName, ExternalMapParser parser, String startingPoint, int window,
+			long maxBuffered, MapNodeIndex mapIndex, ExternalMapLoadStats loadStats) {
+		ExternalMapStream stream = new ExternalMapStream(fileName, parser, startingPoint, window, loadStats);
+		stream.setMaxBuffered(maxBuffered);
+		File extMapFile = new File(fileName);
+		List<ExternalMapRoute> routes = new ArrayList<ExternalMapRoute>();
+		for (int node : stream.getNodesInOrder()) {
+			routes.add(new ExternalMapStreamRoute(stream, node, mapIndex, extMapFile));
+		}
+		return routes;
+	}
+}
@@ -0,0 +1,200 @@
+package movement.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import core.SettingsError;
+
+/**
+ * Checks at load time that the routes of a group can be followed, instead of
+ * finding it out during the simulation. For every hop between two stops, the
+ * distance (the shortest path on the map, or the straight line without a map)
+ * and the speed needed to cover it in the time of the hop are compared with
+ * the maximum speed of the group. A hop is infeasible when:
+ * <ul>
+ * <li>there is no path between its stops (the map is not connected there), or</li>
+ * <li>in movement mode 1, the node can't get there in time even at the maximum speed
+ * (the simulation would stop with "too slow to get from ... to ...").</li>
+ * </ul>
+ * In mode 0 the nodes move at whatever speed the hop needs, so hops faster than
+ * the maximum speed are only listed as warnings. The routes are checked in
+ * parallel and all the problems are listed in one report, in route order.
+ */
+public class ExternalMapValidator {
+	/** Number of routes checked by a task */
+	private static final int ROUTES_PER_TASK = 256;
+
+	private List<ExternalMapRoute> routes;
+	private ShortestPathTable table;
+	private double maxSpeed;
+	private int emmMode;
+
+	private long nrofHops;
+	private List<String> errors = new ArrayList<String>();
+	private List<String> warnings = new ArrayList<String>();
+
+	/**
+	 * Checks the routes of a group
+	 * @param routes: the routes
+	 * @param table: the shortest paths of all the hops of the routes (null for straight lines)
+	 * @param maxSpeed: the maximum speed of the nodes
+	 * @param emmMode: the movement mode (0 or 1)
+	 * @param threads: number of threads checking the routes
+	 */
+	public ExternalMapValidator(List<ExternalMapRoute> routes, ShortestPathTable table,
+			double maxSpeed, int emmMode, int threads) {
+		this.routes = routes;
+		this.table = table;
+		this.maxSpeed = maxSpeed;
+		this.emmMode = emmMode;
+
+		List<CheckTask> tasks = new ArrayList<CheckTask>();
+		for (int i=0; i<routes.size(); i+=ROUTES_PER_TASK) {
+			tasks.add(new CheckTask(i, Math.min(i + ROUTES_PER_TASK, routes.size())));
+		}
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			for (CheckTask t : tasks) {
+				pool.execute(t);
+			}
+			for (CheckTask t : tasks) {
+				t.join();
+				nrofHops += t.hops;
+				errors.addAll(t.errors);
+				warnings.addAll(t.warnings);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Throws an error that lists all the infeasible hops, if there are any
+	 * @throws SettingsError if some hop is infeasible
+	 */
+	public void check() {
+		if (!errors.isEmpty()) {
+			throw new SettingsError(getReport());
+		}
+	}
+
+	/**
+	 * Returns true if all the hops are feasible (there may be warnings)
+	 * @return true if there are no errors
+	 */
+	public boolean isValid() {
+		return errors.isEmpty();
+	}
+
+	/**
+	 * Returns the infeasible hops
+	 * @return one line for each hop, in route order
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Returns the hops that are faster than the maximum speed in mode 0
+	 * @return one line for each hop, in route order
+	 */
+	public List<String> getWarnings() {
+		return warnings;
+	}
+
+	/**
+	 * Returns the number of hops checked
+	 * @return the number of hops
+	 */
+	public long getNrofHops() {
+		return nrofHops;
+	}
+
+	/**
+	 * Returns the report of the check: the infeasible hops, then the warnings
+	 * @return the report
+	 */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(routes.size()).append(" routes, ").append(nrofHops).append(" hops checked (max speed ")
+			.append(maxSpeed).append("): ").append(errors.size()).append(" infeasible, ")
+			.append(warnings.size()).append(" faster than the max speed\n");
+		for (String e : errors) {
+			sb.append(e).append('\n');
+		}
+		for (String w : warnings) {
+			sb.append("warning: ").append(w).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/** Checks the hops of some routes */
+	@SuppressWarnings("serial")
+	private class CheckTask extends RecursiveTask<Void> {
+		private int from, to;
+		private long hops;
+		private List<String> errors = new ArrayList<String>();
+		private List<String> warnings = new ArrayList<String>();
+
+		public CheckTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected Void compute() {
+			for (int r=from; r<to; r++) {
+				check(routes.get(r));
+			}
+			return null;
+		}
+
+		/** hop i goes from stop i-1 to stop i in the time of stop i, as the movement models take them */
+		private void check(ExternalMapRoute route) {
+			List<MapNode> stops = route.getStops();
+			List<Double> times = route.getDifTimes();
+			List<Double> waits = route.getWaitTimes();
+			double time = route.getActiveStart();
+			for (int i=1; i<stops.size(); i++) {
+				MapNode a = stops.get(i-1);
+				MapNode b = stops.get(i);
+				double available = times.get(i);
+				time += waits.get(i-1) + available;
+				hops++;
+				if (a == b) {
+					continue;
+				}
+				double distance;
+				if (table != null) {
+					ShortestPathCache.CachedPath path = table.getPath(a, b);
+					if (path == null || path.getNodes().isEmpty()) {
+						errors.add(describe(route, a, b, time) + ": no path on the map");
+						continue;
+					}
+					distance = path.getLength();
+				}
+				else {
+					distance = a.getLocation().distance(b.getLocation());
+				}
+				if (distance == 0 || available - (distance / maxSpeed) >= 0) {
+					continue;
+				}
+				String hop = describe(route, a, b, time) + String.format(": %.1f m in %.1f s needs %.2f m/s",
+					distance, available, distance / available);
+				if (emmMode == 1) {
+					errors.add(hop);
+				}
+				else {
+					warnings.add(hop);
+				}
+			}
+		}
+
+		private String describe(ExternalMapRoute route, MapNode a, MapNode b, double time) {
+			return "node " + route.getNodeID() + " from (" + a.getLocation().getX() + ", " +
+				a.getLocation().getY() + ") to (" + b.getLocation().getX() + ", " +
+				b.getLocation().getY() + ") at simulation time " + time;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package movement;
+
+import java.util.List;
+import java.util.Map;
+
+import movement.map.ExternalMapRoute;
+import movement.map.MapNode;
+import input.ExternalMapLoadStats;
+import input.ExternalMapParser;
+import core.Coord;
+import core.Settings;
+import core.SettingsError;
+import core.SimClock;
+
+/**
+ * Movement model that follows the locations of an external trace file in
+ * straight lines, without a map. It is the map-free version of
+ * {@link ExternalMapMovement}: the file and its settings are the same, but no
+ * map is loaded, the locations don't have to be map nodes and no shortest
+ * paths are searched. Nodes move directly from a location of the file to the next.
+ */
+public class ExternalTraceMovement extends MovementModel implements
+	SwitchableMovement {
+
+	/** Prototype's reference to all routes read for the group */
+	private List<ExternalMapRoute> allRoutes = null;
+	/** trace ID -> address of the host that follows it */
+	private Map<String, Integer> hostAddresses;
+	/** next route's index to give by prototype */
+	private int nextRouteIndex = 0;
+	/** the runtime counters of the group */
+	private ExternalMapStats stats;
+	/** the activation schedule of the group, shared like the counters */
+	private ActivationSchedule schedule;
+	/** id of this node in the schedule (-1 for the prototype) */
+	private int scheduleId = -1;
+
+	/** Route of the movement model's instance */
+	private ExternalMapRoute route;
+	/** the location the node is at (or moving to) */
+	private MapNode lastNode = null;
+	/** the time to wait before move to the next location */
+	private double waitTime = 0;
+	/** the speed to be used for this path */
+	private double speed = 0;
+	/** the time space between source and destination locations */
+	private double availTime = 0;
+	/** the time to stay at the destination after arriving (merged samples at the same place) */
+	private double stopWait = 0;
+	/** the next time to move */
+	private double nextMoveTime = 0;
+	/** the next time to check for movement */
+	private double nextCheck = 0;
+
+	private int emmMode;
+	/** the path for the movement */
+	private Path p = null;
+	/** the destination location */
+	private MapNode to = null;
+	/** true if the node switched to this model before its route started, until it has a path to the first location */
+	private boolean switchedIn = false;
+
+	/** settings of {@link ExternalMapMovement} that this model doesn't support (true/false) */
+	private static final String[] UNSUPPORTED_OPTIONS = {ExternalMapMovement.EMM_STREAM_S,
+		ExternalMapMovement.EMM_CACHE_S, ExternalMapMovement.EMM_LAZY_S, ExternalMapMovement.EMM_PATH_TABLE_S,
+		ExternalMapMovement.EMM_RESTORE_S};
+	/** settings of {@link ExternalMapMovement} that this model doesn't support (values) */
+	private static final String[] UNSUPPORTED_VALUES = {ExternalMapMovement.EMM_CHECKPOINT_FILE_S,
+		ExternalMapMovement.EMM_CHECKPOINT_INTERVAL_S};
+
+	/**
+	 * Creates a new movement model based on a Settings object's settings.
+	 * Uses the settings of {@link ExternalMapMovement}, except the map related
+	 * ones. The settings of streamed, cached and lazy routes, path tables and
+	 * checkpoints are not supported and are rejected.
+	 * @param settings The Settings object where the settings are read from
+	 */
+	public ExternalTraceMovement(Settings settings) {
+		super(settings);
+		for (String s : UNSUPPORTED_OPTIONS) {
+			if (settings.contains(s) && settings.getBoolean(s)) {
+				throw new SettingsError(s + " can't be used with ExternalTraceMovement\n");
+			}
+		}
+		for (String s : UNSUPPORTED_VALUES) {
+			if (settings.contains(s)) {
+				throw new SettingsError(s + " can't be used with ExternalTraceMovement\n");
+			}
+		}
+		String fileName = settings.getSetting(ExternalMapMovement.EMM_FILE_S);
+
+		int idCol = ExternalMapMovement.EMM_DEFAULT_ID_COL;
+		int timeCol = ExternalMapMovement.EMM_DEFAULT_TIME_COL;
+		int xCol = ExternalMapMovement.EMM_DEFAULT_X_COL;
+		int yCol = ExternalMapMovement.EMM_DEFAULT_Y_COL;
+		if (settings.contains(ExternalMapMovement.EMM_TIME_COL_S) && settings.contains(ExternalMapMovement.EMM_ID_COL_S) &&
+			settings.contains(ExternalMapMovement.EMM_X_COL_S) && settings.contains(ExternalMapMovement.EMM_Y_COL_S)) {
+			idCol = settings.getInt(ExternalMapMovement.EMM_ID_COL_S);
+			timeCol = settings.getInt(ExternalMapMovement.EMM_TIME_COL_S);
+			xCol = settings.getInt(ExternalMapMovement.EMM_X_COL_S);
+			yCol = settings.getInt(ExternalMapMovement.EMM_Y_COL_S);
+		}
+
+		String timeFormat = ExternalMapMovement.EMM_DEFAULT_TIME_FORMAT;
+		if (settings.contains(ExternalMapMovement.EMM_TIME_FORMAT_S)) {
+			timeFormat = settings.getSetting(ExternalMapMovement.EMM_TIME_FORMAT_S);
+			if (!timeFormat.equalsIgnoreCase("sec") && !timeFormat.equalsIgnoreCase("date")) {
+				throw new SettingsError("Time format is not right. It must be either \"date\" or \"sec\".\n");
+			}
+		}
+
+		String startingPoint = null;
+		if (settings.contains(ExternalMapMovement.EMM_START)) {
+			startingPoint = settings.getSetting(ExternalMapMovement.EMM_START);
+		}
+
+		this.emmMode = ExternalMapMovement.EMM_DEFAULT_MODE;
+		if (settings.contains(ExternalMapMovement.EMM_MODE_S)) {
+			this.emmMode = settings.getInt(ExternalMapMovement.EMM_MODE_S);
+			if (emmMode != 0 && emmMode != 1) {
+				throw new SettingsError("extMovMode must be either 0 or 1\n");
+			}
+		}
+
+		ExternalMapParser parser = new ExternalMapParser(idCol, timeCol, xCol, yCol, timeFormat);
+		ExternalMapMovement.setParserOptions(parser, settings);
+
+		ExternalMapLoadStats loadStats = new ExternalMapLoadStats(fileName);
+		allRoutes = ExternalMapRoute.readTraceRoutes(fileName, parser, startingPoint, this.emmMode, loadStats);
+		if (settings.contains(ExternalMapMovement.EMM_VALIDATE_S) && settings.getBoolean(ExternalMapMovement.EMM_VALIDATE_S)) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (settings.contains(ExternalMapMovement.EMM_LOAD_THREADS_S) && settings.getInt(ExternalMapMovement.EMM_LOAD_THREADS_S) > 0) {
+				threads = settings.getInt(ExternalMapMovement.EMM_LOAD_THREADS_S);
+			}
+			ExternalMapMovement.validateRoutes(allRoutes, null, super.maxSpeed, this.emmMode, threads, loadStats);
+		}
+		hostAddresses = ExternalMapMovement.mapHosts(allRoutes, settings);
+		System.out.println("idCol = " + idCol + "\ttimeCol = " + timeCol + "\txCol = " + xCol + "\tyCol = " + yCol +
+			"\tinputTimeFormat = " + timeFormat + "\tmovement mode = " + this.emmMode + " (no map)\n" + loadStats + "\n");
+
+		double statsInterval = 0;
+		if (settings.contains(ExternalMapMovement.EMM_STATS_INTERVAL_S)) {
+			statsInterval = settings.getDouble(ExternalMapMovement.EMM_STATS_INTERVAL_S);
+		}
+		schedule = new ActivationSchedule();
+		stats = new ExternalMapStats(fileName, statsInterval, null, schedule);
+		this.route = this.allRoutes.get(0).replicate();
+	}
+
+	/**
+	 * Copyconstructor. Gives a route to the new movement model.
+	 * @param proto The ExternalTraceMovement prototype
+	 */
+	protected ExternalTraceMovement(ExternalTraceMovement proto) {
+		super(proto);
+		this.route = proto.allRoutes.get(proto.nextRouteIndex).replicate();
+		this.nextCheck = route.getActiveStart();
+		this.nextMoveTime = 0;
+		this.stopWait = route.getWaitTime(); /** wait at the first stop */
+		this.stats = proto.stats;
+		this.hostAddresses = proto.hostAddresses;
+		this.schedule = proto.schedule;
+		this.scheduleId = schedule.add(this, route.getActiveStart(), route.getActiveEnd());
+
+		this.emmMode = proto.emmMode;
+		if (this.emmMode == 0) {
+			this.nextMoveTime = route.getActiveStart();
+		}
+
+		proto.nextRouteIndex++; /** give routes in order */
+		if (proto.nextRouteIndex >= proto.allRoutes.size()) {
+			proto.nextRouteIndex = 0;
+		}
+	}
+
+	/**
+	 * Returns a new path by this movement model.
+	 * We set it earlier in the setPath method.
+	 */
+	@Override
+	public Path getPath() {
+		lastNode = this.to;
+		return this.p;
+	}
+
+	/** Return the time for the next movement */
+	@Override
+	public double nextPathAvailable() {
+		if (this.switchedIn) {
+			/** first the hop from where the node switched in to the first location, as soon as the node is active */
+			double start = Math.max(SimClock.getTime(), route.getActiveStart());
+			setPath();
+			/** the node leaves the first location when the trace does, or as soon as it gets there if it is late */
+			this.stopWait = Math.max(0, route.getActiveStart() + this.stopWait - (start + this.availTime));
+			this.nextMoveTime = start + this.waitTime;
+			this.nextCheck = start + this.availTime;
+			return this.nextMoveTime;
+		}
+		if (this.emmMode == 0) {
+			/** if mode 0, return the time to move and then set the next path */
+			this.nextMoveTime += this.availTime;
+			this.nextMoveTime += this.stopWait;
+			setPath();
+		}
+		else {
+			/** if mode 1, first set the path and return the time */
+			this.nextCheck += this.stopWait;
+			setPath();
+			this.nextMoveTime = this.nextCheck + this.waitTime;
+			this.nextCheck += this.availTime;
+		}
+		return this.nextMoveTime;
+	}
+
+	/** Sets the path from the current location straight to the next one */
+	public void setPath() {
+		long start = System.nanoTime();
+		/** create path with random speed */
+		this.p = new Path(generateSpeed());
+		/** get the next stop */
+		this.to = route.nextStop();
+
+		Coord from = lastNode.getLocation();
+		this.p.addWaypoint(from);
+		this.p.addWaypoint(to.getLocation());
+		double pathDist = from.distance(to.getLocation());
+
+		/** get the available time to move to the next stop */
+		if (this.switchedIn) {
+			/** the hop to the first location has its own time, at the max speed (the node isn't active
+			 * before the time of the location). The times of the route are left as they are. */
+			this.switchedIn = false;
+			this.availTime = pathDist / super.maxSpeed;
+		}
+		else {
+			this.availTime = route.nextDifTime();
+		}
+		this.stopWait = route.getWaitTime();
+
+		if (pathDist == 0) {
+			/** next stop is the same as this stop */
+			this.speed = 0;
+			this.waitTime = this.availTime;
+		}
+		else if (this.emmMode == 0) {
+			/** speed = distance/time */
+			this.speed = pathDist / this.availTime;
+			this.waitTime = 0;
+		}
+		else {
+			/** the given speed, and the time left is waited at the source */
+			this.speed = ExternalMapMovement.calcMoveSpeed(route.getNodeID(), from, to.getLocation(),
+				this.availTime, p.getSpeed(), pathDist, super.maxSpeed);
+			this.waitTime = this.availTime - (pathDist / this.speed);
+		}
+		/** set the new speed for the path */
+		this.p.setSpeed(this.speed);
+		stats.setPathDone(route.getNodeID(), System.nanoTime() - start, 0, 2, pathDist, SimClock.getTime());
+	}
+
+	/**
+	 * Returns the addresses of the hosts that follow the trace IDs of the group
+	 * (starting from hostAddressOffset)
+	 * @return trace ID -> host address
+	 */
+	public Map<String, Integer> getHostAddresses() {
+		return hostAddresses;
+	}
+
+	/**
+	 * Returns the runtime counters of the group
+	 * @return the counters
+	 */
+	public ExternalMapStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Returns the activation schedule of the group
+	 * @return the schedule
+	 */
+	public ActivationSchedule getSchedule() {
+		return schedule;
+	}
+
+	/**
+	 * Returns the first location of the route
+	 */
+	@Override
+	public Coord getInitialLocation() {
+		if (lastNode == null) {
+			lastNode = route.nextStop();
+		}
+		return lastNode.getLocation().clone();
+	}
+
+	@Override
+	public Coord getLastLocation() {
+		if (lastNode != null) {
+			return lastNode.getLocation().clone();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the location of a node switching to this model. A node that hasn't
+	 * started its route goes from there to the first location of the route at
+	 * the max speed, taking the time from its wait there if it can, and then
+	 * follows the route as usual,
+	 * else it continues from its last location of the trace.
+	 */
+	public void setLocation(Coord lastWaypoint) {
+		if (lastNode == null) {
+			lastNode = new MapNode(lastWaypoint.clone());
+			switchedIn = true;
+		}
+	}
+
+	public boolean isReady() {
+		return true;
+	}
+
+	/**
+	 * Creates a replicate of the movement model.
+	 * @return A new movement model with the same settings as this model
+	 */
+	@Override
+	public ExternalTraceMovement replicate() {
+		return new ExternalTraceMovement(this);
+	}
+
+	/**
+	 * Returns true if this node is active at the moment (false if not)
+	 * @return true if this node is active (false if not)
+	 */
+	@Override
+	public boolean isActive() {
+		double time = SimClock.getTime();
+		if (scheduleId >= 0) {
+			return schedule.isActive(scheduleId, time);
+		}
+
+		if (time < route.getActiveStart() || time > route.getActiveEnd() ) {
+				return false; /** out of range */
+		}
+		return true;
+	}
+}
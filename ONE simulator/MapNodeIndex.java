@@ -0,0 +1,170 @@
+package movement.map;
+
+import java.util.List;
+
+import core.Coord;
+
+/**
+ * Grid index over the nodes of a {@link SimMap}, for finding the map node of
+ * coordinates read from a file. The coordinates are mirrored and translated the
+ * same way as the map data. If a snapping distance is given, coordinates that
+ * are not exactly on a map node are snapped to the nearest node within that
+ * distance.
+ */
+public class MapNodeIndex {
+	private SimMap map;
+	private MapNode[] nodes;
+	private double[] xs;
+	private double[] ys;
+
+	/** maximum distance for snapping (0 for exact matches only) */
+	private double snapDistance;
+	private boolean mirror;
+	private double xOffset, yOffset;
+
+	/** the grid: nodes of cell c are cellNodes[cellStart[c]] .. cellNodes[cellStart[c+1]-1] */
+	private double minX, minY, cellSize;
+	private int nx, ny;
+	private int[] cellStart;
+	private int[] cellNodes;
+
+	/**
+	 * Creates an index over the nodes of a map
+	 * @param map SimMap: where the map nodes are
+	 * @param snapDistance: maximum distance of a coordinate from its map node (0 for exact matches)
+	 */
+	public MapNodeIndex(SimMap map, double snapDistance) {
+		this.map = map;
+		this.snapDistance = snapDistance;
+		this.mirror = map.isMirrored();
+		this.xOffset = map.getOffset().getX();
+		this.yOffset = map.getOffset().getY();
+
+		List<MapNode> l = map.getNodes();
+		nodes = l.toArray(new MapNode[l.size()]);
+		xs = new double[nodes.length];
+		ys = new double[nodes.length];
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		minX = Double.POSITIVE_INFINITY;
+		minY = Double.POSITIVE_INFINITY;
+		for (int i=0; i<nodes.length; i++) {
+			Coord c = nodes[i].getLocation();
+			xs[i] = c.getX();
+			ys[i] = c.getY();
+			minX = Math.min(minX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxX = Math.max(maxX, xs[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+
+		if (snapDistance > 0 && nodes.length > 0) {
+			buildGrid(maxX, maxY);
+		}
+	}
+
+	/** puts the nodes in grid cells of about one node each (and not smaller than the snapping distance) */
+	private void buildGrid(double maxX, double maxY) {
+		double area = Math.max(maxX - minX, 1) * Math.max(maxY - minY, 1);
+		cellSize = Math.max(snapDistance, Math.sqrt(area / nodes.length));
+		nx = (int)((maxX - minX) / cellSize) + 1;
+		ny = (int)((maxY - minY) / cellSize) + 1;
+
+		int[] cellOf = new int[nodes.length];
+		cellStart = new int[nx * ny + 1];
+		for (int i=0; i<nodes.length; i++) {
+			cellOf[i] = cellX(xs[i]) + nx * cellY(ys[i]);
+			cellStart[cellOf[i] + 1]++;
+		}
+		for (int c=0; c<nx*ny; c++) {
+			cellStart[c+1] += cellStart[c];
+		}
+		int[] next = new int[nx * ny];
+		System.arraycopy(cellStart, 0, next, 0, nx * ny);
+		cellNodes = new int[nodes.length];
+		for (int i=0; i<nodes.length; i++) {
+			cellNodes[next[cellOf[i]]++] = i;
+		}
+	}
+
+	private int cellX(double x) {
+		return Math.max(0, Math.min(nx - 1, (int)Math.floor((x - minX) / cellSize)));
+	}
+
+	private int cellY(double y) {
+		return Math.max(0, Math.min(ny - 1, (int)Math.floor((y - minY) / cellSize)));
+	}
+
+	/**
+	 * Returns the map of this index
+	 * @return the map
+	 */
+	public SimMap getMap() {
+		return map;
+	}
+
+	/**
+	 * Returns the snapping distance of this index
+	 * @return maximum distance of a coordinate from its map node
+	 */
+	public double getSnapDistance() {
+		return snapDistance;
+	}
+
+	/**
+	 * Finds the map node of a coordinate of the data
+	 * @param x, y: the coordinate as read from the file (not mirrored or translated)
+	 * @return the map node at (or nearest to) the coordinate, or null if there is none
+	 */
+	public MapNode getNode(double x, double y) {
+		/** make coordinates match sim map data */
+		if (mirror) {
+			y = -y;
+		}
+		x += xOffset;
+		y += yOffset;
+
+		MapNode exact = map.getNodeByCoord(new Coord(x, y));
+		if (exact != null || snapDistance <= 0 || nodes.length == 0) {
+			return exact;
+		}
+
+		/** nearest node within the snapping distance */
+		int x0 = cellX(x - snapDistance);
+		int x1 = cellX(x + snapDistance);
+		int y0 = cellY(y - snapDistance);
+		int y1 = cellY(y + snapDistance);
+		double best = snapDistance * snapDistance;
+		int bestNode = -1;
+		for (int cy=y0; cy<=y1; cy++) {
+			for (int cx=x0; cx<=x1; cx++) {
+				int c = cx + nx * cy;
+				for (int k=cellStart[c]; k<cellStart[c+1]; k++) {
+					int i = cellNodes[k];
+					double dx = xs[i] - x;
+					double dy = ys[i] - y;
+					double d = dx * dx + dy * dy;
+					if (d < best || (d == best && bestNode < 0)) {
+						best = d;
+						bestNode = i;
+					}
+				}
+			}
+		}
+		return (bestNode < 0 ? null : nodes[bestNode]);
+	}
+
+	/**
+	 * Finds the map nodes of many coordinates
+	 * @param xs, ys: the coordinates as read from the file
+	 * @param n: how many coordinates to resolve
+	 * @return the map nodes (null for coordinates without a node)
+	 */
+	public MapNode[] getNodes(double[] xs, double[] ys, int n) {
+		MapNode[] result = new MapNode[n];
+		for (int i=0; i<n; i++) {
+			result[i] = getNode(xs[i], ys[i]);
+		}
+		return result;
+	}
+}
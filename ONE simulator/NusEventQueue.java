@@ -0,0 +1,82 @@
+package input;
+
+import java.io.File;
+
+import core.Settings;
+
+/**
+ * Event queue of the connection events of the NUS class session trace
+ * (see {@link NusSessionReader}), expanded while the simulation runs.
+ * Settings (in the namespace of the events, e.g. Events1):
+ * <ul>
+ * <li>filePath: the trace file</li>
+ * <li>maxStudents: students with IDs from this up are left out (default 0: no limit)</li>
+ * <li>fanOut: number of students each student of a session is connected to
+ * (default {@value NusSessionReader#DEFAULT_FAN_OUT})</li>
+ * <li>baseTime: the time (seconds) that is time 0 of the simulation (default 0)</li>
+ * <li>window: number of sessions read ahead (default {@value NusSessionReader#DEFAULT_WINDOW})</li>
+ * </ul>
+ */
+public class NusEventQueue implements EventQueue {
+	/** NUS trace file path -setting id ({@value}) */
+	public static final String PATH_SETTING = "filePath";
+	/** Student limit -setting id ({@value}) */
+	public static final String MAX_STUDENTS_SETTING = "maxStudents";
+	/** Students connected per student of a session -setting id ({@value}) */
+	public static final String FAN_OUT_SETTING = "fanOut";
+	/** Time that is time 0 of the simulation -setting id ({@value}) */
+	public static final String BASE_TIME_SETTING = "baseTime";
+	/** Number of sessions read ahead -setting id ({@value}) */
+	public static final String WINDOW_SETTING = "window";
+
+	private NusSessionReader reader;
+	/** the next event (null if there are no more) */
+	private ExternalEvent next;
+
+	/**
+	 * Creates a new queue of the events of a NUS trace
+	 * @param s: the settings of the queue
+	 */
+	public NusEventQueue(Settings s) {
+		long maxStudents = 0;
+		if (s.contains(MAX_STUDENTS_SETTING)) {
+			maxStudents = s.getInt(MAX_STUDENTS_SETTING);
+		}
+		int fanOut = NusSessionReader.DEFAULT_FAN_OUT;
+		if (s.contains(FAN_OUT_SETTING)) {
+			fanOut = s.getInt(FAN_OUT_SETTING);
+		}
+		double baseTime = 0;
+		if (s.contains(BASE_TIME_SETTING)) {
+			baseTime = s.getDouble(BASE_TIME_SETTING);
+		}
+		int window = NusSessionReader.DEFAULT_WINDOW;
+		if (s.contains(WINDOW_SETTING)) {
+			window = s.getInt(WINDOW_SETTING);
+		}
+		reader = new NusSessionReader(new File(s.getSetting(PATH_SETTING)),
+			baseTime, maxStudents, fanOut, window);
+		next = reader.next();
+	}
+
+	public ExternalEvent nextEvent() {
+		if (next == null) {
+			return new ExternalEvent(Double.MAX_VALUE);
+		}
+		ExternalEvent e = next;
+		next = reader.next();
+		return e;
+	}
+
+	public double nextEventsTime() {
+		return (next == null ? Double.MAX_VALUE : next.getTime());
+	}
+
+	/**
+	 * Returns the reader of the trace
+	 * @return the reader
+	 */
+	public NusSessionReader getReader() {
+		return reader;
+	}
+}
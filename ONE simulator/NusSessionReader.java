@@ -0,0 +1,331 @@
+package input;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import core.SettingsError;
+
+/**
+ * Reads the class sessions of the NUS contact trace (CRAWDAD nus/contact) as
+ * connection events between the students of each session, while the simulation
+ * runs. The file has a header line and then two lines for each session: "start
+ * session-id students duration" (times in hours) and the IDs of the students.
+ * <p>
+ * Each student of a session is connected to a number of the students after it
+ * in the list (the fan-out), and when the list ends, to the first ones, the same
+ * way as the nus.pl script does. Students whose (numeric) ID is not below the
+ * student limit are left out. A pair of students that is already connected when
+ * another session of theirs starts stays connected until the later end, so the
+ * overlapping sessions of a pair are merged into one connection.
+ * <p>
+ * The connections that are up are kept in a priority queue by their end time,
+ * and the sessions in a window read ahead, by start time, so the events are
+ * given in time order without keeping the trace (or its events) in memory.
+ * The file must be sorted by session start, or out of order by less than the window.
+ * The student IDs are mapped to host addresses 0, 1, 2... in the order they are used.
+ */
+public class NusSessionReader implements ExternalEventsReader {
+	/** Default number of students each student of a session is connected to */
+	public static final int DEFAULT_FAN_OUT = 3;
+	/** Default number of sessions read ahead */
+	public static final int DEFAULT_WINDOW = 1024;
+
+	private File file;
+	private double baseTime;
+	private long maxStudents;
+	private int fanOut;
+	private int window;
+	private BufferedReader reader;
+	private int lineNo;
+
+	/** student ID -> host address */
+	private Map<String, Integer> addresses = new HashMap<String, Integer>();
+	/** sessions read ahead, by start time */
+	private PriorityQueue<Session> sessions = new PriorityQueue<Session>();
+	private long nrofSessions;
+	/** connections that are up, by the pair of their addresses */
+	private Map<Long, Connection> connections = new HashMap<Long, Connection>();
+	/** ends of the connections that are up (an entry is stale if its connection was extended) */
+	private PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>();
+	private long nrofExpiries;
+	/** events of the last session, not given yet */
+	private ArrayDeque<ConnectionEvent> events = new ArrayDeque<ConnectionEvent>();
+	/** start time of the last session expanded */
+	private double lastStart = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Opens a NUS trace
+	 * @param file: the trace file
+	 * @param baseTime: the time (seconds) that is time 0 of the simulation
+	 * @param maxStudents: students with IDs from this up are left out (0 for no limit)
+	 * @param fanOut: number of students each student of a session is connected to
+	 * @param window: number of sessions read ahead (how much the file can be out of order)
+	 */
+	public NusSessionReader(File file, double baseTime, long maxStudents, int fanOut, int window) {
+		if (maxStudents < 0 || fanOut < 1 || window < 1) {
+			throw new SettingsError("The student limit of a NUS trace can't be negative, " +
+				"and its fan-out and window must be at least 1");
+		}
+		this.file = file;
+		this.baseTime = baseTime;
+		this.maxStudents = (maxStudents == 0 ? Long.MAX_VALUE : maxStudents);
+		this.fanOut = fanOut;
+		this.window = window;
+		try {
+			reader = ExternalMapFiles.openReader(file, 1);
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't read NUS trace file " + file +
+				" (cause: " + ioe.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Returns the next connection event
+	 * @return the event, or null if there are no more
+	 */
+	public ConnectionEvent next() {
+		while (events.isEmpty()) {
+			while (reader != null && sessions.size() < window) {
+				readSession();
+			}
+			Session s = sessions.poll();
+			if (s != null) {
+				expand(s);
+			}
+			else if (!expire(Double.POSITIVE_INFINITY)) {
+				return null;
+			}
+		}
+		return events.poll();
+	}
+
+	public List<ExternalEvent> readEvents(int nrof) {
+		List<ExternalEvent> list = new ArrayList<ExternalEvent>(Math.min(nrof, DEFAULT_WINDOW));
+		for (int i=0; i<nrof; i++) {
+			ConnectionEvent e = next();
+			if (e == null) {
+				break;
+			}
+			list.add(e);
+		}
+		return list;
+	}
+
+	/** connects the students of a session */
+	private void expand(Session s) {
+		if (s.start < lastStart) {
+			throw new SettingsError("NUS trace " + file + " is out of order by more than " + window +
+				" sessions at line " + s.lineNo + ". Sort it by session start or use a bigger window.");
+		}
+		lastStart = s.start;
+		expire(s.start);
+
+		String[] students = s.students;
+		int size = students.length;
+		for (int i=0; i<size; i++) {
+			if (!isIncluded(students[i])) {
+				continue;
+			}
+			int from = getAddress(students[i]);
+			int connected = 0;
+			int next = 1;
+			for (int tried=2; connected < fanOut && tried < size; tried++) {
+				int j;
+				if (i + next < size) {
+					j = i + next++;
+				}
+				else {
+					j = fanOut - connected - 1; /* from the start of the list */
+				}
+				if (j >= size || !isIncluded(students[j])) {
+					continue;
+				}
+				int to = getAddress(students[j]);
+				if (to != from) {
+					connect(from, to, s.start, s.end);
+				}
+				connected++;
+			}
+		}
+	}
+
+	/** connects two students until a time, or keeps them connected until then */
+	private void connect(int from, int to, double start, double end) {
+		long pair = ((long)Math.min(from, to) << 32) | Math.max(from, to);
+		Connection c = connections.get(pair);
+		if (c == null) {
+			c = new Connection(from, to);
+			connections.put(pair, c);
+			events.add(new ConnectionEvent(from, to, true, start));
+		}
+		else if (end <= c.end) {
+			return;
+		}
+		c.end = end;
+		expiries.add(new Expiry(c, end, nrofExpiries++));
+	}
+
+	/**
+	 * Disconnects the connections that end before a time, in time order
+	 * @return true if some were disconnected
+	 */
+	private boolean expire(double time) {
+		boolean any = false;
+		while (!expiries.isEmpty() && expiries.peek().end < time) {
+			Expiry e = expiries.poll();
+			Connection c = e.connection;
+			if (c.end != e.end) {
+				continue; /* extended later */
+			}
+			connections.remove(((long)Math.min(c.from, c.to) << 32) | Math.max(c.from, c.to));
+			events.add(new ConnectionEvent(c.from, c.to, false, c.end));
+			any = true;
+		}
+		return any;
+	}
+
+	/** true if a student is within the student limit */
+	private boolean isIncluded(String student) {
+		if (maxStudents == Long.MAX_VALUE) {
+			return true;
+		}
+		try {
+			return Long.parseLong(student) < maxStudents;
+		} catch (NumberFormatException nfe) {
+			return true;
+		}
+	}
+
+	/** reads the next session of the file (or closes the file at its end) */
+	private void readSession() {
+		try {
+			String sessionLine = null;
+			int sessionLineNo = 0;
+			String line = reader.readLine();
+			while (line != null) {
+				lineNo++;
+				/** line 1 is a header, then session and student lines take turns */
+				if (lineNo > 1 && line.trim().length() > 0 && lineNo % 2 == 0) {
+					sessionLine = line;
+					sessionLineNo = lineNo;
+				}
+				else if (lineNo > 1 && lineNo % 2 == 1 && sessionLine != null) {
+					addSession(sessionLine, sessionLineNo, line);
+					return;
+				}
+				line = reader.readLine();
+			}
+			close();
+		} catch (IOException ioe) {
+			throw new SettingsError("Couldn't read NUS trace file " + file +
+				" (cause: " + ioe.getMessage() + ")");
+		}
+	}
+
+	/** parses a session and adds it to the sessions read ahead */
+	private void addSession(String sessionLine, int sessionLineNo, String studentLine) {
+		String[] fields = sessionLine.trim().split("\\s+");
+		if (fields.length < 4) {
+			throw new SettingsError("Invalid session in line " + sessionLineNo + " of NUS trace " + file +
+				":\n" + sessionLine);
+		}
+		double start, duration;
+		try {
+			start = Double.parseDouble(fields[0]) * 60 * 60;
+			duration = Double.parseDouble(fields[3]) * 60 * 60;
+		} catch (NumberFormatException nfe) {
+			throw new SettingsError("Invalid session in line " + sessionLineNo + " of NUS trace " + file +
+				":\n" + sessionLine);
+		}
+		String trimmed = studentLine.trim();
+		String[] students = (trimmed.length() == 0 ? new String[0] : trimmed.split("\\W+"));
+		sessions.add(new Session(start - baseTime, start + duration - baseTime, students,
+			sessionLineNo, nrofSessions++));
+	}
+
+	/** the host address of a student (a new one for a new student) */
+	private int getAddress(String student) {
+		Integer address = addresses.get(student);
+		if (address == null) {
+			address = addresses.size();
+			addresses.put(student, address);
+		}
+		return address;
+	}
+
+	/**
+	 * Returns the host addresses of the students used so far
+	 * @return student ID -> host address
+	 */
+	public Map<String, Integer> getAddresses() {
+		return addresses;
+	}
+
+	public void close() {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException ioe) {
+				/** nothing more to read anyway */
+			}
+			reader = null;
+		}
+	}
+
+	/** A session: its times and students, ordered by start and then by its place in the file */
+	private static class Session implements Comparable<Session> {
+		private double start, end;
+		private String[] students;
+		private int lineNo;
+		private long order;
+
+		public Session(double start, double end, String[] students, int lineNo, long order) {
+			this.start = start;
+			this.end = end;
+			this.students = students;
+			this.lineNo = lineNo;
+			this.order = order;
+		}
+
+		public int compareTo(Session o) {
+			int r = Double.compare(start, o.start);
+			return (r != 0 ? r : Long.compare(order, o.order));
+		}
+	}
+
+	/** A connection that is up */
+	private static class Connection {
+		private int from, to;
+		private double end;
+
+		public Connection(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/** An end time of a connection, ordered by time and then by when it was set */
+	private static class Expiry implements Comparable<Expiry> {
+		private Connection connection;
+		private double end;
+		private long order;
+
+		public Expiry(Connection connection, double end, long order) {
+			this.connection = connection;
+			this.end = end;
+			this.order = order;
+		}
+
+		public int compareTo(Expiry o) {
+			int r = Double.compare(end, o.end);
+			return (r != 0 ? r : Long.compare(order, o.order));
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package movement.map;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of shortest paths between map nodes, in front of a {@link DijkstraPathFinder}.
+ * Keeps the waypoints and the length of the most recently used paths
+ * (least recently used ones are evicted when the cache is full).
+ * One cache is shared by all the nodes of a group.
+ */
+public class ShortestPathCache {
+	/** Default maximum number of paths in the cache */
+	public static final int DEFAULT_SIZE = 10000;
+
+	private DijkstraPathFinder pathFinder;
+	/** precomputed paths, looked up before the cache (null if none) */
+	private ShortestPathTable table;
+	private int maxSize;
+	private LinkedHashMap<Key, CachedPath> paths;
+
+	private long tableHits;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a new cache
+	 * @param pathFinder: finds the paths that are not in the cache
+	 * @param maxSize: maximum number of paths in the cache (0 for no caching)
+	 */
+	public ShortestPathCache(DijkstraPathFinder pathFinder, int maxSize) {
+		this.pathFinder = pathFinder;
+		this.maxSize = maxSize;
+		this.paths = new LinkedHashMap<Key, CachedPath>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedPath> eldest) {
+				if (size() > ShortestPathCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the shortest path between two map nodes
+	 * @param from: the source node
+	 * @param to: the destination node
+	 * @return the path (empty if there is none)
+	 */
+	public CachedPath getPath(MapNode from, MapNode to) {
+		if (table != null) {
+			CachedPath path = table.getPath(from, to);
+			if (path != null) {
+				tableHits++;
+				return path;
+			}
+		}
+
+		Key key = new Key(from, to);
+		CachedPath path = paths.get(key);
+		if (path != null) {
+			hits++;
+			return path;
+		}
+
+		misses++;
+		path = new CachedPath(pathFinder.getShortestPath(from, to));
+		if (maxSize > 0) {
+			paths.put(key, path);
+		}
+		return path;
+	}
+
+	/**
+	 * Sets the table of precomputed paths to look up before the cache
+	 * @param table: the precomputed paths (null for none)
+	 */
+	public void setTable(ShortestPathTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * Returns the table of precomputed paths
+	 * @return the precomputed paths (null if none)
+	 */
+	public ShortestPathTable getTable() {
+		return table;
+	}
+
+	/**
+	 * Returns how many paths were found in the precomputed table
+	 * @return number of table hits
+	 */
+	public long getTableHits() {
+		return tableHits;
+	}
+
+	/**
+	 * Returns how many paths were found in the cache
+	 * @return number of cache hits
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns how many paths had to be computed
+	 * @return number of cache misses
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns how many paths were evicted from the cache
+	 * @return number of evictions
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the number of paths in the cache
+	 * @return the number of paths in the cache
+	 */
+	public int size() {
+		return paths.size();
+	}
+
+	public String toString() {
+		return "Shortest path cache: " + size() + " paths, " + tableHits + " table hits, " + hits + " hits, " +
+			misses + " misses, " + evictions + " evictions";
+	}
+
+	/** A shortest path and its length */
+	public static class CachedPath {
+		private List<MapNode> nodes;
+		private double length;
+
+		public CachedPath(List<MapNode> nodes) {
+			this.nodes = Collections.unmodifiableList(nodes);
+			double length = 0;
+			for (int i=0; i<nodes.size()-1; i++) {
+				length += nodes.get(i).getLocation().distance(nodes.get(i+1).getLocation());
+			}
+			this.length = length;
+		}
+
+		/**
+		 * Creates a path whose length is already known
+		 * @param nodes: the map nodes of the path
+		 * @param length: the sum of the distances between the nodes
+		 */
+		public CachedPath(List<MapNode> nodes, double length) {
+			this.nodes = Collections.unmodifiableList(nodes);
+			this.length = length;
+		}
+
+		/**
+		 * Returns the map nodes of the path
+		 * @return the map nodes of the path (read-only)
+		 */
+		public List<MapNode> getNodes() {
+			return nodes;
+		}
+
+		/**
+		 * Returns the length of the path
+		 * @return the sum of the distances between the nodes of the path
+		 */
+		public double getLength() {
+			return length;
+		}
+	}
+
+	/** (from, to) pair of map nodes, compared by identity */
+	private static class Key {
+		private MapNode from;
+		private MapNode to;
+
+		public Key(MapNode from, MapNode to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return k.from == from && k.to == to;
+		}
+
+		public int hashCode() {
+			return 31 * System.identityHashCode(from) + System.identityHashCode(to);
+		}
+	}
+}
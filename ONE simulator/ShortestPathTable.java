@@ -0,0 +1,426 @@
+package movement.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Precomputed shortest paths between the map nodes that the routes of a group visit.
+ * For every stop, one single-source search finds the paths to all the stops that
+ * follow it on some route; the searches run in parallel. The paths are kept in
+ * compact arrays (map node indexes) and can be saved to a file, so that later
+ * runs on the same map and trace don't search again.
+ */
+public class ShortestPathTable {
+	/** Magic number at the beginning of a table file ("EMMP") */
+	private static final int MAGIC = 0x454D4D50;
+	/** Version of the table file format */
+	private static final int VERSION = 1;
+	/** Default extension of table files (added to the trace file's name) */
+	public static final String TABLE_EXTENSION = ".paths";
+
+	private MapNode[] nodes;
+	private Map<MapNode, Integer> nodeIndex;
+	private int[] okMapNodeTypes;
+	private long mapHash;
+
+	/** (from, to) of a path -> number of the path */
+	private Map<Long, Integer> pairIndex = new HashMap<Long, Integer>();
+	/** map nodes of path i are pathNodes[pathStart[i]] .. pathNodes[pathStart[i+1]-1] */
+	private int[] pathStart = new int[] {0};
+	private int[] pathNodes = new int[0];
+	private double[] lengths = new double[0];
+
+	/**
+	 * Creates the table of the paths needed by a group's routes.
+	 * @param map SimMap: the map of the routes
+	 * @param okMapNodeTypes: the map node types paths can go through (null for all)
+	 * @param routes: the routes of the group
+	 * @param threads: number of threads for the searches
+	 * @param fileName: file to load the table from and save it to (null for no file)
+	 */
+	public ShortestPathTable(SimMap map, int[] okMapNodeTypes, List<ExternalMapRoute> routes,
+			int threads, String fileName) {
+		List<MapNode> l = map.getNodes();
+		this.nodes = l.toArray(new MapNode[l.size()]);
+		this.nodeIndex = new HashMap<MapNode, Integer>();
+		for (int i=0; i<nodes.length; i++) {
+			nodeIndex.put(nodes[i], i);
+		}
+		this.okMapNodeTypes = okMapNodeTypes;
+		this.mapHash = hashMap();
+
+		/** the hops of the routes: targets of each source */
+		Map<Integer, Set<Integer>> hops = new HashMap<Integer, Set<Integer>>();
+		for (ExternalMapRoute r : routes) {
+			List<MapNode> stops = r.getStops();
+			for (int i=0; i<stops.size()-1; i++) {
+				int from = nodeIndex.get(stops.get(i));
+				int to = nodeIndex.get(stops.get(i+1));
+				Set<Integer> targets = hops.get(from);
+				if (targets == null) {
+					targets = new HashSet<Integer>();
+					hops.put(from, targets);
+				}
+				targets.add(to);
+			}
+		}
+
+		File file = (fileName == null ? null : new File(fileName));
+		if (file != null && file.exists() && load(file) && containsAll(hops)) {
+			System.out.println("Shortest paths loaded from " + file + "\n");
+			return;
+		}
+
+		compute(hops, threads);
+		if (file != null) {
+			try {
+				save(file);
+			} catch (IOException ioe) {
+				System.err.println("Couldn't write shortest path table " + file + " (cause: " + ioe.getMessage() + ")");
+			}
+		}
+	}
+
+	/**
+	 * Returns the shortest path between two map nodes
+	 * @param from: the source node
+	 * @param to: the destination node
+	 * @return the path (empty if there is none) or null if the path is not in the table
+	 */
+	public ShortestPathCache.CachedPath getPath(MapNode from, MapNode to) {
+		Integer f = nodeIndex.get(from);
+		Integer t = nodeIndex.get(to);
+		if (f == null || t == null) {
+			return null;
+		}
+		Integer path = pairIndex.get(key(f, t));
+		if (path == null) {
+			return null;
+		}
+		final int start = pathStart[path];
+		final int size = pathStart[path+1] - start;
+		List<MapNode> l = new AbstractList<MapNode>() {
+			public MapNode get(int i) {
+				return nodes[pathNodes[start + i]];
+			}
+			public int size() {
+				return size;
+			}
+		};
+		return new ShortestPathCache.CachedPath(l, lengths[path]);
+	}
+
+	/**
+	 * Returns the number of paths in the table
+	 * @return the number of paths
+	 */
+	public int size() {
+		return lengths.length;
+	}
+
+	private static long key(int from, int to) {
+		return ((long)from << 32) | (to & 0xffffffffL);
+	}
+
+	/** true if the table has the paths of all the hops */
+	private boolean containsAll(Map<Integer, Set<Integer>> hops) {
+		for (Map.Entry<Integer, Set<Integer>> e : hops.entrySet()) {
+			for (int to : e.getValue()) {
+				if (!pairIndex.containsKey(key(e.getKey(), to))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/** hash of the map nodes, their neighbors and the allowed node types */
+	private long hashMap() {
+		long h = 17;
+		for (int i=0; i<nodes.length; i++) {
+			h = 31 * h + Double.doubleToLongBits(nodes[i].getLocation().getX());
+			h = 31 * h + Double.doubleToLongBits(nodes[i].getLocation().getY());
+			h = 31 * h + (isOk(nodes[i]) ? 1 : 0);
+			for (MapNode n : nodes[i].getNeighbors()) {
+				h = 31 * h + nodeIndex.get(n);
+			}
+		}
+		return 31 * h + nodes.length;
+	}
+
+	private boolean isOk(MapNode n) {
+		return okMapNodeTypes == null || n.isType(okMapNodeTypes);
+	}
+
+	/** runs a single-source search for every source, in parallel, and stores the paths */
+	private void compute(Map<Integer, Set<Integer>> hops, int threads) {
+		int[] sources = new int[hops.size()];
+		int k = 0;
+		for (int s : hops.keySet()) {
+			sources[k++] = s;
+		}
+		Arrays.sort(sources); /* same table for the same trace */
+
+		List<SourceTask> tasks = new ArrayList<SourceTask>();
+		for (int s : sources) {
+			int[] targets = new int[hops.get(s).size()];
+			int j = 0;
+			for (int t : hops.get(s)) {
+				targets[j++] = t;
+			}
+			Arrays.sort(targets);
+			tasks.add(new SourceTask(s, targets));
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			for (SourceTask t : tasks) {
+				pool.execute(t);
+			}
+			/** a table loaded from a file that lacks some hops is replaced as a whole */
+			Map<Long, Integer> pairs = new HashMap<Long, Integer>();
+			List<int[]> paths = new ArrayList<int[]>();
+			List<Double> lens = new ArrayList<Double>();
+			int total = 0;
+			for (SourceTask t : tasks) {
+				int[][] found = t.join();
+				for (int j=0; j<t.targets.length; j++) {
+					pairs.put(key(t.source, t.targets[j]), paths.size());
+					paths.add(found[j]);
+					lens.add(t.lengths[j]);
+					total += found[j].length;
+				}
+			}
+			pairIndex = pairs;
+			store(paths, lens, total);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** puts the paths in the compact arrays */
+	private void store(List<int[]> paths, List<Double> lens, int total) {
+		pathStart = new int[paths.size() + 1];
+		pathNodes = new int[total];
+		lengths = new double[paths.size()];
+		int pos = 0;
+		for (int i=0; i<paths.size(); i++) {
+			pathStart[i] = pos;
+			System.arraycopy(paths.get(i), 0, pathNodes, pos, paths.get(i).length);
+			pos += paths.get(i).length;
+			lengths[i] = lens.get(i);
+		}
+		pathStart[paths.size()] = pos;
+	}
+
+	/** Single-source shortest paths from one map node to some targets */
+	@SuppressWarnings("serial")
+	private class SourceTask extends RecursiveTask<int[][]> {
+		private int source;
+		private int[] targets;
+		private double[] lengths;
+
+		public SourceTask(int source, int[] targets) {
+			this.source = source;
+			this.targets = targets;
+			this.lengths = new double[targets.length];
+		}
+
+		protected int[][] compute() {
+			int n = nodes.length;
+			double[] dist = new double[n];
+			int[] pred = new int[n];
+			boolean[] done = new boolean[n];
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			Arrays.fill(pred, -1);
+
+			boolean[] isTarget = new boolean[n];
+			int left = 0;
+			for (int t : targets) {
+				if (!isTarget[t]) {
+					isTarget[t] = true;
+					left++;
+				}
+			}
+
+			/** binary heap of (distance, node), with lazy deletion */
+			double[] heapDist = new double[16];
+			int[] heapNode = new int[16];
+			int heapSize = 0;
+			dist[source] = 0;
+			heapDist[0] = 0;
+			heapNode[0] = source;
+			heapSize = 1;
+
+			while (heapSize > 0 && left > 0) {
+				int u = heapNode[0];
+				double du = heapDist[0];
+				/** pop */
+				heapSize--;
+				double lastDist = heapDist[heapSize];
+				int lastNode = heapNode[heapSize];
+				int i = 0;
+				while (2 * i + 1 < heapSize) {
+					int c = 2 * i + 1;
+					if (c + 1 < heapSize && heapDist[c+1] < heapDist[c]) {
+						c++;
+					}
+					if (heapDist[c] >= lastDist) {
+						break;
+					}
+					heapDist[i] = heapDist[c];
+					heapNode[i] = heapNode[c];
+					i = c;
+				}
+				heapDist[i] = lastDist;
+				heapNode[i] = lastNode;
+
+				if (done[u] || du > dist[u]) {
+					continue;
+				}
+				done[u] = true;
+				if (isTarget[u]) {
+					left--;
+				}
+
+				for (MapNode m : nodes[u].getNeighbors()) {
+					if (!isOk(m)) {
+						continue;
+					}
+					int v = nodeIndex.get(m);
+					double dv = du + nodes[u].getLocation().distance(m.getLocation());
+					if (!done[v] && dv < dist[v]) {
+						dist[v] = dv;
+						pred[v] = u;
+						/** push */
+						if (heapSize == heapDist.length) {
+							heapDist = Arrays.copyOf(heapDist, heapSize * 2);
+							heapNode = Arrays.copyOf(heapNode, heapSize * 2);
+						}
+						int j = heapSize++;
+						while (j > 0 && heapDist[(j-1)/2] > dv) {
+							heapDist[j] = heapDist[(j-1)/2];
+							heapNode[j] = heapNode[(j-1)/2];
+							j = (j-1)/2;
+						}
+						heapDist[j] = dv;
+						heapNode[j] = v;
+					}
+				}
+			}
+
+			int[][] paths = new int[targets.length][];
+			for (int k=0; k<targets.length; k++) {
+				int t = targets[k];
+				if (!done[t]) {
+					paths[k] = new int[0]; /* no path */
+					continue;
+				}
+				int len = 1;
+				for (int v=t; v!=source; v=pred[v]) {
+					len++;
+				}
+				int[] path = new int[len];
+				for (int v=t, j=len-1; j>=0; v=(j>0 ? pred[v] : v), j--) {
+					path[j] = v;
+				}
+				paths[k] = path;
+
+				/** length summed along the path, from the source */
+				double length = 0;
+				for (int j=0; j<len-1; j++) {
+					length += nodes[path[j]].getLocation().distance(nodes[path[j+1]].getLocation());
+				}
+				lengths[k] = length;
+			}
+			return paths;
+		}
+	}
+
+	private void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(mapHash);
+			out.writeInt(lengths.length);
+			for (Map.Entry<Long, Integer> e : pairIndex.entrySet()) {
+				int path = e.getValue();
+				out.writeLong(e.getKey());
+				out.writeDouble(lengths[path]);
+				out.writeInt(pathStart[path+1] - pathStart[path]);
+				for (int i=pathStart[path]; i<pathStart[path+1]; i++) {
+					out.writeInt(pathNodes[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			tmp.delete();
+			throw ioe;
+		}
+	}
+
+	/** loads a saved table. Returns false if it is for another map (or broken) */
+	private boolean load(File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != mapHash) {
+					return false;
+				}
+				int nrofPaths = in.readInt();
+				List<int[]> paths = new ArrayList<int[]>(nrofPaths);
+				List<Double> lens = new ArrayList<Double>(nrofPaths);
+				Map<Long, Integer> pairs = new HashMap<Long, Integer>();
+				int total = 0;
+				for (int i=0; i<nrofPaths; i++) {
+					pairs.put(in.readLong(), i);
+					lens.add(in.readDouble());
+					int[] path = new int[in.readInt()];
+					for (int j=0; j<path.length; j++) {
+						path[j] = in.readInt();
+						if (path[j] < 0 || path[j] >= nodes.length) {
+							return false;
+						}
+					}
+					paths.add(path);
+					total += path.length;
+				}
+				pairIndex = pairs;
+				store(paths, lens, total);
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			System.err.println("Couldn't read shortest path table " + file + " (cause: " + ioe.getMessage() + ")");
+		} catch (NegativeArraySizeException e) {
+			System.err.println("Shortest path table " + file + " is broken");
+		}
+		return false;
+	}
+}
@@ -0,0 +1,24 @@
+package benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler (allocation rates per operation).
+ * Usage: java benchmark.BenchmarkMain [regexp of benchmarks to run]
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = (args.length > 0 ? args[0] : "benchmark\\..*Benchmark");
+		Options options = new OptionsBuilder()
+			.include(include)
+			.addProfiler(GCProfiler.class)
+			.forks(1)
+			.build();
+		new Runner(options).run();
+	}
+}
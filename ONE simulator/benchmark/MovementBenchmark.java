@@ -0,0 +1,135 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import movement.ExternalMapMovement;
+import movement.Path;
+import core.Settings;
+
+/**
+ * Cost of one movement step (nextPathAvailable and getPath) of an
+ * {@link ExternalMapMovement} node, for groups of different sizes.
+ * The nodes are stepped in turn, so a big group doesn't fit in the caches.
+ * The nodes are created once: a node at the end of its route is rewound to
+ * the start of it, so the group (and its activation schedule) doesn't grow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MovementBenchmark {
+	private static final int SIDE = 50;
+	private static final double STEP = 10;
+	/** about how many rows the trace has */
+	private static final int TRACE_ROWS = 2000000;
+	private static final int MIN_SAMPLES = 20;
+
+	/** number of nodes in the group */
+	@Param({"100", "10000", "100000"})
+	public int nodes;
+
+	/** movement mode of the group */
+	@Param({"0", "1"})
+	public int extMovMode;
+
+	private File dir;
+	private ExternalMapMovement proto;
+	private ExternalMapMovement[] models;
+	/** the positions of the nodes at the start of their routes */
+	private int[][] starts;
+	/** steps taken by each node since it got its route */
+	private int[] steps;
+	private int samples;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = File.createTempFile("emm-move", "");
+		dir.delete();
+		dir.mkdir();
+		File mapFile = new File(dir, "grid.wkt");
+		File traceFile = new File(dir, "trace.csv");
+		File settingsFile = new File(dir, "settings.txt");
+
+		samples = Math.max(MIN_SAMPLES, TRACE_ROWS / nodes);
+		TraceData.writeGridMap(mapFile, SIDE, STEP);
+		TraceData.writeTrace(traceFile, nodes, samples, SIDE, STEP, "sec", false, 0, 1);
+
+		int worldSize = (int)(SIDE * STEP) + 100;
+		PrintWriter out = new PrintWriter(new FileWriter(settingsFile));
+		try {
+			out.println("MovementModel.rngSeed = 1");
+			out.println("MovementModel.worldSize = " + worldSize + ", " + worldSize);
+			out.println("MapBasedMovement.nrofMapFiles = 1");
+			out.println("MapBasedMovement.mapFile1 = " + mapFile.getPath());
+			/* fast enough for mode 1: at most one crossing (10 m) a minute */
+			out.println("Group.speed = 0.5, 1.5");
+			out.println("Group.waitTime = 0, 0");
+			out.println("Group." + ExternalMapMovement.EMM_FILE_S + " = " + traceFile.getPath());
+			out.println("Group." + ExternalMapMovement.EMM_MODE_S + " = " + extMovMode);
+		} finally {
+			out.close();
+		}
+
+		Settings.init(settingsFile.getPath());
+		proto = new ExternalMapMovement(new Settings("Group"));
+		models = new ExternalMapMovement[nodes];
+		starts = new int[nodes][];
+		steps = new int[nodes];
+		for (int i=0; i<nodes; i++) {
+			models[i] = proto.replicate();
+			models[i].getInitialLocation();
+			starts[i] = models[i].getRoute().getPosition();
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void rewind() {
+		for (int i=0; i<nodes; i++) {
+			rewind(i);
+		}
+		next = 0;
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/** moves a node back to the start of its route */
+	private void rewind(int i) {
+		models[i].getRoute().setPosition(starts[i]);
+		steps[i] = 0;
+	}
+
+	@Benchmark
+	public Path step() {
+		int i = next;
+		next = (next + 1 == nodes ? 0 : next + 1);
+
+		/* a node at the end of its route only waits, so start it over */
+		if (++steps[i] >= samples) {
+			rewind(i);
+			steps[i] = 1;
+		}
+		models[i].nextPathAvailable();
+		return models[i].getPath();
+	}
+}
@@ -0,0 +1,60 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import input.ExternalMapColumns;
+import input.ExternalMapParser;
+
+/**
+ * Parsing throughput of trace files, in rows per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+	/** number of rows in the file */
+	public static final int ROWS = 500000;
+	private static final int NODES = 1000;
+
+	/** time format of the file: "sec" or "date" */
+	@Param({"sec", "date"})
+	public String timeFormat;
+
+	/** threads reading the file (0 for all processors) */
+	@Param({"1", "0"})
+	public int threads;
+
+	private File file;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = File.createTempFile("emm-parse", ".csv");
+		TraceData.writeTrace(file, NODES, ROWS / NODES, 100, 10, timeFormat, false, 0, 1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public ExternalMapColumns parse() {
+		ExternalMapParser parser = new ExternalMapParser(0, 1, 2, 3, timeFormat);
+		parser.setThreads(threads);
+		return parser.parse(file.getPath());
+	}
+}
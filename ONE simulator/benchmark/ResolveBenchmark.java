@@ -0,0 +1,85 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import input.ExternalMapParser;
+import movement.map.ExternalMapRoute;
+import movement.map.MapNode;
+import movement.map.MapNodeIndex;
+import movement.map.SimMap;
+
+/**
+ * Cost of finding the map nodes of the coordinates of a trace, and of reading
+ * the routes of a whole trace file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResolveBenchmark {
+	/** number of coordinates resolved at a time */
+	public static final int COORDS = 100000;
+	private static final int SIDE = 100;
+	private static final double STEP = 10;
+
+	/** snapping distance of the index (0 for exact matches) */
+	@Param({"0", "3"})
+	public double snapDistance;
+
+	private SimMap map;
+	private MapNodeIndex index;
+	private double[] xs;
+	private double[] ys;
+	private File file;
+
+	@Setup
+	public void setUp() throws IOException {
+		map = TraceData.gridMap(SIDE, STEP);
+		index = new MapNodeIndex(map, snapDistance);
+
+		/* coordinates on the crossings, moved a bit when they can be snapped */
+		Random rng = new Random(1);
+		xs = new double[COORDS];
+		ys = new double[COORDS];
+		for (int i=0; i<COORDS; i++) {
+			xs[i] = rng.nextInt(SIDE) * STEP + (rng.nextDouble() - 0.5) * snapDistance;
+			ys[i] = rng.nextInt(SIDE) * STEP + (rng.nextDouble() - 0.5) * snapDistance;
+		}
+
+		file = File.createTempFile("emm-resolve", ".csv");
+		TraceData.writeTrace(file, COORDS / 100, 100, SIDE, STEP, "sec", false, 0, 1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COORDS)
+	public MapNode[] resolve() {
+		return index.getNodes(xs, ys, COORDS);
+	}
+
+	/** parse, sort, resolve and build the routes of a file (rows per second) */
+	@Benchmark
+	@OperationsPerInvocation(COORDS)
+	public List<ExternalMapRoute> readRoutes() {
+		ExternalMapParser parser = new ExternalMapParser(0, 1, 2, 3, "sec");
+		return ExternalMapRoute.readRoutes(file.getPath(), parser, null, 0, index);
+	}
+}
@@ -0,0 +1,63 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import input.ExternalMapColumns;
+import input.ExternalMapParser;
+
+/**
+ * Cost of sorting the rows of a trace by node and time and dropping the duplicate rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SortBenchmark {
+	/** number of samples in the trace (without the duplicates) */
+	@Param({"100000", "1000000"})
+	public int rows;
+
+	/** order of the lines in the file: "time" (sorted by time) or "random" */
+	@Param({"time", "random"})
+	public String order;
+
+	/** the rows as read from the file */
+	private ExternalMapColumns parsed;
+	/** a fresh copy of the rows for each sort */
+	private ExternalMapColumns columns;
+
+	@Setup
+	public void setUp() throws IOException {
+		File file = File.createTempFile("emm-sort", ".csv");
+		try {
+			int nodes = Math.max(1, rows / 100);
+			TraceData.writeTrace(file, nodes, rows / nodes, 100, 10, "sec", order.equals("random"), 0.05, 1);
+			parsed = new ExternalMapParser(0, 1, 2, 3, "sec").parse(file.getPath());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() {
+		columns = new ExternalMapColumns(parsed.size());
+		columns.append(parsed);
+	}
+
+	@Benchmark
+	public ExternalMapColumns sortAndDedup() {
+		columns.sortByIdAndTime(columns.getIdRanks());
+		return columns;
+	}
+}
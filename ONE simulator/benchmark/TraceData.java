@@ -0,0 +1,154 @@
+package benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import movement.map.MapNode;
+import movement.map.SimMap;
+import core.Coord;
+
+/**
+ * Synthetic maps and traces for the benchmarks. The map is a square grid of
+ * streets and the nodes of the trace walk randomly on its crossings, one
+ * sample every minute.
+ */
+class TraceData {
+	/** time of the first sample of the traces (in seconds) */
+	public static final long BASE_TIME = 1262304000L; /* 01/01/10 00:00 UTC */
+	/** time between the samples of a node (seconds) */
+	public static final int SAMPLE_INTERVAL = 60;
+
+	private TraceData() {}
+
+	/**
+	 * Creates a grid map in memory
+	 * @param side: number of crossings on each side of the grid
+	 * @param step: distance between two crossings
+	 * @return the map
+	 */
+	public static SimMap gridMap(int side, double step) {
+		Map<Coord, MapNode> nodes = new HashMap<Coord, MapNode>();
+		MapNode[][] grid = new MapNode[side][side];
+		for (int i=0; i<side; i++) {
+			for (int j=0; j<side; j++) {
+				Coord c = new Coord(i * step, j * step);
+				grid[i][j] = new MapNode(c);
+				nodes.put(c, grid[i][j]);
+			}
+		}
+		for (int i=0; i<side; i++) {
+			for (int j=0; j<side; j++) {
+				if (i > 0) {
+					grid[i][j].addNeighbor(grid[i-1][j]);
+					grid[i-1][j].addNeighbor(grid[i][j]);
+				}
+				if (j > 0) {
+					grid[i][j].addNeighbor(grid[i][j-1]);
+					grid[i][j-1].addNeighbor(grid[i][j]);
+				}
+			}
+		}
+		return new SimMap(nodes);
+	}
+
+	/**
+	 * Writes a grid map as WKT line strings (one for each street)
+	 * @param file: where to write the map
+	 * @param side: number of crossings on each side of the grid
+	 * @param step: distance between two crossings
+	 */
+	public static void writeGridMap(File file, int side, double step) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int i=0; i<side; i++) {
+				StringBuilder row = new StringBuilder("LINESTRING (");
+				StringBuilder col = new StringBuilder("LINESTRING (");
+				for (int j=0; j<side; j++) {
+					String sep = (j > 0 ? ", " : "");
+					row.append(sep).append(j * step).append(' ').append(i * step);
+					col.append(sep).append(i * step).append(' ').append(j * step);
+				}
+				out.write(row.append(")\n").toString());
+				out.write(col.append(")\n").toString());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes a trace of nodes walking on a grid map (node id, time, x, y)
+	 * @param file: where to write the trace
+	 * @param nrofNodes: number of nodes in the trace
+	 * @param nrofSamples: number of samples of each node
+	 * @param side: number of crossings on each side of the grid
+	 * @param step: distance between two crossings
+	 * @param timeFormat: "sec" or "date" (dates are MM/dd/yy HH:mm)
+	 * @param shuffle: true to write the lines in random order (else they are sorted by time)
+	 * @param duplicates: fraction of the samples that are written twice
+	 * @param seed: seed of the random numbers
+	 * @return the number of lines written
+	 */
+	public static int writeTrace(File file, int nrofNodes, int nrofSamples, int side, double step,
+			String timeFormat, boolean shuffle, double duplicates, long seed) throws IOException {
+		Random rng = new Random(seed);
+		SimpleDateFormat df = new SimpleDateFormat("MM/dd/yy HH:mm");
+		boolean dates = timeFormat.equalsIgnoreCase("date");
+		int[] xs = new int[nrofNodes];
+		int[] ys = new int[nrofNodes];
+		for (int n=0; n<nrofNodes; n++) {
+			xs[n] = rng.nextInt(side);
+			ys[n] = rng.nextInt(side);
+		}
+
+		List<String> lines = new ArrayList<String>();
+		BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16);
+		int count = 0;
+		try {
+			for (int s=0; s<nrofSamples; s++) {
+				long time = BASE_TIME + (long)s * SAMPLE_INTERVAL;
+				String t = (dates ? df.format(new Date(time * 1000)) : Long.toString(time - BASE_TIME));
+				for (int n=0; n<nrofNodes; n++) {
+					/* stay or move to a neighbor crossing */
+					switch (rng.nextInt(5)) {
+					case 0: xs[n] = Math.max(0, xs[n] - 1); break;
+					case 1: xs[n] = Math.min(side - 1, xs[n] + 1); break;
+					case 2: ys[n] = Math.max(0, ys[n] - 1); break;
+					case 3: ys[n] = Math.min(side - 1, ys[n] + 1); break;
+					default: break;
+					}
+					String line = "n" + n + "," + t + "," + (xs[n] * step) + "," + (ys[n] * step) + "\n";
+					int copies = (rng.nextDouble() < duplicates ? 2 : 1);
+					for (int c=0; c<copies; c++) {
+						if (shuffle) {
+							lines.add(line);
+						}
+						else {
+							out.write(line);
+						}
+						count++;
+					}
+				}
+			}
+			if (shuffle) {
+				Collections.shuffle(lines, rng);
+				for (String line : lines) {
+					out.write(line);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return count;
+	}
+}
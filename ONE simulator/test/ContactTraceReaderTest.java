@@ -0,0 +1,113 @@
+package test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import input.ConnectionEvent;
+import input.ContactTraceReader;
+import input.ExternalEvent;
+import core.SettingsError;
+
+/**
+ * Tests of reading raw contact traces as connection events.
+ */
+public class ContactTraceReaderTest extends TestCase {
+	/** the lines of a pmtr trace, with ties at 10, 20 and 30 and a contact that doesn't last */
+	private static final String PMTR =
+		"# id_source id_destination t_start_contact t_end_contact\n" +
+		"1 2 110 120\n" +
+		"3 4 120 130\n" +
+		"1 3 110 120\n" +
+		"2 4 125 125\n" +
+		"4 1 130 140\n";
+
+	/** the events of {@link #PMTR} with base time 100: the file pmtr.pl writes (times - 100) */
+	private static final List<String> PMTR_EVENTS = Arrays.asList(
+		"10.0 0 1 up",
+		"10.0 0 2 up",
+		"20.0 0 1 down",
+		"20.0 2 3 up",
+		"20.0 0 2 down",
+		"30.0 2 3 down",
+		"30.0 3 0 up",
+		"40.0 3 0 down");
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("contacts", ".txt");
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	private void write(String text) throws IOException {
+		FileWriter out = new FileWriter(file);
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** the events of a reader as "time from to up|down" */
+	private List<String> read(ContactTraceReader reader) throws Exception {
+		Field from = ConnectionEvent.class.getDeclaredField("fromAddr");
+		Field to = ConnectionEvent.class.getDeclaredField("toAddr");
+		Field up = ConnectionEvent.class.getDeclaredField("isUp");
+		from.setAccessible(true);
+		to.setAccessible(true);
+		up.setAccessible(true);
+		List<String> events = new ArrayList<String>();
+		for (ExternalEvent e : reader.readEvents(100)) {
+			events.add(e.getTime() + " " + from.getInt(e) + " " + to.getInt(e) + " " +
+				(up.getBoolean(e) ? "up" : "down"));
+		}
+		reader.close();
+		return events;
+	}
+
+	public void testTiesInLineOrder() throws Exception {
+		write(PMTR);
+		ContactTraceReader reader = new ContactTraceReader(file, ContactTraceReader.FORMAT_PMTR, 100, 1024);
+		assertEquals(PMTR_EVENTS, read(reader));
+		/** the devices of the contact that doesn't last get addresses too */
+		assertEquals(4, reader.getAddresses().size());
+	}
+
+	public void testStAndrews() throws Exception {
+		write("device, contacted device, start, end, upload, download\n" +
+			"a, b, 5, 8, 0, 0\n" +
+			"b, c, 6, 7, 0, 0\n");
+		ContactTraceReader reader = new ContactTraceReader(file, ContactTraceReader.FORMAT_ST_ANDREWS, 0, 1024);
+		assertEquals(Arrays.asList("5.0 0 1 up", "6.0 1 2 up", "7.0 1 2 down", "8.0 0 1 down"), read(reader));
+	}
+
+	public void testOutOfOrderWithinWindow() throws Exception {
+		write("1 2 50 60\n" +
+			"3 4 10 20\n");
+		assertEquals(Arrays.asList("10.0 2 3 up", "20.0 2 3 down", "50.0 0 1 up", "60.0 0 1 down"),
+			read(new ContactTraceReader(file, ContactTraceReader.FORMAT_PMTR, 0, 2)));
+	}
+
+	public void testOutOfOrderBeyondWindow() throws Exception {
+		write("1 2 50 60\n" +
+			"3 4 10 20\n");
+		ContactTraceReader reader = new ContactTraceReader(file, ContactTraceReader.FORMAT_PMTR, 0, 1);
+		try {
+			read(reader);
+			fail("a contact that starts before the events given was read");
+		} catch (SettingsError e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("out of order"));
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import input.ConnectionEvent;
+import input.ExternalEvent;
+import input.NusSessionReader;
+import core.SettingsError;
+
+/**
+ * Tests of turning NUS class sessions into connection events.
+ */
+public class NusSessionReaderTest extends TestCase {
+	private static final String HEADER = "start session students duration\n";
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("nus", ".txt");
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	private void write(String text) throws IOException {
+		FileWriter out = new FileWriter(file);
+		try {
+			out.write(HEADER + text);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** the events of a reader as "time from to up|down" */
+	private List<String> read(NusSessionReader reader) throws Exception {
+		Field from = ConnectionEvent.class.getDeclaredField("fromAddr");
+		Field to = ConnectionEvent.class.getDeclaredField("toAddr");
+		Field up = ConnectionEvent.class.getDeclaredField("isUp");
+		from.setAccessible(true);
+		to.setAccessible(true);
+		up.setAccessible(true);
+		List<String> events = new ArrayList<String>();
+		for (ExternalEvent e : reader.readEvents(100)) {
+			events.add(e.getTime() + " " + from.getInt(e) + " " + to.getInt(e) + " " +
+				(up.getBoolean(e) ? "up" : "down"));
+		}
+		reader.close();
+		return events;
+	}
+
+	/**
+	 * The same pairs in overlapping sessions stay connected until the latest end:
+	 * the second session extends them and the third, which ends earlier, doesn't
+	 * shorten them. The last student of a session isn't connected to itself.
+	 */
+	public void testPairsMerged() throws Exception {
+		write("1 1 3 2\n" +
+			"1 2 3\n" +
+			"2 2 3 3\n" +
+			"1 2 3\n" +
+			"3 3 3 1\n" +
+			"1 2 3\n");
+		NusSessionReader reader = new NusSessionReader(file, 0, 0, 3, 1024);
+		assertEquals(Arrays.asList("3600.0 0 1 up", "3600.0 1 2 up",
+			"18000.0 0 1 down", "18000.0 1 2 down"), read(reader));
+		assertEquals(3, reader.getAddresses().size());
+	}
+
+	/** partners past the end of the list are skipped, not connected */
+	public void testFanOutPastList() throws Exception {
+		write("0 1 4 1\n" +
+			"1 2 3 4\n");
+		assertEquals(Arrays.asList("0.0 0 1 up", "0.0 0 2 up", "0.0 1 2 up", "0.0 1 3 up", "0.0 2 3 up",
+			"3600.0 0 1 down", "3600.0 0 2 down", "3600.0 1 2 down", "3600.0 1 3 down", "3600.0 2 3 down"),
+			read(new NusSessionReader(file, 0, 0, 5, 1024)));
+	}
+
+	public void testStudentLimit() throws Exception {
+		write("0 1 3 1\n" +
+			"1 2 3\n");
+		NusSessionReader reader = new NusSessionReader(file, 0, 3, 3, 1024);
+		assertEquals(Arrays.asList("0.0 0 1 up", "3600.0 0 1 down"), read(reader));
+		assertEquals(2, reader.getAddresses().size());
+	}
+
+	public void testOutOfOrderWithinWindow() throws Exception {
+		write("5 1 3 1\n" +
+			"1 2 3\n" +
+			"1 2 3 1\n" +
+			"4 5 6\n");
+		assertEquals(Arrays.asList("3600.0 0 1 up", "3600.0 1 2 up", "7200.0 0 1 down", "7200.0 1 2 down",
+			"18000.0 3 4 up", "18000.0 4 5 up", "21600.0 3 4 down", "21600.0 4 5 down"),
+			read(new NusSessionReader(file, 0, 0, 3, 2)));
+	}
+
+	public void testOutOfOrderBeyondWindow() throws Exception {
+		write("5 1 3 1\n" +
+			"1 2 3\n" +
+			"1 2 3 1\n" +
+			"4 5 6\n");
+		NusSessionReader reader = new NusSessionReader(file, 0, 0, 3, 1);
+		try {
+			read(reader);
+			fail("a session that starts before the events given was read");
+		} catch (SettingsError e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("out of order"));
+		}
+	}
+}
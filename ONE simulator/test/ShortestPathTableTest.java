@@ -0,0 +1,94 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import movement.map.ExternalMapRoute;
+import movement.map.MapNode;
+import movement.map.ShortestPathCache;
+import movement.map.ShortestPathTable;
+import movement.map.SimMap;
+import core.Coord;
+
+/**
+ * Tests of the shortest path table and its file.
+ */
+public class ShortestPathTableTest extends TestCase {
+	/** the map: a line of nodes a - b - c, 10 m apart */
+	private MapNode a, b, c;
+	private SimMap map;
+	private File file;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Map<Coord, MapNode> nodes = new HashMap<Coord, MapNode>();
+		a = new MapNode(new Coord(0, 0));
+		b = new MapNode(new Coord(10, 0));
+		c = new MapNode(new Coord(20, 0));
+		a.addNeighbor(b);
+		b.addNeighbor(a);
+		b.addNeighbor(c);
+		c.addNeighbor(b);
+		for (MapNode n : new MapNode[] {a, b, c}) {
+			nodes.put(n.getLocation(), n);
+		}
+		map = new SimMap(nodes);
+		file = File.createTempFile("paths", ".paths");
+		file.delete();
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	private List<ExternalMapRoute> routes(MapNode... stops) {
+		List<Double> times = new ArrayList<Double>();
+		for (int i=0; i<stops.length; i++) {
+			times.add(10.0);
+		}
+		List<ExternalMapRoute> routes = new ArrayList<ExternalMapRoute>();
+		routes.add(new ExternalMapRoute(Arrays.asList(stops), times, "0"));
+		return routes;
+	}
+
+	private void assertPath(ShortestPathTable table, MapNode from, MapNode to, double length, int nrofNodes) {
+		ShortestPathCache.CachedPath path = table.getPath(from, to);
+		assertNotNull(path);
+		assertEquals(length, path.getLength(), 1e-9);
+		assertEquals(nrofNodes, path.getNodes().size());
+		assertSame(from, path.getNodes().get(0));
+		assertSame(to, path.getNodes().get(nrofNodes - 1));
+	}
+
+	public void testSavedTableIsLoaded() {
+		new ShortestPathTable(map, null, routes(a, c), 1, file.getPath());
+		assertTrue(file.exists());
+		ShortestPathTable table = new ShortestPathTable(map, null, routes(a, c), 1, file.getPath());
+		assertEquals(1, table.size());
+		assertPath(table, a, c, 20, 3);
+	}
+
+	public void testSavedTableMissingSomeHops() {
+		new ShortestPathTable(map, null, routes(c, b, a), 1, file.getPath());
+
+		/** the saved table has c -> b and b -> a but not a -> b: it is computed again */
+		ShortestPathTable table = new ShortestPathTable(map, null, routes(a, b), 1, file.getPath());
+		assertEquals(1, table.size());
+		assertPath(table, a, b, 10, 2);
+		/** the paths of the old table are not mixed with the new ones */
+		assertNull(table.getPath(c, b));
+		assertNull(table.getPath(b, a));
+
+		/** and saved again with the new hops only */
+		table = new ShortestPathTable(map, null, routes(a, b), 1, file.getPath());
+		assertEquals(1, table.size());
+		assertPath(table, a, b, 10, 2);
+		assertNull(table.getPath(c, b));
+	}
+}